@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.cache;
+
+/**
+ * Snapshot of the statistics of a {@link KeyCache}, taken for capacity
+ * planning.
+ *
+ * @author ptrk01
+ */
+public final class CacheStats {
+
+    /**
+     * Number of lookups finding the user in the cache.
+     */
+    private final long mHits;
+
+    /**
+     * Number of lookups not finding the user in the cache.
+     */
+    private final long mMisses;
+
+    /**
+     * Number of users loaded into the cache on a miss.
+     */
+    private final long mLoads;
+
+    /**
+     * Total time spent loading users, in nanoseconds.
+     */
+    private final long mLoadTime;
+
+    /**
+     * Number of users evicted or expired from the cache.
+     */
+    private final long mEvictions;
+
+    /**
+     * Constructor.
+     *
+     * @param paramHits
+     *            number of hits.
+     * @param paramMisses
+     *            number of misses.
+     * @param paramLoads
+     *            number of loads.
+     * @param paramLoadTime
+     *            total load time in nanoseconds.
+     * @param paramEvictions
+     *            number of evictions.
+     */
+    public CacheStats(final long paramHits, final long paramMisses,
+        final long paramLoads, final long paramLoadTime,
+        final long paramEvictions) {
+        this.mHits = paramHits;
+        this.mMisses = paramMisses;
+        this.mLoads = paramLoads;
+        this.mLoadTime = paramLoadTime;
+        this.mEvictions = paramEvictions;
+    }
+
+    /**
+     * Returns number of lookups finding the user in the cache.
+     *
+     * @return
+     *         number of hits.
+     */
+    public long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns number of lookups not finding the user in the cache.
+     *
+     * @return
+     *         number of misses.
+     */
+    public long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns ratio of hits to all lookups.
+     *
+     * @return
+     *         hit rate, 1 if there has been no lookup yet.
+     */
+    public double getHitRate() {
+        final long mRequests = mHits + mMisses;
+        return mRequests == 0 ? 1.0 : (double)mHits / mRequests;
+    }
+
+    /**
+     * Returns number of users loaded into the cache on a miss.
+     *
+     * @return
+     *         number of loads.
+     */
+    public long getLoads() {
+        return mLoads;
+    }
+
+    /**
+     * Returns total time spent loading users.
+     *
+     * @return
+     *         load time in nanoseconds.
+     */
+    public long getLoadTime() {
+        return mLoadTime;
+    }
+
+    /**
+     * Returns average time spent loading a user.
+     *
+     * @return
+     *         average load time in nanoseconds, 0 if nothing has been
+     *         loaded yet.
+     */
+    public double getAverageLoadTime() {
+        return mLoads == 0 ? 0.0 : (double)mLoadTime / mLoads;
+    }
+
+    /**
+     * Returns number of users evicted or expired from the cache.
+     *
+     * @return
+     *         number of evictions.
+     */
+    public long getEvictions() {
+        return mEvictions;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + mHits + " misses=" + mMisses + " loads=" + mLoads
+            + " loadTime=" + mLoadTime / 1000000 + "ms evictions="
+            + mEvictions;
+    }
+
+}
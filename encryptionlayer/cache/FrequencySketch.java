@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.cache;
+
+/**
+ * Count-min sketch estimating how often users have been requested, used by
+ * the W-TinyLFU policy of {@link KeyCache} to decide whether a new user is
+ * admitted in place of an old one. Counters are capped at 15 and all halved
+ * after a sample period, so the sketch ages and follows changing hot sets.
+ *
+ * @author ptrk01
+ */
+final class FrequencySketch {
+
+    /**
+     * Number of counters read and incremented per user.
+     */
+    private static final int DEPTH = 4;
+
+    /**
+     * Maximum value of a counter.
+     */
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * Seeds of the hash functions, one per row.
+     */
+    private static final int[] SEEDS = {
+        0x97CB3127, 0xB4B82E9D, 0xC8A3D5BF, 0x8F7A4E21
+    };
+
+    /**
+     * Counters, a power of two.
+     */
+    private final byte[] mTable;
+
+    /**
+     * Number of increments before all counters are halved.
+     */
+    private final int mSampleSize;
+
+    /**
+     * Increments since the last halving.
+     */
+    private int mSize;
+
+    /**
+     * Constructor.
+     *
+     * @param paramExpected
+     *            expected number of users in the cache.
+     */
+    FrequencySketch(final int paramExpected) {
+        int capacity = 64;
+        while (capacity < paramExpected * DEPTH
+            && capacity < (1 << 24)) {
+            capacity <<= 1;
+        }
+        mTable = new byte[capacity];
+        mSampleSize = 10 * Math.max(paramExpected, 16);
+    }
+
+    /**
+     * Records a request of a user.
+     *
+     * @param paramUser
+     *            user name.
+     */
+    void increment(final String paramUser) {
+        final int h = paramUser.hashCode();
+        boolean mAdded = false;
+        for (int i = 0; i < DEPTH; i++) {
+            final int mIndex = index(h, i);
+            if (mTable[mIndex] < MAX_COUNT) {
+                mTable[mIndex]++;
+                mAdded = true;
+            }
+        }
+        if (mAdded && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of requests of a user.
+     *
+     * @param paramUser
+     *            user name.
+     * @return
+     *         estimated frequency, at most 15.
+     */
+    int frequency(final String paramUser) {
+        final int h = paramUser.hashCode();
+        int mFrequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            mFrequency = Math.min(mFrequency, mTable[index(h, i)]);
+        }
+        return mFrequency;
+    }
+
+    /**
+     * Halves all counters.
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (byte)(mTable[i] >>> 1);
+        }
+        mSize /= 2;
+    }
+
+    /**
+     * Returns the counter of a user in a row.
+     *
+     * @param paramHash
+     *            hash code of user name.
+     * @param paramRow
+     *            row of the sketch.
+     * @return
+     *         index into the table.
+     */
+    private int index(final int paramHash, final int paramRow) {
+        int h = (paramHash + SEEDS[paramRow]) * SEEDS[paramRow];
+        h ^= h >>> 16;
+        return h & (mTable.length - 1);
+    }
+
+}
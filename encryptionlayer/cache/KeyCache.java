@@ -25,87 +25,477 @@
  * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
  *
  */
-
 package encryptionlayer.cache;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import encryptionlayer.collections.LongHashSet;
+import encryptionlayer.collections.LongIterator;
+import encryptionlayer.collections.LongLongHashMap;
+import encryptionlayer.collections.LongObjectHashMap;
 
 /**
- * An LRU cache, based on <code>LinkedHashMap</code> holding
- * last key changes for a user.
+ * A thread safe cache holding the keys of users. The users are spread over
+ * lock striped segments, so threads working for different users rarely
+ * contend. Each segment is bounded by number of users or by the estimated
+ * bytes of their key sets and evicts by one of two policies:
+ * <ul>
+ * <li>{@link #POLICY_LRU} evicts the least recently used user.</li>
+ * <li>{@link #POLICY_TINY_LFU} (W-TinyLFU) lets new users pass a small LRU
+ * window first; a user leaving the window only replaces the least recently
+ * used user of the main area if it has been requested more often, so bursts
+ * of one-time logins do not flush the hot users.</li>
+ * </ul>
+ * Users may additionally expire a fixed time after their last access.
+ * <p>
+ * Each key of a user is tagged with the revision and version of the node it
+ * has been cached at. After a rekey {@link #invalidate} refreshes exactly the
+ * keys of the changed nodes, so stale keys neither linger nor force whole
+ * users to be reloaded. Each segment indexes its users by the keys they hold,
+ * so only users holding or owning a changed key are visited. Key sets handed
+ * out are copies; changes are written back with {@link #put} or
+ * {@link #addAll}.
  *
  * @author ptrk01
  */
 public class KeyCache {
 
     /**
-     * Capacity of the cache.
+     * Default capacity of the cache in users.
      */
-    static final int CACHE_CAPACITY = 100;
+    public static final int DEFAULT_CAPACITY = 100;
 
     /**
-     * The collection to hold the maps.
+     * Policy evicting the least recently used user.
      */
-    private final Map<String, LinkedList<Long>> mMap;
+    public static final int POLICY_LRU = 0;
 
     /**
-     * Constructor creates a new key cache.
+     * Policy admitting users by frequency behind an LRU window (W-TinyLFU).
+     */
+    public static final int POLICY_TINY_LFU = 1;
+
+    /**
+     * Bound on the number of users.
+     */
+    public static final int BOUND_ENTRIES = 0;
+
+    /**
+     * Bound on the estimated bytes of the key sets.
+     */
+    public static final int BOUND_BYTES = 1;
+
+    /**
+     * No bound on size or time of access.
+     */
+    public static final long UNLIMITED = 0;
+
+    /**
+     * Tag of keys not held by a user or of nodes removed from the DAG.
+     */
+    public static final long NO_TAG = -1L;
+
+    /**
+     * Maximum number of segments, a power of two.
+     */
+    static final int SEGMENTS = 16;
+
+    /**
+     * Minimum number of users per segment of caches bounded by users.
+     */
+    private static final int MIN_SEGMENT_ENTRIES = 8;
+
+    /**
+     * Estimated bytes of a cache entry besides its key set.
+     */
+    private static final int ENTRY_BYTES = 96;
+
+    /**
+     * Percentage of a segment used as admission window of W-TinyLFU.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * Loads the key set of a user missing in the cache.
+     */
+    public interface Loader {
+
+        /**
+         * Loads the key set of a user.
+         *
+         * @param paramUser
+         *            user name.
+         * @return
+         *         tags by dag key of the nodes the user owns.
+         */
+        LongLongHashMap load(final String paramUser);
+
+    }
+
+    /**
+     * Segments holding the users.
+     */
+    private final Segment[] mSegments;
+
+    /**
+     * Bound of the cache, {@link #BOUND_ENTRIES} or {@link #BOUND_BYTES}.
+     */
+    private final int mBound;
+
+    /**
+     * Time after the last access a user expires in nanoseconds, or
+     * {@link #UNLIMITED}.
+     */
+    private final long mExpireAfterAccess;
+
+    /**
+     * Number of lookups finding the user.
+     */
+    private final AtomicLong mHits = new AtomicLong();
+
+    /**
+     * Number of lookups not finding the user.
+     */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Number of users loaded on a miss.
+     */
+    private final AtomicLong mLoads = new AtomicLong();
+
+    /**
+     * Total time spent loading users in nanoseconds.
+     */
+    private final AtomicLong mLoadTime = new AtomicLong();
+
+    /**
+     * Number of users evicted or expired.
+     */
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * Constructor creates a new LRU key cache of {@link #DEFAULT_CAPACITY}
+     * users.
      */
     public KeyCache() {
+        this(POLICY_LRU, BOUND_ENTRIES, DEFAULT_CAPACITY, UNLIMITED);
+    }
 
-        mMap = new LinkedHashMap<String, LinkedList<Long>>(CACHE_CAPACITY) {
-            private static final long serialVersionUID = 1;
+    /**
+     * Constructor creates a new key cache.
+     *
+     * @param paramPolicy
+     *            eviction policy, {@link #POLICY_LRU} or
+     *            {@link #POLICY_TINY_LFU}.
+     * @param paramBound
+     *            what the maximum bounds, {@link #BOUND_ENTRIES} or
+     *            {@link #BOUND_BYTES}.
+     * @param paramMaximum
+     *            maximum number of users or bytes, or {@link #UNLIMITED}.
+     * @param paramExpireAfterAccess
+     *            milliseconds after the last access a user expires, or
+     *            {@link #UNLIMITED}.
+     */
+    public KeyCache(final int paramPolicy, final int paramBound,
+        final long paramMaximum, final long paramExpireAfterAccess) {
+        if (paramPolicy != POLICY_LRU && paramPolicy != POLICY_TINY_LFU) {
+            throw new IllegalArgumentException("Unknown policy: "
+                + paramPolicy);
+        }
+        if (paramBound != BOUND_ENTRIES && paramBound != BOUND_BYTES) {
+            throw new IllegalArgumentException("Unknown bound: " + paramBound);
+        }
+        if (paramMaximum < 0 || paramExpireAfterAccess < 0) {
+            throw new IllegalArgumentException("Negative bound!");
+        }
+        mBound = paramBound;
+        mExpireAfterAccess =
+            TimeUnit.MILLISECONDS.toNanos(paramExpireAfterAccess);
 
-            @Override
-            protected boolean removeEldestEntry(
-                final Map.Entry<String, LinkedList<Long>> mEldest) {
-                boolean returnVal = false;
-                if (size() > CACHE_CAPACITY) {
-                    returnVal = true;
-                }
-                return returnVal;
+        // small caches bounded by users get fewer segments, so the bound
+        // of each segment stays meaningful
+        int mCount = SEGMENTS;
+        if (paramMaximum != UNLIMITED && paramBound == BOUND_ENTRIES) {
+            while (mCount > 1
+                && paramMaximum / mCount < MIN_SEGMENT_ENTRIES) {
+                mCount >>>= 1;
+            }
+        }
+        mSegments = new Segment[mCount];
+        for (int i = 0; i < mCount; i++) {
+            long mMaximum = UNLIMITED;
+            if (paramMaximum != UNLIMITED) {
+                mMaximum =
+                    Math.max(1, paramMaximum / mCount
+                        + (i < paramMaximum % mCount ? 1 : 0));
             }
+            mSegments[i] =
+                new Segment(paramPolicy == POLICY_TINY_LFU, mMaximum);
+        }
+    }
 
-        };
+    /**
+     * Returns a copy of the stored key set of corresponding user.
+     *
+     * @param paramUser
+     *            User key.
+     * @return key set of user or null if the user is not cached.
+     */
+    public final LongHashSet get(final String paramUser) {
+        final Segment mSegment = segmentFor(paramUser);
+        synchronized (mSegment) {
+            final Node mNode = mSegment.lookup(paramUser);
+            return mNode == null ? null : keysOf(mNode.mKeys);
+        }
+    }
 
+    /**
+     * Returns a copy of the stored key set of corresponding user, loading it
+     * if the user is not cached.
+     *
+     * @param paramUser
+     *            User key.
+     * @param paramLoader
+     *            loader of missing users.
+     * @return key set of user.
+     */
+    public final LongHashSet get(final String paramUser,
+        final Loader paramLoader) {
+        final Segment mSegment = segmentFor(paramUser);
+        final long mStamp;
+        synchronized (mSegment) {
+            final Node mNode = mSegment.lookup(paramUser);
+            if (mNode != null) {
+                return keysOf(mNode.mKeys);
+            }
+            mStamp = mSegment.mInvalidations;
+        }
+        final LongLongHashMap mSet =
+            load(mSegment, paramUser, paramLoader, mStamp);
+        synchronized (mSegment) {
+            return keysOf(mSet);
+        }
     }
 
     /**
-     * Returns the stored <code>LinkedList</code> of corresponding user.
+     * Checks whether a user owns the key of a node, loading the user if it is
+     * not cached.
      *
      * @param paramUser
      *            User key.
-     * @return linked list of user.
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramLoader
+     *            loader of missing users.
+     * @return
+     *         true if the key set of the user contains the node.
      */
-    public final LinkedList<Long> get(final String paramUser) {
-        final LinkedList<Long> list = mMap.get(paramUser);
-        return list; // returns null if no value for this user exists in cache.
+    public final boolean contains(final String paramUser,
+        final long paramDAGKey, final Loader paramLoader) {
+        final Segment mSegment = segmentFor(paramUser);
+        final long mStamp;
+        synchronized (mSegment) {
+            final Node mNode = mSegment.lookup(paramUser);
+            if (mNode != null) {
+                return mNode.mKeys.containsKey(paramDAGKey);
+            }
+            mStamp = mSegment.mInvalidations;
+        }
+        final LongLongHashMap mSet =
+            load(mSegment, paramUser, paramLoader, mStamp);
+        synchronized (mSegment) {
+            return mSet.containsKey(paramDAGKey);
+        }
     }
 
     /**
      * Stores a new entry in cache consisting of a user name as key and
-     * a linked list for storing node keys as value.
+     * a set for storing node keys as value. The cache takes ownership of the
+     * set.
      *
      * @param paramUser
      *            user name as key.
-     * @param paramList
-     *            linked list as values.
+     * @param paramSet
+     *            tags by dag key as values.
      */
     public final void put(final String paramUser,
-        final LinkedList<Long> paramList) {
+        final LongLongHashMap paramSet) {
+        final Segment mSegment = segmentFor(paramUser);
+        synchronized (mSegment) {
+            mSegment.record(paramUser);
+            mSegment.put(paramUser, paramSet);
+        }
+    }
+
+    /**
+     * Adds keys to the key set of a user in one update, loading the user if
+     * it is not cached.
+     *
+     * @param paramUser
+     *            user name as key.
+     * @param paramKeys
+     *            tags by dag key to add, replacing older tags.
+     * @param paramLoader
+     *            loader of missing users.
+     */
+    public final void addAll(final String paramUser,
+        final LongLongHashMap paramKeys, final Loader paramLoader) {
+        final Segment mSegment = segmentFor(paramUser);
+        final long mStamp;
+        synchronized (mSegment) {
+            final Node mNode = mSegment.lookup(paramUser);
+            if (mNode != null) {
+                mSegment.putKeys(mNode, paramKeys);
+                return;
+            }
+            mStamp = mSegment.mInvalidations;
+        }
+        load(mSegment, paramUser, paramLoader, mStamp);
+        synchronized (mSegment) {
+            final Node mNode = mSegment.find(paramUser);
+            if (mNode != null) {
+                mSegment.putKeys(mNode, paramKeys);
+            }
+        }
+    }
 
-        mMap.put(paramUser, paramList);
+    /**
+     * Returns the tag of a key of a user, loading the user if it is not
+     * cached.
+     *
+     * @param paramUser
+     *            User key.
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramLoader
+     *            loader of missing users.
+     * @return
+     *         tag of the key or {@link #NO_TAG} if the user does not own it.
+     */
+    public final long getTag(final String paramUser, final long paramDAGKey,
+        final Loader paramLoader) {
+        final Segment mSegment = segmentFor(paramUser);
+        final long mStamp;
+        synchronized (mSegment) {
+            final Node mNode = mSegment.lookup(paramUser);
+            if (mNode != null) {
+                return mNode.mKeys.get(paramDAGKey, NO_TAG);
+            }
+            mStamp = mSegment.mInvalidations;
+        }
+        final LongLongHashMap mSet =
+            load(mSegment, paramUser, paramLoader, mStamp);
+        synchronized (mSegment) {
+            return mSet.get(paramDAGKey, NO_TAG);
+        }
+    }
+
+    /**
+     * Refreshes the keys of changed nodes in all cached users. A user owning
+     * a changed node gets its key tagged with the current revision and
+     * version, all other users lose it. Keys of other nodes stay untouched and
+     * no user is reloaded. Only cached users holding a changed key or owning a
+     * changed node are visited.
+     *
+     * @param paramChanged
+     *            current tags by dag key of all changed nodes,
+     *            {@link #NO_TAG} for removed ones.
+     * @param paramOwned
+     *            changed nodes by user owning them.
+     * @return
+     *         number of stale keys refreshed or removed.
+     */
+    public final int invalidate(final LongLongHashMap paramChanged,
+        final Map<String, LongHashSet> paramOwned) {
+        int mStale = 0;
+        for (final Segment aSegment : mSegments) {
+            synchronized (aSegment) {
+                mStale += aSegment.revoke(paramChanged, paramOwned);
+            }
+        }
+        for (final Map.Entry<String, LongHashSet> aEntry : paramOwned
+            .entrySet()) {
+            final Segment mSegment = segmentFor(aEntry.getKey());
+            synchronized (mSegment) {
+                mStale +=
+                    mSegment.refresh(aEntry.getKey(), aEntry.getValue(),
+                        paramChanged);
+            }
+        }
+        return mStale;
+    }
+
+    /**
+     * Returns the tag of a key at a revision and version.
+     *
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @return
+     *         tag.
+     */
+    public static long tag(final int paramRevision, final int paramVersion) {
+        return ((long)paramRevision << 32) | (paramVersion & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the revision of a tag.
+     *
+     * @param paramTag
+     *            tag of a key.
+     * @return
+     *         revision of node.
+     */
+    public static int revisionOf(final long paramTag) {
+        return (int)(paramTag >>> 32);
+    }
+
+    /**
+     * Returns the version of a tag.
+     *
+     * @param paramTag
+     *            tag of a key.
+     * @return
+     *         version of node.
+     */
+    public static int versionOf(final long paramTag) {
+        return (int)paramTag;
+    }
+
+    /**
+     * Removes a user from the cache.
+     *
+     * @param paramUser
+     *            user name as key.
+     */
+    public final void remove(final String paramUser) {
+        final Segment mSegment = segmentFor(paramUser);
+        synchronized (mSegment) {
+            mSegment.remove(paramUser);
+        }
     }
 
     /**
      * Clears the cache.
      */
     public final void clear() {
-        mMap.clear();
+        for (final Segment aSegment : mSegments) {
+            synchronized (aSegment) {
+                aSegment.clear();
+            }
+        }
     }
 
     /**
@@ -114,7 +504,29 @@ public class KeyCache {
      * @return the number of entries currently in the cache.
      */
     public final int usedEntries() {
-        return mMap.size();
+        int mSize = 0;
+        for (final Segment aSegment : mSegments) {
+            synchronized (aSegment) {
+                mSize += aSegment.size();
+            }
+        }
+        return mSize;
+    }
+
+    /**
+     * Returns the weight of all entries in the cache, in users or estimated
+     * bytes depending on the bound.
+     *
+     * @return the weight of the entries currently in the cache.
+     */
+    public final long weightedSize() {
+        long mWeight = 0;
+        for (final Segment aSegment : mSegments) {
+            synchronized (aSegment) {
+                mWeight += aSegment.mWindowWeight + aSegment.mMainWeight;
+            }
+        }
+        return mWeight;
     }
 
     /**
@@ -124,9 +536,718 @@ public class KeyCache {
      * @return a <code>Collection</code> with a copy of the cache content.
      */
 
-    public final Collection<Map.Entry<String, LinkedList<Long>>> getAll() {
-        return new ArrayList<Map.Entry<String, LinkedList<Long>>>(mMap
-            .entrySet());
+    public final Collection<Map.Entry<String, LongHashSet>> getAll() {
+        final List<Map.Entry<String, LongHashSet>> mEntries =
+            new ArrayList<Map.Entry<String, LongHashSet>>();
+        for (final Segment aSegment : mSegments) {
+            synchronized (aSegment) {
+                aSegment.collect(mEntries, aSegment.mWindow);
+                aSegment.collect(mEntries, aSegment.mMain);
+            }
+        }
+        return mEntries;
+    }
+
+    /**
+     * Returns a snapshot of the cache statistics.
+     *
+     * @return
+     *         hit, miss, load and eviction counts.
+     */
+    public final CacheStats getStats() {
+        return new CacheStats(mHits.get(), mMisses.get(), mLoads.get(),
+            mLoadTime.get(), mEvictions.get());
+    }
+
+    /**
+     * Loads a user outside of any lock, records the load time and stores the
+     * loaded key set. A load overlapping an invalidation of the segment may
+     * have read the user before the rekey, so it is dropped and repeated.
+     *
+     * @param paramSegment
+     *            segment of user.
+     * @param paramUser
+     *            user name.
+     * @param paramLoader
+     *            loader of missing users.
+     * @param paramStamp
+     *            invalidations of the segment when the user was missed.
+     * @return
+     *         key set of user, to be read holding the segment lock.
+     */
+    private LongLongHashMap load(final Segment paramSegment,
+        final String paramUser, final Loader paramLoader,
+        final long paramStamp) {
+        long mStamp = paramStamp;
+        while (true) {
+            final long mStart = System.nanoTime();
+            final LongLongHashMap mLoaded = paramLoader.load(paramUser);
+            mLoadTime.addAndGet(System.nanoTime() - mStart);
+            mLoads.incrementAndGet();
+            synchronized (paramSegment) {
+                final LongLongHashMap mSet =
+                    paramSegment.putLoaded(paramUser, mLoaded, mStamp);
+                if (mSet != null) {
+                    return mSet;
+                }
+                mStamp = paramSegment.mInvalidations;
+            }
+        }
+    }
+
+    /**
+     * Returns the segment of a user.
+     *
+     * @param paramUser
+     *            user name.
+     * @return
+     *         segment.
+     */
+    private Segment segmentFor(final String paramUser) {
+        final int h = paramUser.hashCode();
+        return mSegments[(h ^ (h >>> 16)) & (mSegments.length - 1)];
+    }
+
+    /**
+     * Returns the weight of a cache entry.
+     *
+     * @param paramUser
+     *            user name.
+     * @param paramSet
+     *            key set of user.
+     * @return
+     *         1 if bounded by users, else the estimated bytes.
+     */
+    private long weigh(final String paramUser, final LongLongHashMap paramSet) {
+        if (mBound == BOUND_ENTRIES) {
+            return 1;
+        }
+        return ENTRY_BYTES + 2L * paramUser.length()
+            + paramSet.estimateBytes();
+    }
+
+    /**
+     * Returns the dag keys of a key set.
+     *
+     * @param paramSet
+     *            tags by dag key.
+     * @return
+     *         copy of the dag keys.
+     */
+    private static LongHashSet keysOf(final LongLongHashMap paramSet) {
+        final LongHashSet mKeys = new LongHashSet(paramSet.size());
+        final LongIterator mIter = paramSet.keyIterator();
+        while (mIter.hasNext()) {
+            mKeys.add(mIter.next());
+        }
+        return mKeys;
+    }
+
+    /**
+     * Cache entry of a user.
+     */
+    private static final class Node {
+
+        /**
+         * User name.
+         */
+        private final String mUser;
+
+        /**
+         * Tags by dag key of the nodes the user owns.
+         */
+        private final LongLongHashMap mKeys;
+
+        /**
+         * Weight of the entry.
+         */
+        private long mWeight;
+
+        /**
+         * Time of the last access in nanoseconds.
+         */
+        private long mAccessed;
+
+        /**
+         * Whether the entry is in the admission window.
+         */
+        private boolean mInWindow;
+
+        /**
+         * Constructor.
+         *
+         * @param paramUser
+         *            user name.
+         * @param paramKeys
+         *            key set of user.
+         */
+        Node(final String paramUser, final LongLongHashMap paramKeys) {
+            this.mUser = paramUser;
+            this.mKeys = paramKeys;
+        }
+    }
+
+    /**
+     * Segment of the cache. Entries are kept in access order, so the least
+     * recently used entries come first. Without admission all entries live in
+     * the main area; with W-TinyLFU new entries enter the window first. The
+     * segment is its own lock.
+     */
+    private final class Segment {
+
+        /**
+         * Admission window of W-TinyLFU, in access order.
+         */
+        private final LinkedHashMap<String, Node> mWindow =
+            new LinkedHashMap<String, Node>(16, 0.75f, true);
+
+        /**
+         * Main area, in access order.
+         */
+        private final LinkedHashMap<String, Node> mMain =
+            new LinkedHashMap<String, Node>(16, 0.75f, true);
+
+        /**
+         * All entries by user, looked up without changing the access order.
+         */
+        private final Map<String, Node> mNodes = new HashMap<String, Node>();
+
+        /**
+         * Entries by dag key they hold.
+         */
+        private final LongObjectHashMap<Set<Node>> mHolders =
+            new LongObjectHashMap<Set<Node>>();
+
+        /**
+         * Frequencies of users, null without admission.
+         */
+        private final FrequencySketch mSketch;
+
+        /**
+         * Maximum weight of the segment, or {@link #UNLIMITED}.
+         */
+        private final long mMaximum;
+
+        /**
+         * Maximum weight of the window.
+         */
+        private final long mWindowMaximum;
+
+        /**
+         * Weight of the window.
+         */
+        private long mWindowWeight;
+
+        /**
+         * Weight of the main area.
+         */
+        private long mMainWeight;
+
+        /**
+         * Number of invalidations of the segment, so key sets loaded while
+         * one ran are not cached.
+         */
+        private long mInvalidations;
+
+        /**
+         * Constructor.
+         *
+         * @param paramAdmission
+         *            whether users are admitted by frequency.
+         * @param paramMaximum
+         *            maximum weight, or {@link #UNLIMITED}.
+         */
+        Segment(final boolean paramAdmission, final long paramMaximum) {
+            mMaximum = paramMaximum;
+            mWindowMaximum =
+                Math.max(1, paramMaximum * WINDOW_PERCENT / 100);
+            if (paramAdmission && paramMaximum != UNLIMITED) {
+                mSketch =
+                    new FrequencySketch(mBound == BOUND_ENTRIES
+                        ? (int)Math.min(paramMaximum, 1 << 20)
+                        : DEFAULT_CAPACITY);
+            } else {
+                mSketch = null;
+            }
+        }
+
+        /**
+         * Looks up a user, counts the hit or miss and marks the access.
+         *
+         * @param paramUser
+         *            user name.
+         * @return
+         *         entry of user or null.
+         */
+        Node lookup(final String paramUser) {
+            final long mNow = System.nanoTime();
+            expire(mNow);
+            record(paramUser);
+            final Node mNode = find(paramUser);
+            if (mNode == null) {
+                mMisses.incrementAndGet();
+            } else {
+                mHits.incrementAndGet();
+            }
+            return mNode;
+        }
+
+        /**
+         * Records a request of a user for admission.
+         *
+         * @param paramUser
+         *            user name.
+         */
+        void record(final String paramUser) {
+            if (mSketch != null) {
+                mSketch.increment(paramUser);
+            }
+        }
+
+        /**
+         * Finds the entry of a user, moving it to the end of the access
+         * order and marking the access time, so both areas stay ordered by
+         * access time.
+         *
+         * @param paramUser
+         *            user name.
+         * @return
+         *         entry of user or null.
+         */
+        Node find(final String paramUser) {
+            Node mNode = mWindow.get(paramUser);
+            if (mNode == null) {
+                mNode = mMain.get(paramUser);
+            }
+            if (mNode != null) {
+                mNode.mAccessed = System.nanoTime();
+            }
+            return mNode;
+        }
+
+        /**
+         * Stores a loaded key set unless another thread has loaded the user
+         * meanwhile or the segment has been invalidated since the load
+         * started.
+         *
+         * @param paramUser
+         *            user name.
+         * @param paramSet
+         *            loaded key set.
+         * @param paramStamp
+         *            invalidations of the segment before the load.
+         * @return
+         *         key set stored in the cache, or null if the loaded set may
+         *         hold revoked keys and has to be loaded again.
+         */
+        LongLongHashMap putLoaded(final String paramUser,
+            final LongLongHashMap paramSet, final long paramStamp) {
+            final Node mNode = find(paramUser);
+            if (mNode != null) {
+                return mNode.mKeys;
+            }
+            if (paramStamp != mInvalidations) {
+                return null;
+            }
+            put(paramUser, paramSet);
+            return paramSet;
+        }
+
+        /**
+         * Stores the key set of a user and evicts entries exceeding the
+         * bound.
+         *
+         * @param paramUser
+         *            user name.
+         * @param paramSet
+         *            key set.
+         */
+        void put(final String paramUser, final LongLongHashMap paramSet) {
+            remove(paramUser);
+            final Node mNode = new Node(paramUser, paramSet);
+            mNode.mWeight = weigh(paramUser, paramSet);
+            mNode.mAccessed = System.nanoTime();
+            mNodes.put(paramUser, mNode);
+            final LongIterator mIter = paramSet.keyIterator();
+            while (mIter.hasNext()) {
+                hold(mNode, mIter.next());
+            }
+            if (mSketch == null) {
+                mMain.put(paramUser, mNode);
+                mMainWeight += mNode.mWeight;
+            } else {
+                mNode.mInWindow = true;
+                mWindow.put(paramUser, mNode);
+                mWindowWeight += mNode.mWeight;
+            }
+            evict();
+        }
+
+        /**
+         * Adds keys to the key set of an entry.
+         *
+         * @param paramNode
+         *            cached entry.
+         * @param paramKeys
+         *            tags by dag key to add, replacing older tags.
+         */
+        void putKeys(final Node paramNode, final LongLongHashMap paramKeys) {
+            final LongIterator mIter = paramKeys.keyIterator();
+            while (mIter.hasNext()) {
+                final long mKey = mIter.next();
+                if (paramNode.mKeys.put(mKey, paramKeys.get(mKey, NO_TAG))) {
+                    hold(paramNode, mKey);
+                }
+            }
+            reweigh(paramNode);
+        }
+
+        /**
+         * Removes changed keys from all entries holding them whose user does
+         * not own the node anymore. Counts the invalidation, so key sets
+         * loaded before it are not cached afterwards.
+         *
+         * @param paramChanged
+         *            current tags by dag key of all changed nodes,
+         *            {@link #NO_TAG} for removed ones.
+         * @param paramOwned
+         *            changed nodes by user owning them.
+         * @return
+         *         number of keys removed.
+         */
+        int revoke(final LongLongHashMap paramChanged,
+            final Map<String, LongHashSet> paramOwned) {
+            mInvalidations++;
+            int mRemoved = 0;
+            final Set<Node> mChanged = new HashSet<Node>();
+            final List<Node> mLosing = new ArrayList<Node>();
+            final LongIterator mIter = paramChanged.keyIterator();
+            while (mIter.hasNext()) {
+                final long mKey = mIter.next();
+                final Set<Node> mHolding = mHolders.get(mKey);
+                if (mHolding == null) {
+                    continue;
+                }
+                final boolean mDeleted =
+                    paramChanged.get(mKey, NO_TAG) == NO_TAG;
+                for (final Node aNode : mHolding) {
+                    final LongHashSet mOwned = paramOwned.get(aNode.mUser);
+                    if (mDeleted || mOwned == null || !mOwned.contains(mKey)) {
+                        mLosing.add(aNode);
+                    }
+                }
+                for (final Node aNode : mLosing) {
+                    aNode.mKeys.remove(mKey);
+                    release(aNode, mKey);
+                    mChanged.add(aNode);
+                    mRemoved++;
+                }
+                mLosing.clear();
+            }
+            for (final Node aNode : mChanged) {
+                reweigh(aNode);
+            }
+            return mRemoved;
+        }
+
+        /**
+         * Tags the owned changed keys of a cached user with their current
+         * revision and version.
+         *
+         * @param paramUser
+         *            user name.
+         * @param paramOwned
+         *            changed nodes the user owns.
+         * @param paramChanged
+         *            current tags by dag key of all changed nodes,
+         *            {@link #NO_TAG} for removed ones.
+         * @return
+         *         number of keys refreshed.
+         */
+        int refresh(final String paramUser, final LongHashSet paramOwned,
+            final LongLongHashMap paramChanged) {
+            final Node mNode = mNodes.get(paramUser);
+            if (mNode == null) {
+                return 0;
+            }
+            int mRefreshed = 0;
+            final LongIterator mIter = paramOwned.iterator();
+            while (mIter.hasNext()) {
+                final long mKey = mIter.next();
+                final long mTag = paramChanged.get(mKey, NO_TAG);
+                if (mTag != NO_TAG && mNode.mKeys.get(mKey, NO_TAG) != mTag) {
+                    if (mNode.mKeys.put(mKey, mTag)) {
+                        hold(mNode, mKey);
+                    }
+                    mRefreshed++;
+                }
+            }
+            if (mRefreshed > 0) {
+                reweigh(mNode);
+            }
+            return mRefreshed;
+        }
+
+        /**
+         * Updates the weight of an entry after its key set changed.
+         *
+         * @param paramNode
+         *            changed entry.
+         */
+        void reweigh(final Node paramNode) {
+            if (mNodes.get(paramNode.mUser) != paramNode) {
+                // evicted meanwhile
+                return;
+            }
+            final long mWeight = weigh(paramNode.mUser, paramNode.mKeys);
+            if (paramNode.mInWindow) {
+                mWindowWeight += mWeight - paramNode.mWeight;
+            } else {
+                mMainWeight += mWeight - paramNode.mWeight;
+            }
+            paramNode.mWeight = mWeight;
+            if (mBound == BOUND_BYTES) {
+                evict();
+            }
+        }
+
+        /**
+         * Removes a user.
+         *
+         * @param paramUser
+         *            user name.
+         */
+        void remove(final String paramUser) {
+            final Node mNode = mNodes.get(paramUser);
+            if (mNode == null) {
+                return;
+            }
+            if (mNode.mInWindow) {
+                mWindow.remove(paramUser);
+                mWindowWeight -= mNode.mWeight;
+            } else {
+                mMain.remove(paramUser);
+                mMainWeight -= mNode.mWeight;
+            }
+            discard(mNode);
+        }
+
+        /**
+         * Removes all users.
+         */
+        void clear() {
+            mWindow.clear();
+            mMain.clear();
+            mNodes.clear();
+            mHolders.clear();
+            mWindowWeight = 0;
+            mMainWeight = 0;
+        }
+
+        /**
+         * Returns the number of users.
+         *
+         * @return
+         *         number of users.
+         */
+        int size() {
+            return mWindow.size() + mMain.size();
+        }
+
+        /**
+         * Adds copies of entries to a list.
+         *
+         * @param paramEntries
+         *            list to add to.
+         * @param paramArea
+         *            window or main area.
+         */
+        void collect(final List<Map.Entry<String, LongHashSet>> paramEntries,
+            final Map<String, Node> paramArea) {
+            for (final Node aNode : paramArea.values()) {
+                paramEntries
+                    .add(new AbstractMap.SimpleImmutableEntry<String, LongHashSet>(
+                        aNode.mUser, keysOf(aNode.mKeys)));
+            }
+        }
+
+        /**
+         * Removes users not accessed within the expiry time. As both areas
+         * are in access order, only their heads have to be checked.
+         *
+         * @param paramNow
+         *            current time in nanoseconds.
+         */
+        private void expire(final long paramNow) {
+            if (mExpireAfterAccess == UNLIMITED) {
+                return;
+            }
+            mWindowWeight -= expire(mWindow, paramNow);
+            mMainWeight -= expire(mMain, paramNow);
+        }
+
+        /**
+         * Removes users of an area not accessed within the expiry time.
+         *
+         * @param paramArea
+         *            window or main area.
+         * @param paramNow
+         *            current time in nanoseconds.
+         * @return
+         *         weight removed.
+         */
+        private long expire(final Map<String, Node> paramArea,
+            final long paramNow) {
+            long mRemoved = 0;
+            final Iterator<Node> mIter = paramArea.values().iterator();
+            while (mIter.hasNext()) {
+                final Node mNode = mIter.next();
+                if (paramNow - mNode.mAccessed < mExpireAfterAccess) {
+                    break;
+                }
+                mIter.remove();
+                discard(mNode);
+                mRemoved += mNode.mWeight;
+                mEvictions.incrementAndGet();
+            }
+            return mRemoved;
+        }
+
+        /**
+         * Evicts entries until the segment fits its bound. Entries leaving
+         * the window are admitted to the main area only if they are requested
+         * more often than the entries they would replace.
+         */
+        private void evict() {
+            if (mMaximum == UNLIMITED) {
+                return;
+            }
+            if (mSketch != null) {
+                while (mWindowWeight > mWindowMaximum && !mWindow.isEmpty()) {
+                    final Node mCandidate = removeEldest(mWindow);
+                    mWindowWeight -= mCandidate.mWeight;
+                    admit(mCandidate);
+                }
+            }
+            while (mWindowWeight + mMainWeight > mMaximum && !mMain.isEmpty()) {
+                final Node mNode = removeEldest(mMain);
+                discard(mNode);
+                mMainWeight -= mNode.mWeight;
+                mEvictions.incrementAndGet();
+            }
+            while (mWindowWeight + mMainWeight > mMaximum
+                && !mWindow.isEmpty()) {
+                final Node mNode = removeEldest(mWindow);
+                discard(mNode);
+                mWindowWeight -= mNode.mWeight;
+                mEvictions.incrementAndGet();
+            }
+        }
+
+        /**
+         * Moves an entry leaving the window into the main area if it wins
+         * against all least recently used entries it would replace there.
+         * Admission is decided before anything is evicted, so either the
+         * victims or the candidate are evicted, never both.
+         *
+         * @param paramCandidate
+         *            entry leaving the window.
+         */
+        private void admit(final Node paramCandidate) {
+            final int mFrequency = mSketch.frequency(paramCandidate.mUser);
+            long mExcess =
+                mWindowWeight + mMainWeight + paramCandidate.mWeight - mMaximum;
+            int mVictims = 0;
+            final Iterator<Node> mIter = mMain.values().iterator();
+            while (mExcess > 0) {
+                final Node mVictim = mIter.hasNext() ? mIter.next() : null;
+                if (mVictim == null
+                    || mFrequency <= mSketch.frequency(mVictim.mUser)) {
+                    // candidate is too heavy or loses against a victim
+                    discard(paramCandidate);
+                    mEvictions.incrementAndGet();
+                    return;
+                }
+                mVictims++;
+                mExcess -= mVictim.mWeight;
+            }
+
+            for (int i = 0; i < mVictims; i++) {
+                final Node mVictim = removeEldest(mMain);
+                discard(mVictim);
+                mMainWeight -= mVictim.mWeight;
+                mEvictions.incrementAndGet();
+            }
+            // appended to the end of main, so it counts as accessed now to
+            // keep main ordered by access time for expiry
+            paramCandidate.mInWindow = false;
+            paramCandidate.mAccessed = System.nanoTime();
+            mMain.put(paramCandidate.mUser, paramCandidate);
+            mMainWeight += paramCandidate.mWeight;
+        }
+
+        /**
+         * Removes the least recently used entry of an area.
+         *
+         * @param paramArea
+         *            non empty window or main area.
+         * @return
+         *         removed entry.
+         */
+        private Node removeEldest(final Map<String, Node> paramArea) {
+            final Iterator<Node> mIter = paramArea.values().iterator();
+            final Node mNode = mIter.next();
+            mIter.remove();
+            return mNode;
+        }
+
+        /**
+         * Drops an entry removed from its area from the lookup and the key
+         * index.
+         *
+         * @param paramNode
+         *            removed entry.
+         */
+        private void discard(final Node paramNode) {
+            mNodes.remove(paramNode.mUser);
+            final LongIterator mIter = paramNode.mKeys.keyIterator();
+            while (mIter.hasNext()) {
+                release(paramNode, mIter.next());
+            }
+        }
+
+        /**
+         * Indexes an entry as holder of a key.
+         *
+         * @param paramNode
+         *            cached entry.
+         * @param paramKey
+         *            dag key held.
+         */
+        private void hold(final Node paramNode, final long paramKey) {
+            Set<Node> mHolding = mHolders.get(paramKey);
+            if (mHolding == null) {
+                mHolding = new HashSet<Node>();
+                mHolders.put(paramKey, mHolding);
+            }
+            mHolding.add(paramNode);
+        }
+
+        /**
+         * Removes an entry from the holders of a key.
+         *
+         * @param paramNode
+         *            entry.
+         * @param paramKey
+         *            dag key no longer held.
+         */
+        private void release(final Node paramNode, final long paramKey) {
+            final Set<Node> mHolding = mHolders.get(paramKey);
+            if (mHolding != null && mHolding.remove(paramNode)
+                && mHolding.isEmpty()) {
+                mHolders.remove(paramKey);
+            }
+        }
 
     }
 }
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.cache;
+
+import encryptionlayer.collections.LongIterator;
+import encryptionlayer.collections.LongObjectHashMap;
+
+/**
+ * Client side key ring holding the secret keys of the nodes a user owns,
+ * along with their revision and version. Keys are added when key trails are
+ * unwrapped; keys of older revisions are kept, so data encrypted before a
+ * rekeying can still be decrypted.
+ *
+ * @author ptrk01
+ */
+public class KeyRing {
+
+    /**
+     * Keys by dag key of node.
+     */
+    private final LongObjectHashMap<Key> mKeys = new LongObjectHashMap<Key>();
+
+    /**
+     * Stores the secret key of a node at a revision and version, keeping the
+     * keys of other revisions and versions.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @param paramSecretKey
+     *            secret key of node at revision and version.
+     */
+    public final void put(final long paramDAGKey, final int paramRevision,
+        final int paramVersion, final byte[] paramSecretKey) {
+        final Key mOlder = mKeys.get(paramDAGKey);
+        if (mOlder != null && mOlder.mRevision == paramRevision
+            && mOlder.mVersion == paramVersion) {
+            mKeys.put(paramDAGKey, new Key(paramRevision, paramVersion,
+                paramSecretKey, mOlder.mOlder));
+        } else {
+            mKeys.put(paramDAGKey, new Key(paramRevision, paramVersion,
+                paramSecretKey, mOlder));
+        }
+    }
+
+    /**
+     * Returns the secret key of a node at the given revision and version.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @return
+     *         secret key or null if the ring holds no key of the node at
+     *         this revision and version.
+     */
+    public final byte[] get(final long paramDAGKey, final int paramRevision,
+        final int paramVersion) {
+        Key mKey = mKeys.get(paramDAGKey);
+        while (mKey != null) {
+            if (mKey.mRevision == paramRevision
+                && mKey.mVersion == paramVersion) {
+                return mKey.mSecretKey;
+            }
+            mKey = mKey.mOlder;
+        }
+        return null;
+    }
+
+    /**
+     * Removes all keys of a node.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     */
+    public final void remove(final long paramDAGKey) {
+        mKeys.remove(paramDAGKey);
+    }
+
+    /**
+     * Returns the number of nodes in the ring.
+     *
+     * @return
+     *         number of nodes.
+     */
+    public final int size() {
+        return mKeys.size();
+    }
+
+    /**
+     * Returns an iterator over the dag keys of all nodes in the ring.
+     *
+     * @return
+     *         dag key iterator.
+     */
+    public final LongIterator keyIterator() {
+        return mKeys.keyIterator();
+    }
+
+    /**
+     * Secret key of a node at a revision and version.
+     */
+    private static final class Key {
+
+        /**
+         * Revision of node.
+         */
+        private final int mRevision;
+
+        /**
+         * Version of node.
+         */
+        private final int mVersion;
+
+        /**
+         * Secret key of node.
+         */
+        private final byte[] mSecretKey;
+
+        /**
+         * Key of node stored before, or null.
+         */
+        private final Key mOlder;
+
+        /**
+         * Constructor.
+         *
+         * @param paramRevision
+         *            revision of node.
+         * @param paramVersion
+         *            version of node.
+         * @param paramSecretKey
+         *            secret key of node.
+         * @param paramOlder
+         *            key of node stored before, or null.
+         */
+        Key(final int paramRevision, final int paramVersion,
+            final byte[] paramSecretKey, final Key paramOlder) {
+            this.mRevision = paramRevision;
+            this.mVersion = paramVersion;
+            this.mSecretKey = paramSecretKey;
+            this.mOlder = paramOlder;
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.collections;
+
+/**
+ * Hashing helpers shared by the open addressing collections.
+ *
+ * @author ptrk01
+ */
+final class HashUtil {
+
+    /**
+     * Maximum fill ratio of the tables before they grow.
+     */
+    static final float LOAD_FACTOR = 0.6f;
+
+    /**
+     * Maximum capacity of the tables.
+     */
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    /**
+     * Utility class.
+     */
+    private HashUtil() {
+        // not used over here
+    }
+
+    /**
+     * Spreads the bits of a key, since dag keys are dense and would cluster
+     * with linear probing otherwise.
+     *
+     * @param paramKey
+     *            key to hash.
+     * @return
+     *         mixed hash value.
+     */
+    static int mix(final long paramKey) {
+        final long h = paramKey * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the table capacity, a power of two, for holding the given number
+     * of elements.
+     *
+     * @param paramExpected
+     *            expected number of elements.
+     * @return
+     *         table capacity.
+     */
+    static int capacityFor(final int paramExpected) {
+        final long mNeeded = (long)Math.ceil(paramExpected / LOAD_FACTOR) + 1;
+        int capacity = 2;
+        while (capacity < mNeeded) {
+            if (capacity == MAX_CAPACITY) {
+                throw new IllegalStateException("Table too large: "
+                    + paramExpected);
+            }
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.collections;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Growable array of primitive long values.
+ *
+ * @author ptrk01
+ */
+public final class LongArrayList {
+
+    /**
+     * Default capacity of a new list.
+     */
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * Values of the list.
+     */
+    private long[] mValues;
+
+    /**
+     * Number of values in the list.
+     */
+    private int mSize;
+
+    /**
+     * Constructor creating an empty list.
+     */
+    public LongArrayList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor creating an empty list with the given capacity.
+     *
+     * @param paramCapacity
+     *            initial capacity.
+     */
+    public LongArrayList(final int paramCapacity) {
+        mValues = new long[Math.max(paramCapacity, 1)];
+    }
+
+    /**
+     * Appends a value.
+     *
+     * @param paramValue
+     *            value to append.
+     */
+    public void add(final long paramValue) {
+        if (mSize == mValues.length) {
+            final long[] mNew = new long[mValues.length << 1];
+            System.arraycopy(mValues, 0, mNew, 0, mSize);
+            mValues = mNew;
+        }
+        mValues[mSize++] = paramValue;
+    }
+
+    /**
+     * Returns the value at the given position.
+     *
+     * @param paramIndex
+     *            position of value.
+     * @return
+     *         value.
+     */
+    public long get(final int paramIndex) {
+        checkIndex(paramIndex);
+        return mValues[paramIndex];
+    }
+
+    /**
+     * Replaces the value at the given position.
+     *
+     * @param paramIndex
+     *            position of value.
+     * @param paramValue
+     *            new value.
+     * @return
+     *         old value.
+     */
+    public long set(final int paramIndex, final long paramValue) {
+        checkIndex(paramIndex);
+        final long mOld = mValues[paramIndex];
+        mValues[paramIndex] = paramValue;
+        return mOld;
+    }
+
+    /**
+     * Removes the value at the given position.
+     *
+     * @param paramIndex
+     *            position of value.
+     * @return
+     *         removed value.
+     */
+    public long removeAt(final int paramIndex) {
+        checkIndex(paramIndex);
+        final long mOld = mValues[paramIndex];
+        System.arraycopy(mValues, paramIndex + 1, mValues, paramIndex, mSize
+            - paramIndex - 1);
+        mSize--;
+        return mOld;
+    }
+
+    /**
+     * Returns the first position of a value.
+     *
+     * @param paramValue
+     *            value to look for.
+     * @return
+     *         position of value or -1 if it is not contained.
+     */
+    public int indexOf(final long paramValue) {
+        for (int i = 0; i < mSize; i++) {
+            if (mValues[i] == paramValue) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether the list contains a value.
+     *
+     * @param paramValue
+     *            value to look for.
+     * @return
+     *         bool result.
+     */
+    public boolean contains(final long paramValue) {
+        return indexOf(paramValue) != -1;
+    }
+
+    /**
+     * Returns number of values.
+     *
+     * @return
+     *         size of list.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns whether the list is empty.
+     *
+     * @return
+     *         bool result.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Removes all values. The capacity is kept.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Returns a copy of all values.
+     *
+     * @return
+     *         array of values.
+     */
+    public long[] toArray() {
+        final long[] mResult = new long[mSize];
+        System.arraycopy(mValues, 0, mResult, 0, mSize);
+        return mResult;
+    }
+
+    /**
+     * Returns an iterator over all values. The list must not be changed while
+     * iterating.
+     *
+     * @return
+     *         iterator.
+     */
+    public LongIterator iterator() {
+        return new LongIterator() {
+            private int mPos;
+
+            public boolean hasNext() {
+                return mPos < mSize;
+            }
+
+            public long next() {
+                if (mPos >= mSize) {
+                    throw new NoSuchElementException();
+                }
+                return mValues[mPos++];
+            }
+        };
+    }
+
+    /**
+     * Checks whether the position is within the list.
+     *
+     * @param paramIndex
+     *            position to check.
+     */
+    private void checkIndex(final int paramIndex) {
+        if (paramIndex < 0 || paramIndex >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + paramIndex
+                + ", Size: " + mSize);
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.collections;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of primitive long values based on open addressing with linear probing.
+ * The value 0 marks free slots in the table and is tracked separately.
+ *
+ * @author ptrk01
+ */
+public final class LongHashSet {
+
+    /**
+     * Default number of expected values.
+     */
+    private static final int DEFAULT_EXPECTED = 8;
+
+    /**
+     * Marker of a free slot.
+     */
+    private static final long FREE = 0L;
+
+    /**
+     * Table of values.
+     */
+    private long[] mKeys;
+
+    /**
+     * Whether the set contains the value used as free marker.
+     */
+    private boolean mHasFree;
+
+    /**
+     * Number of values in the table, without the free marker.
+     */
+    private int mAssigned;
+
+    /**
+     * Number of values in the table before it grows.
+     */
+    private int mResizeAt;
+
+    /**
+     * Constructor creating an empty set.
+     */
+    public LongHashSet() {
+        this(DEFAULT_EXPECTED);
+    }
+
+    /**
+     * Constructor creating an empty set for the given number of values.
+     *
+     * @param paramExpected
+     *            expected number of values.
+     */
+    public LongHashSet(final int paramExpected) {
+        allocate(HashUtil.capacityFor(paramExpected));
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param paramKey
+     *            value to add.
+     * @return
+     *         true if the value has not been contained before.
+     */
+    public boolean add(final long paramKey) {
+        if (paramKey == FREE) {
+            final boolean mAdded = !mHasFree;
+            mHasFree = true;
+            return mAdded;
+        }
+        final int mMask = mKeys.length - 1;
+        int slot = HashUtil.mix(paramKey) & mMask;
+        while (mKeys[slot] != FREE) {
+            if (mKeys[slot] == paramKey) {
+                return false;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = paramKey;
+        if (++mAssigned >= mResizeAt) {
+            rehash(mKeys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Adds all values of an array.
+     *
+     * @param paramKeys
+     *            values to add.
+     */
+    public void addAll(final long[] paramKeys) {
+        for (long aKey : paramKeys) {
+            add(aKey);
+        }
+    }
+
+    /**
+     * Adds all values of another set.
+     *
+     * @param paramSet
+     *            values to add.
+     */
+    public void addAll(final LongHashSet paramSet) {
+        final LongIterator mIter = paramSet.iterator();
+        while (mIter.hasNext()) {
+            add(mIter.next());
+        }
+    }
+
+    /**
+     * Checks whether the set contains a value.
+     *
+     * @param paramKey
+     *            value to look for.
+     * @return
+     *         bool result.
+     */
+    public boolean contains(final long paramKey) {
+        if (paramKey == FREE) {
+            return mHasFree;
+        }
+        return slotOf(paramKey) != -1;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param paramKey
+     *            value to remove.
+     * @return
+     *         true if the value has been contained.
+     */
+    public boolean remove(final long paramKey) {
+        if (paramKey == FREE) {
+            final boolean mRemoved = mHasFree;
+            mHasFree = false;
+            return mRemoved;
+        }
+        final int slot = slotOf(paramKey);
+        if (slot == -1) {
+            return false;
+        }
+        shiftKeys(slot);
+        mAssigned--;
+        return true;
+    }
+
+    /**
+     * Returns number of values.
+     *
+     * @return
+     *         size of set.
+     */
+    public int size() {
+        return mAssigned + (mHasFree ? 1 : 0);
+    }
+
+    /**
+     * Returns whether the set is empty.
+     *
+     * @return
+     *         bool result.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Estimates the memory used by the set, dominated by its table.
+     *
+     * @return
+     *         estimated number of bytes.
+     */
+    public long estimateBytes() {
+        // object and array headers, fields
+        return 48 + 8L * mKeys.length;
+    }
+
+    /**
+     * Removes all values. The capacity is kept.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, FREE);
+        mAssigned = 0;
+        mHasFree = false;
+    }
+
+    /**
+     * Returns all values in no particular order.
+     *
+     * @return
+     *         array of values.
+     */
+    public long[] toArray() {
+        final long[] mResult = new long[size()];
+        int pos = 0;
+        for (long aKey : mKeys) {
+            if (aKey != FREE) {
+                mResult[pos++] = aKey;
+            }
+        }
+        if (mHasFree) {
+            mResult[pos] = FREE;
+        }
+        return mResult;
+    }
+
+    /**
+     * Returns an iterator over all values in no particular order. The set must
+     * not be changed while iterating.
+     *
+     * @return
+     *         iterator.
+     */
+    public LongIterator iterator() {
+        return new LongIterator() {
+            private int mSlot = nextSlot(0);
+
+            private boolean mFreeDone = !mHasFree;
+
+            public boolean hasNext() {
+                return mSlot < mKeys.length || !mFreeDone;
+            }
+
+            public long next() {
+                if (mSlot < mKeys.length) {
+                    final long mKey = mKeys[mSlot];
+                    mSlot = nextSlot(mSlot + 1);
+                    return mKey;
+                }
+                if (!mFreeDone) {
+                    mFreeDone = true;
+                    return FREE;
+                }
+                throw new NoSuchElementException();
+            }
+        };
+    }
+
+    /**
+     * Returns the next used slot starting from the given one.
+     *
+     * @param paramSlot
+     *            slot to start from.
+     * @return
+     *         next used slot or table length if there is none.
+     */
+    private int nextSlot(final int paramSlot) {
+        int slot = paramSlot;
+        while (slot < mKeys.length && mKeys[slot] == FREE) {
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a value.
+     *
+     * @param paramKey
+     *            value to look for, not the free marker.
+     * @return
+     *         slot of value or -1 if it is not contained.
+     */
+    private int slotOf(final long paramKey) {
+        final int mMask = mKeys.length - 1;
+        int slot = HashUtil.mix(paramKey) & mMask;
+        while (mKeys[slot] != FREE) {
+            if (mKeys[slot] == paramKey) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Frees a slot and shifts back the following values of its probe chain,
+     * so no tombstones are needed.
+     *
+     * @param paramSlot
+     *            slot to free.
+     */
+    private void shiftKeys(final int paramSlot) {
+        final int mMask = mKeys.length - 1;
+        int slot = paramSlot;
+        while (true) {
+            final int last = slot;
+            slot = (slot + 1) & mMask;
+            long key;
+            while (true) {
+                key = mKeys[slot];
+                if (key == FREE) {
+                    mKeys[last] = FREE;
+                    return;
+                }
+                final int ideal = HashUtil.mix(key) & mMask;
+                // move the value, if its ideal slot is not within (last, slot]
+                if (last <= slot ? last >= ideal || ideal > slot
+                    : last >= ideal && ideal > slot) {
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[last] = key;
+        }
+    }
+
+    /**
+     * Allocates a new table.
+     *
+     * @param paramCapacity
+     *            capacity of table, a power of two.
+     */
+    private void allocate(final int paramCapacity) {
+        mKeys = new long[paramCapacity];
+        mResizeAt =
+            Math.min(paramCapacity - 1,
+                (int)Math.ceil(paramCapacity * HashUtil.LOAD_FACTOR));
+    }
+
+    /**
+     * Moves all values into a table of the given capacity.
+     *
+     * @param paramCapacity
+     *            new capacity, a power of two.
+     */
+    private void rehash(final int paramCapacity) {
+        final long[] mOld = mKeys;
+        allocate(paramCapacity);
+        final int mMask = mKeys.length - 1;
+        for (long aKey : mOld) {
+            if (aKey != FREE) {
+                int slot = HashUtil.mix(aKey) & mMask;
+                while (mKeys[slot] != FREE) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = aKey;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.collections;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Map from primitive long keys to primitive long values based on open
+ * addressing with linear probing. The key 0 marks free slots in the table and
+ * is tracked separately. Missing keys are reported by a default value given
+ * by the caller.
+ *
+ * @author ptrk01
+ */
+public final class LongLongHashMap {
+
+    /**
+     * Default number of expected entries.
+     */
+    private static final int DEFAULT_EXPECTED = 8;
+
+    /**
+     * Marker of a free slot.
+     */
+    private static final long FREE = 0L;
+
+    /**
+     * Table of keys.
+     */
+    private long[] mKeys;
+
+    /**
+     * Table of values, parallel to keys.
+     */
+    private long[] mValues;
+
+    /**
+     * Whether the map contains the key used as free marker.
+     */
+    private boolean mHasFree;
+
+    /**
+     * Value of the key used as free marker.
+     */
+    private long mFreeValue;
+
+    /**
+     * Number of entries in the table, without the free marker.
+     */
+    private int mAssigned;
+
+    /**
+     * Number of entries in the table before it grows.
+     */
+    private int mResizeAt;
+
+    /**
+     * Constructor creating an empty map.
+     */
+    public LongLongHashMap() {
+        this(DEFAULT_EXPECTED);
+    }
+
+    /**
+     * Constructor creating an empty map for the given number of entries.
+     *
+     * @param paramExpected
+     *            expected number of entries.
+     */
+    public LongLongHashMap(final int paramExpected) {
+        allocate(HashUtil.capacityFor(paramExpected));
+    }
+
+    /**
+     * Puts an entry into the map.
+     *
+     * @param paramKey
+     *            key of entry.
+     * @param paramValue
+     *            value of entry.
+     * @return
+     *         true if the key has not been contained before.
+     */
+    public boolean put(final long paramKey, final long paramValue) {
+        if (paramKey == FREE) {
+            final boolean mAdded = !mHasFree;
+            mHasFree = true;
+            mFreeValue = paramValue;
+            return mAdded;
+        }
+        final int mMask = mKeys.length - 1;
+        int slot = HashUtil.mix(paramKey) & mMask;
+        while (mKeys[slot] != FREE) {
+            if (mKeys[slot] == paramKey) {
+                mValues[slot] = paramValue;
+                return false;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = paramKey;
+        mValues[slot] = paramValue;
+        if (++mAssigned >= mResizeAt) {
+            rehash(mKeys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Puts all entries of another map into the map.
+     *
+     * @param paramMap
+     *            map to put.
+     */
+    public void putAll(final LongLongHashMap paramMap) {
+        for (int i = 0; i < paramMap.mKeys.length; i++) {
+            if (paramMap.mKeys[i] != FREE) {
+                put(paramMap.mKeys[i], paramMap.mValues[i]);
+            }
+        }
+        if (paramMap.mHasFree) {
+            put(FREE, paramMap.mFreeValue);
+        }
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param paramKey
+     *            key to look for.
+     * @param paramDefault
+     *            value returned if the key is not contained.
+     * @return
+     *         value or the default if the key is not contained.
+     */
+    public long get(final long paramKey, final long paramDefault) {
+        if (paramKey == FREE) {
+            return mHasFree ? mFreeValue : paramDefault;
+        }
+        final int slot = slotOf(paramKey);
+        return slot == -1 ? paramDefault : mValues[slot];
+    }
+
+    /**
+     * Checks whether the map contains a key.
+     *
+     * @param paramKey
+     *            key to look for.
+     * @return
+     *         bool result.
+     */
+    public boolean containsKey(final long paramKey) {
+        if (paramKey == FREE) {
+            return mHasFree;
+        }
+        return slotOf(paramKey) != -1;
+    }
+
+    /**
+     * Removes the entry of a key.
+     *
+     * @param paramKey
+     *            key to remove.
+     * @return
+     *         true if the key has been contained.
+     */
+    public boolean remove(final long paramKey) {
+        if (paramKey == FREE) {
+            final boolean mRemoved = mHasFree;
+            mHasFree = false;
+            return mRemoved;
+        }
+        final int slot = slotOf(paramKey);
+        if (slot == -1) {
+            return false;
+        }
+        shiftKeys(slot);
+        mAssigned--;
+        return true;
+    }
+
+    /**
+     * Returns number of entries.
+     *
+     * @return
+     *         size of map.
+     */
+    public int size() {
+        return mAssigned + (mHasFree ? 1 : 0);
+    }
+
+    /**
+     * Returns whether the map is empty.
+     *
+     * @return
+     *         bool result.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Removes all entries. The capacity is kept.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, FREE);
+        mAssigned = 0;
+        mHasFree = false;
+    }
+
+    /**
+     * Estimates the memory used by the map, dominated by its tables.
+     *
+     * @return
+     *         estimated number of bytes.
+     */
+    public long estimateBytes() {
+        // object and array headers, fields
+        return 72 + 16L * mKeys.length;
+    }
+
+    /**
+     * Returns an iterator over all keys in no particular order. The map must
+     * not be changed while iterating.
+     *
+     * @return
+     *         iterator.
+     */
+    public LongIterator keyIterator() {
+        return new LongIterator() {
+            private int mSlot = nextSlot(0);
+
+            private boolean mFreeDone = !mHasFree;
+
+            public boolean hasNext() {
+                return mSlot < mKeys.length || !mFreeDone;
+            }
+
+            public long next() {
+                if (mSlot < mKeys.length) {
+                    final long mKey = mKeys[mSlot];
+                    mSlot = nextSlot(mSlot + 1);
+                    return mKey;
+                }
+                if (!mFreeDone) {
+                    mFreeDone = true;
+                    return FREE;
+                }
+                throw new NoSuchElementException();
+            }
+        };
+    }
+
+    /**
+     * Returns the next used slot starting from the given one.
+     *
+     * @param paramSlot
+     *            slot to start from.
+     * @return
+     *         next used slot or table length if there is none.
+     */
+    private int nextSlot(final int paramSlot) {
+        int slot = paramSlot;
+        while (slot < mKeys.length && mKeys[slot] == FREE) {
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a key.
+     *
+     * @param paramKey
+     *            key to look for, not the free marker.
+     * @return
+     *         slot of key or -1 if it is not contained.
+     */
+    private int slotOf(final long paramKey) {
+        final int mMask = mKeys.length - 1;
+        int slot = HashUtil.mix(paramKey) & mMask;
+        while (mKeys[slot] != FREE) {
+            if (mKeys[slot] == paramKey) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Frees a slot and shifts back the following entries of its probe chain,
+     * so no tombstones are needed.
+     *
+     * @param paramSlot
+     *            slot to free.
+     */
+    private void shiftKeys(final int paramSlot) {
+        final int mMask = mKeys.length - 1;
+        int slot = paramSlot;
+        while (true) {
+            final int last = slot;
+            slot = (slot + 1) & mMask;
+            long key;
+            while (true) {
+                key = mKeys[slot];
+                if (key == FREE) {
+                    mKeys[last] = FREE;
+                    return;
+                }
+                final int ideal = HashUtil.mix(key) & mMask;
+                // move the entry, if its ideal slot is not within (last, slot]
+                if (last <= slot ? last >= ideal || ideal > slot
+                    : last >= ideal && ideal > slot) {
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[last] = key;
+            mValues[last] = mValues[slot];
+        }
+    }
+
+    /**
+     * Allocates new tables.
+     *
+     * @param paramCapacity
+     *            capacity of tables, a power of two.
+     */
+    private void allocate(final int paramCapacity) {
+        mKeys = new long[paramCapacity];
+        mValues = new long[paramCapacity];
+        mResizeAt =
+            Math.min(paramCapacity - 1,
+                (int)Math.ceil(paramCapacity * HashUtil.LOAD_FACTOR));
+    }
+
+    /**
+     * Moves all entries into tables of the given capacity.
+     *
+     * @param paramCapacity
+     *            new capacity, a power of two.
+     */
+    private void rehash(final int paramCapacity) {
+        final long[] mOldKeys = mKeys;
+        final long[] mOldValues = mValues;
+        allocate(paramCapacity);
+        final int mMask = mKeys.length - 1;
+        for (int i = 0; i < mOldKeys.length; i++) {
+            if (mOldKeys[i] != FREE) {
+                int slot = HashUtil.mix(mOldKeys[i]) & mMask;
+                while (mKeys[slot] != FREE) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = mOldKeys[i];
+                mValues[slot] = mOldValues[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.collections;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Map from primitive long keys to objects based on open addressing with
+ * linear probing. The key 0 marks free slots in the table and is tracked
+ * separately.
+ *
+ * @param <V>
+ *            type of values.
+ * @author ptrk01
+ */
+public final class LongObjectHashMap<V> {
+
+    /**
+     * Default number of expected entries.
+     */
+    private static final int DEFAULT_EXPECTED = 8;
+
+    /**
+     * Marker of a free slot.
+     */
+    private static final long FREE = 0L;
+
+    /**
+     * Table of keys.
+     */
+    private long[] mKeys;
+
+    /**
+     * Table of values, parallel to keys.
+     */
+    private Object[] mValues;
+
+    /**
+     * Whether the map contains the key used as free marker.
+     */
+    private boolean mHasFree;
+
+    /**
+     * Value of the key used as free marker.
+     */
+    private V mFreeValue;
+
+    /**
+     * Number of entries in the table, without the free marker.
+     */
+    private int mAssigned;
+
+    /**
+     * Number of entries in the table before it grows.
+     */
+    private int mResizeAt;
+
+    /**
+     * Constructor creating an empty map.
+     */
+    public LongObjectHashMap() {
+        this(DEFAULT_EXPECTED);
+    }
+
+    /**
+     * Constructor creating an empty map for the given number of entries.
+     *
+     * @param paramExpected
+     *            expected number of entries.
+     */
+    public LongObjectHashMap(final int paramExpected) {
+        allocate(HashUtil.capacityFor(paramExpected));
+    }
+
+    /**
+     * Puts an entry into the map.
+     *
+     * @param paramKey
+     *            key of entry.
+     * @param paramValue
+     *            value of entry.
+     * @return
+     *         old value of key or null.
+     */
+    public V put(final long paramKey, final V paramValue) {
+        if (paramKey == FREE) {
+            final V mOld = mFreeValue;
+            mHasFree = true;
+            mFreeValue = paramValue;
+            return mOld;
+        }
+        final int mMask = mKeys.length - 1;
+        int slot = HashUtil.mix(paramKey) & mMask;
+        while (mKeys[slot] != FREE) {
+            if (mKeys[slot] == paramKey) {
+                final V mOld = valueAt(slot);
+                mValues[slot] = paramValue;
+                return mOld;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = paramKey;
+        mValues[slot] = paramValue;
+        if (++mAssigned >= mResizeAt) {
+            rehash(mKeys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param paramKey
+     *            key to look for.
+     * @return
+     *         value or null if the key is not contained.
+     */
+    public V get(final long paramKey) {
+        if (paramKey == FREE) {
+            return mFreeValue;
+        }
+        final int slot = slotOf(paramKey);
+        return slot == -1 ? null : valueAt(slot);
+    }
+
+    /**
+     * Checks whether the map contains a key.
+     *
+     * @param paramKey
+     *            key to look for.
+     * @return
+     *         bool result.
+     */
+    public boolean containsKey(final long paramKey) {
+        if (paramKey == FREE) {
+            return mHasFree;
+        }
+        return slotOf(paramKey) != -1;
+    }
+
+    /**
+     * Removes the entry of a key.
+     *
+     * @param paramKey
+     *            key to remove.
+     * @return
+     *         old value of key or null.
+     */
+    public V remove(final long paramKey) {
+        if (paramKey == FREE) {
+            final V mOld = mFreeValue;
+            mHasFree = false;
+            mFreeValue = null;
+            return mOld;
+        }
+        final int slot = slotOf(paramKey);
+        if (slot == -1) {
+            return null;
+        }
+        final V mOld = valueAt(slot);
+        shiftKeys(slot);
+        mAssigned--;
+        return mOld;
+    }
+
+    /**
+     * Returns number of entries.
+     *
+     * @return
+     *         size of map.
+     */
+    public int size() {
+        return mAssigned + (mHasFree ? 1 : 0);
+    }
+
+    /**
+     * Returns whether the map is empty.
+     *
+     * @return
+     *         bool result.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Removes all entries. The capacity is kept.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, FREE);
+        Arrays.fill(mValues, null);
+        mAssigned = 0;
+        mHasFree = false;
+        mFreeValue = null;
+    }
+
+    /**
+     * Returns an iterator over all keys in no particular order. The map must
+     * not be changed while iterating.
+     *
+     * @return
+     *         iterator.
+     */
+    public LongIterator keyIterator() {
+        return new LongIterator() {
+            private int mSlot = nextSlot(0);
+
+            private boolean mFreeDone = !mHasFree;
+
+            public boolean hasNext() {
+                return mSlot < mKeys.length || !mFreeDone;
+            }
+
+            public long next() {
+                if (mSlot < mKeys.length) {
+                    final long mKey = mKeys[mSlot];
+                    mSlot = nextSlot(mSlot + 1);
+                    return mKey;
+                }
+                if (!mFreeDone) {
+                    mFreeDone = true;
+                    return FREE;
+                }
+                throw new NoSuchElementException();
+            }
+        };
+    }
+
+    /**
+     * Returns the value stored in a slot.
+     *
+     * @param paramSlot
+     *            slot of value.
+     * @return
+     *         value.
+     */
+    @SuppressWarnings("unchecked")
+    private V valueAt(final int paramSlot) {
+        return (V)mValues[paramSlot];
+    }
+
+    /**
+     * Returns the next used slot starting from the given one.
+     *
+     * @param paramSlot
+     *            slot to start from.
+     * @return
+     *         next used slot or table length if there is none.
+     */
+    private int nextSlot(final int paramSlot) {
+        int slot = paramSlot;
+        while (slot < mKeys.length && mKeys[slot] == FREE) {
+            slot++;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a key.
+     *
+     * @param paramKey
+     *            key to look for, not the free marker.
+     * @return
+     *         slot of key or -1 if it is not contained.
+     */
+    private int slotOf(final long paramKey) {
+        final int mMask = mKeys.length - 1;
+        int slot = HashUtil.mix(paramKey) & mMask;
+        while (mKeys[slot] != FREE) {
+            if (mKeys[slot] == paramKey) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Frees a slot and shifts back the following entries of its probe chain,
+     * so no tombstones are needed.
+     *
+     * @param paramSlot
+     *            slot to free.
+     */
+    private void shiftKeys(final int paramSlot) {
+        final int mMask = mKeys.length - 1;
+        int slot = paramSlot;
+        while (true) {
+            final int last = slot;
+            slot = (slot + 1) & mMask;
+            long key;
+            while (true) {
+                key = mKeys[slot];
+                if (key == FREE) {
+                    mKeys[last] = FREE;
+                    mValues[last] = null;
+                    return;
+                }
+                final int ideal = HashUtil.mix(key) & mMask;
+                // move the entry, if its ideal slot is not within (last, slot]
+                if (last <= slot ? last >= ideal || ideal > slot
+                    : last >= ideal && ideal > slot) {
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[last] = key;
+            mValues[last] = mValues[slot];
+        }
+    }
+
+    /**
+     * Allocates new tables.
+     *
+     * @param paramCapacity
+     *            capacity of tables, a power of two.
+     */
+    private void allocate(final int paramCapacity) {
+        mKeys = new long[paramCapacity];
+        mValues = new Object[paramCapacity];
+        mResizeAt =
+            Math.min(paramCapacity - 1,
+                (int)Math.ceil(paramCapacity * HashUtil.LOAD_FACTOR));
+    }
+
+    /**
+     * Moves all entries into tables of the given capacity.
+     *
+     * @param paramCapacity
+     *            new capacity, a power of two.
+     */
+    private void rehash(final int paramCapacity) {
+        final long[] mOldKeys = mKeys;
+        final Object[] mOldValues = mValues;
+        allocate(paramCapacity);
+        final int mMask = mKeys.length - 1;
+        for (int i = 0; i < mOldKeys.length; i++) {
+            if (mOldKeys[i] != FREE) {
+                int slot = HashUtil.mix(mOldKeys[i]) & mMask;
+                while (mKeys[slot] != FREE) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = mOldKeys[i];
+                mValues[slot] = mOldValues[i];
+            }
+        }
+    }
+
+}
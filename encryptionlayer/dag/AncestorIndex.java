@@ -0,0 +1,417 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.dag;
+
+import java.util.Arrays;
+
+/**
+ * Ancestor closure index of a {@link DAGGraph}. For every node the rows of
+ * all its ancestors are kept as sorted primitive array, so the set of nodes
+ * affected by an update is a lookup instead of a traversal. The index is
+ * maintained incrementally: an added edge pushes the new ancestors down to
+ * the descendants of the child, a removed edge recomputes the closures of the
+ * child and its descendants in topological order.
+ *
+ * @author ptrk01
+ */
+public class AncestorIndex {
+
+    /**
+     * Closure of nodes without ancestors.
+     */
+    private static final int[] EMPTY = new int[0];
+
+    /**
+     * Graph the index belongs to.
+     */
+    private final DAGGraph mGraph;
+
+    /**
+     * Sorted ancestor rows of each node, null for non existing nodes.
+     */
+    private int[][] mClosures;
+
+    /**
+     * Visit stamps of the maintenance traversals.
+     */
+    private int[] mVisited;
+
+    /**
+     * Position of each visited node within the current traversal.
+     */
+    private int[] mSlots;
+
+    /**
+     * Current traversal stamp.
+     */
+    private int mEpoch;
+
+    /**
+     * Constructor.
+     *
+     * @param paramGraph
+     *            graph to index.
+     */
+    public AncestorIndex(final DAGGraph paramGraph) {
+        mGraph = paramGraph;
+        mClosures = new int[0][];
+        mVisited = new int[0];
+        mSlots = new int[0];
+    }
+
+    /**
+     * Returns sorted ancestor rows of a node. The returned array must not be
+     * modified.
+     *
+     * @param paramNode
+     *            row of node.
+     * @return
+     *         ancestors of node.
+     */
+    public final int[] get(final int paramNode) {
+        final int[] closure =
+            paramNode < mClosures.length ? mClosures[paramNode] : null;
+        return closure == null ? EMPTY : closure;
+    }
+
+    /**
+     * Checks whether a node is an ancestor of another node.
+     *
+     * @param paramAncestor
+     *            row of possible ancestor.
+     * @param paramNode
+     *            row of node.
+     * @return
+     *         bool result.
+     */
+    public final boolean isAncestor(final int paramAncestor,
+        final int paramNode) {
+        return Arrays.binarySearch(get(paramNode), paramAncestor) >= 0;
+    }
+
+    /**
+     * Registers a new node without any ancestors.
+     *
+     * @param paramNode
+     *            row of node.
+     */
+    final void addNode(final int paramNode) {
+        ensureRows(paramNode + 1);
+        mClosures[paramNode] = EMPTY;
+    }
+
+    /**
+     * Drops the closure of a removed node. All edges of the node have to be
+     * removed before.
+     *
+     * @param paramNode
+     *            row of node.
+     */
+    final void removeNode(final int paramNode) {
+        if (paramNode < mClosures.length) {
+            mClosures[paramNode] = null;
+        }
+    }
+
+    /**
+     * Drops all closures.
+     */
+    final void clear() {
+        mClosures = new int[0][];
+        mVisited = new int[0];
+        mSlots = new int[0];
+        mEpoch = 0;
+    }
+
+    /**
+     * Updates the index after an edge has been added to the graph. The
+     * parent and its ancestors are added to the closure of the child and its
+     * descendants. Propagation stops at nodes which already hold all of them.
+     *
+     * @param paramParent
+     *            row of parent.
+     * @param paramChild
+     *            row of child.
+     */
+    final void edgeAdded(final int paramParent, final int paramChild) {
+        final int[] delta = insert(get(paramParent), paramParent);
+
+        int[] queue = new int[] {
+            paramChild
+        };
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            final int node = queue[head++];
+            final int[] closure = get(node);
+            if (containsAll(closure, delta)) {
+                continue;
+            }
+            mClosures[node] = union(closure, delta);
+            final int childs = mGraph.childCount(node);
+            if (tail + childs > queue.length) {
+                queue = Arrays.copyOf(queue, Math.max(tail + childs,
+                    queue.length * 2));
+            }
+            for (int i = 0; i < childs; i++) {
+                queue[tail++] = (int)mGraph.child(node, i);
+            }
+        }
+    }
+
+    /**
+     * Updates the index after an edge has been removed from the graph. The
+     * closures of the child and all its descendants are recomputed from their
+     * remaining parents.
+     *
+     * @param paramChild
+     *            row of child.
+     */
+    final void edgeRemoved(final int paramChild) {
+        nextEpoch();
+
+        // collect child and all its descendants
+        int[] affected = new int[] {
+            paramChild
+        };
+        mVisited[paramChild] = mEpoch;
+        int count = 1;
+        for (int head = 0; head < count; head++) {
+            final int node = affected[head];
+            final int childs = mGraph.childCount(node);
+            for (int i = 0; i < childs; i++) {
+                final int aChild = (int)mGraph.child(node, i);
+                if (mVisited[aChild] != mEpoch) {
+                    mVisited[aChild] = mEpoch;
+                    if (count == affected.length) {
+                        affected = Arrays.copyOf(affected, count * 2);
+                    }
+                    affected[count++] = aChild;
+                }
+            }
+        }
+
+        // count parents within the affected nodes for topological ordering
+        final int[] pending = new int[count];
+        for (int i = 0; i < count; i++) {
+            final int node = affected[i];
+            mSlots[node] = i;
+            final int parents = mGraph.parentCount(node);
+            for (int j = 0; j < parents; j++) {
+                if (mVisited[(int)mGraph.parent(node, j)] == mEpoch) {
+                    pending[i]++;
+                }
+            }
+        }
+
+        final int[] queue = new int[count];
+        int tail = 0;
+        for (int i = 0; i < count; i++) {
+            if (pending[i] == 0) {
+                queue[tail++] = affected[i];
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            final int node = queue[head];
+            mClosures[node] = compute(node);
+            final int childs = mGraph.childCount(node);
+            for (int i = 0; i < childs; i++) {
+                final int aChild = (int)mGraph.child(node, i);
+                if (--pending[mSlots[aChild]] == 0) {
+                    queue[tail++] = aChild;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the closures of all nodes of the graph in topological order.
+     */
+    final void rebuild() {
+        final int rows = mClosures.length;
+        final int[] pending = new int[rows];
+        final int[] queue = new int[rows];
+        int tail = 0;
+        for (int node = 0; node < rows; node++) {
+            if (mClosures[node] != null) {
+                pending[node] = mGraph.parentCount(node);
+                if (pending[node] == 0) {
+                    queue[tail++] = node;
+                }
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            final int node = queue[head];
+            mClosures[node] = compute(node);
+            final int childs = mGraph.childCount(node);
+            for (int i = 0; i < childs; i++) {
+                final int aChild = (int)mGraph.child(node, i);
+                if (--pending[aChild] == 0) {
+                    queue[tail++] = aChild;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the closure of a node from the closures of its parents.
+     *
+     * @param paramNode
+     *            row of node.
+     * @return
+     *         sorted ancestor rows.
+     */
+    private int[] compute(final int paramNode) {
+        int[] closure = EMPTY;
+        final int parents = mGraph.parentCount(paramNode);
+        for (int i = 0; i < parents; i++) {
+            final int aParent = (int)mGraph.parent(paramNode, i);
+            closure = union(closure, insert(get(aParent), aParent));
+        }
+        return closure;
+    }
+
+    /**
+     * Grows the closure array.
+     *
+     * @param paramRows
+     *            number of rows needed.
+     */
+    private void ensureRows(final int paramRows) {
+        if (paramRows > mClosures.length) {
+            mClosures =
+                Arrays.copyOf(mClosures, Math.max(paramRows,
+                    mClosures.length * 2));
+        }
+    }
+
+    /**
+     * Starts a new traversal by increasing the visit stamp.
+     */
+    private void nextEpoch() {
+        if (mVisited.length < mClosures.length) {
+            mVisited = new int[mClosures.length];
+            mSlots = new int[mClosures.length];
+            mEpoch = 0;
+        }
+        mEpoch++;
+        if (mEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(mVisited, 0);
+            mEpoch = 1;
+        }
+    }
+
+    /**
+     * Inserts a value into a sorted array.
+     *
+     * @param paramArray
+     *            sorted array.
+     * @param paramValue
+     *            value to insert.
+     * @return
+     *         new sorted array or the given one if it already holds the value.
+     */
+    private static int[] insert(final int[] paramArray, final int paramValue) {
+        final int pos = Arrays.binarySearch(paramArray, paramValue);
+        if (pos >= 0) {
+            return paramArray;
+        }
+        final int insertion = -pos - 1;
+        final int[] array = new int[paramArray.length + 1];
+        System.arraycopy(paramArray, 0, array, 0, insertion);
+        array[insertion] = paramValue;
+        System.arraycopy(paramArray, insertion, array, insertion + 1,
+            paramArray.length - insertion);
+        return array;
+    }
+
+    /**
+     * Merges two sorted arrays without duplicates.
+     *
+     * @param paramFirst
+     *            first sorted array.
+     * @param paramSecond
+     *            second sorted array.
+     * @return
+     *         sorted union.
+     */
+    private static int[] union(final int[] paramFirst, final int[] paramSecond) {
+        if (paramFirst.length == 0) {
+            return paramSecond;
+        }
+        if (paramSecond.length == 0) {
+            return paramFirst;
+        }
+        final int[] array = new int[paramFirst.length + paramSecond.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < paramFirst.length && j < paramSecond.length) {
+            if (paramFirst[i] < paramSecond[j]) {
+                array[k++] = paramFirst[i++];
+            } else if (paramFirst[i] > paramSecond[j]) {
+                array[k++] = paramSecond[j++];
+            } else {
+                array[k++] = paramFirst[i++];
+                j++;
+            }
+        }
+        while (i < paramFirst.length) {
+            array[k++] = paramFirst[i++];
+        }
+        while (j < paramSecond.length) {
+            array[k++] = paramSecond[j++];
+        }
+        return k == array.length ? array : Arrays.copyOf(array, k);
+    }
+
+    /**
+     * Checks whether a sorted array contains all values of another one.
+     *
+     * @param paramArray
+     *            sorted array.
+     * @param paramValues
+     *            sorted values to look for.
+     * @return
+     *         bool result.
+     */
+    private static boolean containsAll(final int[] paramArray,
+        final int[] paramValues) {
+        int i = 0;
+        for (int aValue : paramValues) {
+            while (i < paramArray.length && paramArray[i] < aValue) {
+                i++;
+            }
+            if (i == paramArray.length || paramArray[i] != aValue) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -28,15 +28,37 @@
 
 package encryptionlayer.dag;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
+import encrpytionlayer.exception.TTEncryptionException;
 import encryptionlayer.cache.KeyCache;
+import encryptionlayer.cache.KeyRing;
+import encryptionlayer.collections.LongIterator;
+import encryptionlayer.collections.LongLongHashMap;
 import encryptionlayer.database.KeyManagerDatabase;
 import encryptionlayer.database.KeySelectorDatabase;
+import encryptionlayer.database.model.DAGSelector;
+import encryptionlayer.database.model.DataKey;
+import encryptionlayer.database.model.KeySelector;
+import encryptionlayer.utils.CipherHeader;
+import encryptionlayer.utils.DecryptingInputStream;
+import encryptionlayer.utils.EncryptingOutputStream;
+import encryptionlayer.utils.KeyTrail;
+import encryptionlayer.utils.KeyTrailBatch;
+import encryptionlayer.utils.KeyTrailDecryptor;
 import encryptionlayer.utils.NodeEncryption;
+import encryptionlayer.utils.ParallelEncryption;
+import encryptionlayer.utils.StreamEncryption;
 
 /**
  * Class represents the client side handler.
@@ -46,50 +68,161 @@ import encryptionlayer.utils.NodeEncryption;
 public class ClientHandler {
 
     /**
-     * Decrypts key trails and put it to users key cache to make it available to
-     * encrypt/decrypt data.
-     *
-     * @param paramKeyTails
-     *            map of key trails.
+     * Loads the keys of users missing in the key cache from their key
+     * manager, tagged with the current revision and version of the nodes.
      */
-    public final void decryptKeyTrails(final Map<Long, byte[]> paramKeyTails) {
-        // if map contains no key trails user has been completely removed
-        // from DAG and all keys for user has to be removed.
-        if (paramKeyTails.size() != 0) {
+    private static final KeyCache.Loader KEY_MANAGER_LOADER =
+        new KeyCache.Loader() {
+            @Override
+            public LongLongHashMap load(final String paramUser) {
+                final Set<Long> keySet =
+                    Controller.getInstance().getManDb().getEntry(paramUser)
+                        .getKeySet();
 
-            if (Controller.getInstance().getKeyCache().get(Controller.getInstance().getUser()) == null) {
-                initKeyCacheKeys(Controller.getInstance().getUser());
+                final LongLongHashMap keys =
+                    new LongLongHashMap(keySet.size());
+                final Iterator<Long> mIter = keySet.iterator();
+                while (mIter.hasNext()) {
+                    final long mKey = mIter.next();
+                    final DAGSelector mNode =
+                        Controller.getInstance().getDAGDb().getEntry(mKey);
+                    if (mNode != null) {
+                        keys.put(mKey, KeyCache.tag(mNode.getRevision(), mNode
+                            .getVersion()));
+                    }
+                }
+                return keys;
             }
+        };
 
-            final Iterator<Long> mIter = paramKeyTails.keySet().iterator();
-            while (mIter.hasNext()) {
-                long mapKey = (Long)mIter.next();
-
-                byte[] mChildSecretKey =
-                    Controller.getInstance().getDAGDb().getEntry(mapKey)
-                        .getSecretKey();
-
-                byte[] mDecryptedBytes =
-                    NodeEncryption.decrypt(paramKeyTails.get(mapKey),
-                        mChildSecretKey);
+    /**
+     * Receives an encoded batch of key trails for the logged user and unwraps
+     * them.
+     *
+     * @param paramBatch
+     *            buffer holding the encoded batch.
+     * @return
+     *         number of trails that could not be unwrapped.
+     * @throws IllegalArgumentException
+     *             if the buffer holds no valid batch.
+     */
+    public final int receiveKeyTrails(final ByteBuffer paramBatch) {
+        return receiveKeyTrails(Controller.getInstance().getUser(), paramBatch);
+    }
 
-                long mEncryptedKey =
-                    NodeEncryption.byteArrayToLong(mDecryptedBytes);
+    /**
+     * Receives an encoded batch of key trails for a user and unwraps them.
+     *
+     * @param paramUser
+     *            user the trails are for.
+     * @param paramBatch
+     *            buffer holding the encoded batch.
+     * @return
+     *         number of trails that could not be unwrapped.
+     * @throws IllegalArgumentException
+     *             if the buffer holds no valid batch.
+     */
+    public final int receiveKeyTrails(final String paramUser,
+        final ByteBuffer paramBatch) {
+        final KeyTrailBatch mBatch = KeyTrailBatch.decode(paramBatch);
+        if (mBatch == null) {
+            throw new IllegalArgumentException("Buffer holds no key trails!");
+        }
+        return decryptKeyTrails(paramUser, mBatch.getTrails());
+    }
 
-                final LinkedList<Long> mUserCache =
-                    Controller.getInstance().getKeyCache().get(
-                        Controller.getInstance().getUser());
+    /**
+     * Unwraps key trails into the key ring of the logged user and puts the parent
+     * nodes to users key cache to make them available to encrypt/decrypt
+     * data. A trail is unwrapped with the child key held by the key ring,
+     * which may itself be delivered by another trail of the same batch; only
+     * the key of the users own leaf node is read from the database.
+     *
+     * @param paramKeyTrails
+     *            key trails.
+     * @return
+     *         number of trails that could not be unwrapped.
+     */
+    public final int decryptKeyTrails(final List<KeyTrail> paramKeyTrails) {
+        return decryptKeyTrails(Controller.getInstance().getUser(),
+            paramKeyTrails);
+    }
 
+    /**
+     * Unwraps key trails into the key ring of a user and puts the parent
+     * nodes to the users key cache. The trails are unwrapped in parallel,
+     * wave by wave along the DAG, and merged into the users cache entry with
+     * a single update. Trails are not unwrapped if the key ring holds no key
+     * of their child or if they fail authentication; they are counted and
+     * skipped, all others are still applied.
+     *
+     * @param paramUser
+     *            user the trails are for.
+     * @param paramKeyTrails
+     *            key trails.
+     * @return
+     *         number of trails that could not be unwrapped.
+     */
+    public final int decryptKeyTrails(final String paramUser,
+        final List<KeyTrail> paramKeyTrails) {
+        int mFailed = 0;
+        // if list contains no key trails user has been completely removed
+        // from DAG and all keys for user has to be removed.
+        if (!paramKeyTrails.isEmpty()) {
+            final LongLongHashMap mReceived = new LongLongHashMap();
+            final KeyRing mKeyRing =
+                Controller.getInstance().getKeyRing(paramUser);
+            final long mLeafKey = getLeafKey(paramUser);
 
-                if (!mUserCache.contains(mEncryptedKey)) {
-                    mUserCache.add(mEncryptedKey);
+            // unwrap in waves: all trails whose child key is known are
+            // independent of each other and unwrapped in parallel
+            List<KeyTrail> mPending = new ArrayList<KeyTrail>(paramKeyTrails);
+            while (!mPending.isEmpty()) {
+                final List<KeyTrail> mReady = new ArrayList<KeyTrail>();
+                final List<byte[]> mChildKeys = new ArrayList<byte[]>();
+                final List<KeyTrail> mWaiting = new ArrayList<KeyTrail>();
+                for (final KeyTrail aTrail : mPending) {
+                    final byte[] mChildSecretKey =
+                        getRingKey(mKeyRing, mLeafKey, aTrail.getChildKey(),
+                            aTrail.getChildRevision(), aTrail
+                                .getChildVersion());
+                    if (mChildSecretKey == null) {
+                        mWaiting.add(aTrail);
+                    } else {
+                        mReady.add(aTrail);
+                        mChildKeys.add(mChildSecretKey);
+                    }
+                }
+                if (mReady.isEmpty()) {
+                    // no trail delivers a child key of the remaining ones
+                    mFailed += mWaiting.size();
+                    break;
                 }
 
-                Controller.getInstance().getKeyCache().put(
-                    Controller.getInstance().getUser(), mUserCache);
+                final KeyTrail[] mTrails =
+                    mReady.toArray(new KeyTrail[mReady.size()]);
+                final byte[][] mParentKeys =
+                    KeyTrailDecryptor.decrypt(mTrails, mChildKeys
+                        .toArray(new byte[mChildKeys.size()][]));
+                for (int i = 0; i < mTrails.length; i++) {
+                    if (mParentKeys[i] != null) {
+                        mKeyRing.put(mTrails[i].getParentKey(), mTrails[i]
+                            .getParentRevision(), mTrails[i]
+                            .getParentVersion(), mParentKeys[i]);
+                        mReceived.put(mTrails[i].getParentKey(), KeyCache
+                            .tag(mTrails[i].getParentRevision(), mTrails[i]
+                                .getParentVersion()));
+                    } else {
+                        mFailed++;
+                    }
+                }
+                mPending = mWaiting;
             }
-        }
 
+            Controller.getInstance().getKeyCache().addAll(paramUser,
+                mReceived, KEY_MANAGER_LOADER);
+        }
+        return mFailed;
     }
 
     /**
@@ -99,18 +232,531 @@ public class ClientHandler {
      *            new user.
      */
     public final void initKeyCacheKeys(final String paramUser) {
+        Controller.getInstance().getKeyCache().put(paramUser,
+            KEY_MANAGER_LOADER.load(paramUser));
+    }
 
-        final Set<Long> keySet =
-            Controller.getInstance().getManDb().getEntry(paramUser).getKeySet();
+    /**
+     * Encrypts data with the current secret key of a node the user owns. The
+     * result names node, revision and version in its header.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramData
+     *            data to encrypt.
+     * @return
+     *         encrypted data.
+     * @throws TTEncryptionException
+     *             if the user does not own the key of the node.
+     */
+    public final byte[] encryptData(final long paramDAGKey,
+        final byte[] paramData) throws TTEncryptionException {
+        checkAccess(paramDAGKey);
+        final byte[] mSecretKey =
+            Controller.getInstance().getSecretKey(paramDAGKey);
+        final DAGSelector mNode =
+            Controller.getInstance().getDAGDb().getEntry(paramDAGKey);
+        return NodeEncryption.encryptGCM(paramData, mSecretKey, paramDAGKey,
+            mNode.getRevision(), mNode.getVersion());
+    }
 
-        final LinkedList<Long> keyList = new LinkedList<Long>();
-        final Iterator<Long> mIter = keySet.iterator();
-        while (mIter.hasNext()) {
-            keyList.add(mIter.next());
+    /**
+     * Decrypts data encrypted by {@link #encryptData(long, byte[])}. The key
+     * is looked up by node, revision and version named in the header.
+     *
+     * @param paramData
+     *            encrypted data.
+     * @return
+     *         original data.
+     * @throws TTEncryptionException
+     *             if the data has no valid header, the user does not own the
+     *             key or the data has been modified.
+     */
+    public final byte[] decryptData(final byte[] paramData)
+        throws TTEncryptionException {
+        final CipherHeader mHeader =
+            CipherHeader.read(ByteBuffer.wrap(paramData));
+        if (mHeader == null || mHeader.getFormat() != CipherHeader.FORMAT_GCM) {
+            throw new TTEncryptionException("Data has no valid header!");
         }
+        checkAccess(mHeader.getDAGKey());
 
-        Controller.getInstance().getKeyCache().put(paramUser, keyList);
+        final byte[] mDecrypted =
+            NodeEncryption.decryptGCM(paramData, getSecretKey(mHeader
+                .getDAGKey(), mHeader.getRevision(), mHeader.getVersion()));
+        if (mDecrypted == null) {
+            throw new TTEncryptionException("Data integrity check failed!");
+        }
+        return mDecrypted;
+    }
+
+    /**
+     * Decrypts data encrypted in CBC mode before GCM was introduced. Such data
+     * has no header, so node, revision and version have to be known.
+     *
+     * @param paramData
+     *            encrypted data.
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node the data has been encrypted at.
+     * @param paramVersion
+     *            version of node the data has been encrypted at.
+     * @return
+     *         original data.
+     * @throws TTEncryptionException
+     *             if the user does not own the key or decryption failed.
+     */
+    public final byte[] decryptLegacyData(final byte[] paramData,
+        final long paramDAGKey, final int paramRevision,
+        final int paramVersion) throws TTEncryptionException {
+        checkAccess(paramDAGKey);
+
+        final byte[] mDecrypted =
+            NodeEncryption.decrypt(paramData, getSecretKey(paramDAGKey,
+                paramRevision, paramVersion));
+        if (mDecrypted == null) {
+            throw new TTEncryptionException("Data could not be decrypted!");
+        }
+        return mDecrypted;
+    }
 
+    /**
+     * Encrypts an object with envelope encryption: the object gets its own
+     * data key, which is stored wrapped under the current secret key of a
+     * node the user owns. Rekeying the node only re-wraps the data key, the
+     * encrypted object stays valid.
+     *
+     * @param paramDAGKey
+     *            dag key of owning node.
+     * @param paramData
+     *            data to encrypt.
+     * @return
+     *         encrypted object, its header names the object key.
+     * @throws TTEncryptionException
+     *             if the user does not own the key of the node.
+     */
+    public final byte[] encryptObject(final long paramDAGKey,
+        final byte[] paramData) throws TTEncryptionException {
+        checkAccess(paramDAGKey);
+        final byte[] mSecretKey =
+            Controller.getInstance().getSecretKey(paramDAGKey);
+        final DAGSelector mNode =
+            Controller.getInstance().getDAGDb().getEntry(paramDAGKey);
+
+        final byte[] mDataKey = Controller.getInstance().newSecretKey();
+        final long mObjectKey = Controller.getInstance().newObjectKey();
+        Controller.getInstance().getDataDb().putEntry(
+            new DataKey(mObjectKey, paramDAGKey, mNode.getRevision(), mNode
+                .getVersion(), NodeEncryption.wrapKey(mDataKey, mSecretKey)));
+
+        return NodeEncryption.encryptGCM(paramData, mDataKey,
+            CipherHeader.FORMAT_ENVELOPE, mObjectKey, 0, 0);
+    }
+
+    /**
+     * Decrypts an object encrypted by {@link #encryptObject(long, byte[])}.
+     * The data key is unwrapped with the key of the owning node it is
+     * currently wrapped under.
+     *
+     * @param paramData
+     *            encrypted object.
+     * @return
+     *         original data.
+     * @throws TTEncryptionException
+     *             if the object is unknown, the user does not own the key of
+     *             the owning node or the object has been modified.
+     */
+    public final byte[] decryptObject(final byte[] paramData)
+        throws TTEncryptionException {
+        final CipherHeader mHeader =
+            CipherHeader.read(ByteBuffer.wrap(paramData));
+        if (mHeader == null
+            || mHeader.getFormat() != CipherHeader.FORMAT_ENVELOPE) {
+            throw new TTEncryptionException("Data has no valid header!");
+        }
+        final DataKey mEntry =
+            Controller.getInstance().getDataDb().getEntry(mHeader.getDAGKey());
+        if (mEntry == null) {
+            throw new TTEncryptionException("No data key of object "
+                + mHeader.getDAGKey() + " exists!");
+        }
+        checkAccess(mEntry.getDAGKey());
+
+        final byte[] mDataKey =
+            NodeEncryption.unwrapKey(mEntry.getWrappedKey(), getSecretKey(
+                mEntry.getDAGKey(), mEntry.getRevision(), mEntry.getVersion()));
+        if (mDataKey == null) {
+            throw new TTEncryptionException("Data key integrity check failed!");
+        }
+        final byte[] mDecrypted =
+            NodeEncryption.decryptGCM(paramData, mDataKey,
+                CipherHeader.FORMAT_ENVELOPE);
+        if (mDecrypted == null) {
+            throw new TTEncryptionException("Data integrity check failed!");
+        }
+        return mDecrypted;
+    }
+
+    /**
+     * Wraps a stream so all bytes written are encrypted with the current
+     * secret key of a node the user owns. The data is encrypted in chunks, so
+     * memory use is constant; the stream has to be closed to complete it.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramOut
+     *            stream to write encrypted data to.
+     * @return
+     *         encrypting stream.
+     * @throws TTEncryptionException
+     *             if the user does not own the key of the node.
+     * @throws IOException
+     *             if writing the header fails.
+     */
+    public final OutputStream encryptStream(final long paramDAGKey,
+        final OutputStream paramOut) throws TTEncryptionException,
+        IOException {
+        checkAccess(paramDAGKey);
+        final byte[] mSecretKey =
+            Controller.getInstance().getSecretKey(paramDAGKey);
+        return new EncryptingOutputStream(paramOut, mSecretKey,
+            newStreamHeader(paramDAGKey));
+    }
+
+    /**
+     * Wraps a stream written by {@link #encryptStream(long, OutputStream)}
+     * so all bytes read are decrypted. The key is looked up by node, revision
+     * and version named in the header.
+     *
+     * @param paramIn
+     *            stream to read encrypted data from.
+     * @return
+     *         decrypting stream.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     * @throws IOException
+     *             if the stream has no valid header.
+     */
+    public final InputStream decryptStream(final InputStream paramIn)
+        throws TTEncryptionException, IOException {
+        final CipherHeader mHeader = StreamEncryption.readHeader(paramIn);
+        checkAccess(mHeader.getDAGKey());
+        return new DecryptingInputStream(paramIn, getSecretKey(mHeader
+            .getDAGKey(), mHeader.getRevision(), mHeader.getVersion()),
+            mHeader);
+    }
+
+    /**
+     * Encrypts all bytes of a channel, e.g. a {@link java.nio.channels.FileChannel},
+     * into another channel with the current secret key of a node the user
+     * owns.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramIn
+     *            channel to read data from.
+     * @param paramOut
+     *            channel to write encrypted data to.
+     * @throws TTEncryptionException
+     *             if the user does not own the key of the node.
+     * @throws IOException
+     *             if reading or writing fails.
+     */
+    public final void encryptChannel(final long paramDAGKey,
+        final ReadableByteChannel paramIn, final WritableByteChannel paramOut)
+        throws TTEncryptionException, IOException {
+        checkAccess(paramDAGKey);
+        final byte[] mSecretKey =
+            Controller.getInstance().getSecretKey(paramDAGKey);
+        StreamEncryption.encrypt(paramIn, paramOut, mSecretKey,
+            newStreamHeader(paramDAGKey));
+    }
+
+    /**
+     * Decrypts all bytes of a channel written by
+     * {@link #encryptChannel(long, ReadableByteChannel, WritableByteChannel)}
+     * or {@link #encryptStream(long, OutputStream)} into another channel.
+     *
+     * @param paramIn
+     *            channel to read encrypted data from.
+     * @param paramOut
+     *            channel to write data to.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     * @throws IOException
+     *             if reading or writing fails or the data has been modified.
+     */
+    public final void decryptChannel(final ReadableByteChannel paramIn,
+        final WritableByteChannel paramOut) throws TTEncryptionException,
+        IOException {
+        final CipherHeader mHeader = StreamEncryption.readHeader(paramIn);
+        checkAccess(mHeader.getDAGKey());
+        StreamEncryption.decrypt(paramIn, paramOut, getSecretKey(mHeader
+            .getDAGKey(), mHeader.getRevision(), mHeader.getVersion()),
+            mHeader);
+    }
+
+    /**
+     * Encrypts large data with the current secret key of a node the user owns.
+     * The chunks are encrypted in parallel; the result is in the stream
+     * format and can also be read by {@link #decryptStream(InputStream)}.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramData
+     *            data to encrypt.
+     * @return
+     *         encrypted data.
+     * @throws TTEncryptionException
+     *             if the user does not own the key of the node.
+     * @throws IOException
+     *             if encryption fails.
+     */
+    public final byte[] encryptParallel(final long paramDAGKey,
+        final byte[] paramData) throws TTEncryptionException, IOException {
+        checkAccess(paramDAGKey);
+        final byte[] mSecretKey =
+            Controller.getInstance().getSecretKey(paramDAGKey);
+        return ParallelEncryption.encrypt(paramData, mSecretKey,
+            newStreamHeader(paramDAGKey));
+    }
+
+    /**
+     * Decrypts data in the stream format, decrypting the chunks in parallel.
+     *
+     * @param paramData
+     *            encrypted data.
+     * @return
+     *         original data.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     * @throws IOException
+     *             if the data is truncated or has been modified.
+     */
+    public final byte[] decryptParallel(final byte[] paramData)
+        throws TTEncryptionException, IOException {
+        final CipherHeader mHeader = ParallelEncryption.readHeader(paramData);
+        checkAccess(mHeader.getDAGKey());
+        return ParallelEncryption.decrypt(paramData, getSecretKey(mHeader
+            .getDAGKey(), mHeader.getRevision(), mHeader.getVersion()));
+    }
+
+    /**
+     * Encrypts a file into another file with the current secret key of a node
+     * the user owns, encrypting the chunks in parallel.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramIn
+     *            file to read data from.
+     * @param paramOut
+     *            file to write encrypted data to.
+     * @throws TTEncryptionException
+     *             if the user does not own the key of the node.
+     * @throws IOException
+     *             if reading or writing fails.
+     */
+    public final void encryptParallel(final long paramDAGKey,
+        final FileChannel paramIn, final FileChannel paramOut)
+        throws TTEncryptionException, IOException {
+        checkAccess(paramDAGKey);
+        final byte[] mSecretKey =
+            Controller.getInstance().getSecretKey(paramDAGKey);
+        ParallelEncryption.encrypt(paramIn, paramOut, mSecretKey,
+            newStreamHeader(paramDAGKey));
+    }
+
+    /**
+     * Decrypts a file in the stream format into another file, decrypting the
+     * chunks in parallel.
+     *
+     * @param paramIn
+     *            file to read encrypted data from.
+     * @param paramOut
+     *            file to write data to.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     * @throws IOException
+     *             if reading or writing fails or the data has been modified.
+     */
+    public final void decryptParallel(final FileChannel paramIn,
+        final FileChannel paramOut) throws TTEncryptionException,
+        IOException {
+        final CipherHeader mHeader = ParallelEncryption.readHeader(paramIn);
+        checkAccess(mHeader.getDAGKey());
+        ParallelEncryption.decrypt(paramIn, paramOut, getSecretKey(mHeader
+            .getDAGKey(), mHeader.getRevision(), mHeader.getVersion()));
+    }
+
+    /**
+     * Decrypts a single chunk of data in the stream format without decrypting
+     * the chunks before.
+     *
+     * @param paramData
+     *            encrypted data.
+     * @param paramIndex
+     *            index of chunk, chunk i holds the bytes from
+     *            i * {@link StreamEncryption#CHUNK_SIZE} on.
+     * @return
+     *         original bytes of chunk.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     * @throws IOException
+     *             if the chunk does not exist or has been modified.
+     */
+    public final byte[] readChunk(final byte[] paramData, final int paramIndex)
+        throws TTEncryptionException, IOException {
+        final CipherHeader mHeader = ParallelEncryption.readHeader(paramData);
+        checkAccess(mHeader.getDAGKey());
+        return ParallelEncryption.readChunk(paramData, getSecretKey(mHeader
+            .getDAGKey(), mHeader.getRevision(), mHeader.getVersion()),
+            paramIndex);
+    }
+
+    /**
+     * Decrypts a single chunk of a file in the stream format without reading
+     * the chunks before.
+     *
+     * @param paramIn
+     *            file to read encrypted data from.
+     * @param paramIndex
+     *            index of chunk, chunk i holds the bytes from
+     *            i * {@link StreamEncryption#CHUNK_SIZE} on.
+     * @return
+     *         original bytes of chunk.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     * @throws IOException
+     *             if the chunk does not exist or has been modified.
+     */
+    public final byte[] readChunk(final FileChannel paramIn,
+        final int paramIndex) throws TTEncryptionException, IOException {
+        final CipherHeader mHeader = ParallelEncryption.readHeader(paramIn);
+        checkAccess(mHeader.getDAGKey());
+        return ParallelEncryption.readChunk(paramIn, getSecretKey(mHeader
+            .getDAGKey(), mHeader.getRevision(), mHeader.getVersion()),
+            paramIndex);
+    }
+
+    /**
+     * Creates the header of a new stream encrypted with the current secret
+     * key of a node.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @return
+     *         stream header.
+     */
+    private CipherHeader newStreamHeader(final long paramDAGKey) {
+        final DAGSelector mNode =
+            Controller.getInstance().getDAGDb().getEntry(paramDAGKey);
+        return StreamEncryption.newHeader(paramDAGKey, mNode.getRevision(),
+            mNode.getVersion());
+    }
+
+    /**
+     * Checks whether the logged user owns the key of a node.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     */
+    private void checkAccess(final long paramDAGKey)
+        throws TTEncryptionException {
+        final String mUser = Controller.getInstance().getUser();
+        if (!Controller.getInstance().getKeyCache().contains(mUser,
+            paramDAGKey, KEY_MANAGER_LOADER)) {
+            throw new TTEncryptionException("User " + mUser
+                + " does not own key of node " + paramDAGKey + "!");
+        }
+    }
+
+    /**
+     * Returns the secret key of a node at the given revision and version from
+     * the key ring of the logged user.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @return
+     *         secret key.
+     * @throws TTEncryptionException
+     *             if the user holds no key for this revision and version.
+     */
+    private byte[] getSecretKey(final long paramDAGKey,
+        final int paramRevision, final int paramVersion)
+        throws TTEncryptionException {
+        final String mUser = Controller.getInstance().getUser();
+        final byte[] mSecretKey =
+            getRingKey(Controller.getInstance().getKeyRing(mUser),
+                getLeafKey(mUser), paramDAGKey, paramRevision, paramVersion);
+        if (mSecretKey == null) {
+            throw new TTEncryptionException("No key of node " + paramDAGKey
+                + " exists at revision " + paramRevision + "."
+                + paramVersion + "!");
+        }
+        return mSecretKey;
+    }
+
+    /**
+     * Returns the dag key of the leaf node of a user, the only node whose key
+     * the user gets from the database.
+     *
+     * @param paramUser
+     *            user.
+     * @return
+     *         dag key of the node named after the user, or of the root node
+     *         for the initial user, which owns it without a node of its own.
+     */
+    private long getLeafKey(final String paramUser) {
+        final long mLeafKey =
+            Controller.getInstance().getDAGDb().getKeyByName(paramUser);
+        if (mLeafKey == -1) {
+            return Controller.getInstance().getDAGDb().getKeyByName("ROOT");
+        }
+        return mLeafKey;
+    }
+
+    /**
+     * Returns the secret key of a node at the given revision and version from
+     * a key ring. The key of the users own leaf node is never delivered by a
+     * trail, so it is read from the database and put to the key ring.
+     *
+     * @param paramKeyRing
+     *            key ring of the user.
+     * @param paramLeafKey
+     *            dag key of the users leaf node.
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @return
+     *         secret key or null if the user holds no key for this revision
+     *         and version.
+     */
+    private byte[] getRingKey(final KeyRing paramKeyRing,
+        final long paramLeafKey, final long paramDAGKey,
+        final int paramRevision, final int paramVersion) {
+        byte[] mSecretKey =
+            paramKeyRing.get(paramDAGKey, paramRevision, paramVersion);
+        if (mSecretKey == null && paramDAGKey == paramLeafKey) {
+            final KeySelector mSelector =
+                Controller.getInstance().getSelDb().getEntry(paramDAGKey,
+                    paramRevision, paramVersion);
+            if (mSelector != null && mSelector.getSecretKey() != null) {
+                mSecretKey = mSelector.getSecretKey();
+                paramKeyRing.put(paramDAGKey, paramRevision, paramVersion,
+                    mSecretKey);
+            }
+        }
+        return mSecretKey;
     }
 
 }
@@ -29,22 +29,32 @@
 package encryptionlayer.dag;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import encrpytionlayer.exception.TTEncryptionException;
 import encryptionlayer.cache.KeyCache;
+import encryptionlayer.cache.KeyRing;
+import encryptionlayer.collections.LongHashSet;
+import encryptionlayer.collections.LongIterator;
+import encryptionlayer.collections.LongLongHashMap;
 import encryptionlayer.database.CurrentDAGDatabase;
+import encryptionlayer.database.DataKeyDatabase;
 import encryptionlayer.database.KeyManagerDatabase;
 import encryptionlayer.database.KeySelectorDatabase;
+import encryptionlayer.database.RewrapJobDatabase;
 import encryptionlayer.database.model.DAGSelector;
 import encryptionlayer.database.model.KeyManager;
 import encryptionlayer.database.model.KeySelector;
-import encryptionlayer.utils.NodeEncryption;
+import encryptionlayer.database.model.SelectorKey;
+import encryptionlayer.utils.SecretKeyPool;
 
 public class Controller {
 
@@ -56,9 +66,48 @@ public class Controller {
     private static boolean mNodeEncryption = false;
 
     /**
-     * The key data should be encrypted.
+     * Instance for enabling or disabling lazy rekeying. If enabled, nodes
+     * affected by an operation are only marked stale and get their new
+     * secret key on first use.
      */
-    private long mDataEncryptionKey = 0;
+    private static boolean mLazyRekeying = false;
+
+    /**
+     * Number of threads re-wrapping data keys in the background.
+     */
+    private static int mRewrapThreads = RewrapScheduler.DEFAULT_THREADS;
+
+    /**
+     * Maximum number of data keys unwrapped and wrapped per second in the
+     * background.
+     */
+    private static int mRewrapCpuRate = RewrapScheduler.UNLIMITED;
+
+    /**
+     * Maximum number of database reads and writes per second of re-wrapping
+     * in the background.
+     */
+    private static int mRewrapIoRate = RewrapScheduler.UNLIMITED;
+
+    /**
+     * Eviction policy of the key cache.
+     */
+    private static int mCachePolicy = KeyCache.POLICY_LRU;
+
+    /**
+     * What the maximum of the key cache bounds, users or bytes.
+     */
+    private static int mCacheBound = KeyCache.BOUND_ENTRIES;
+
+    /**
+     * Maximum number of users or bytes in the key cache.
+     */
+    private static long mCacheMaximum = KeyCache.DEFAULT_CAPACITY;
+
+    /**
+     * Milliseconds after the last access users expire from the key cache.
+     */
+    private static long mCacheExpiry = KeyCache.UNLIMITED;
 
     /**
      * Current session user.
@@ -77,16 +126,48 @@ public class Controller {
      */
     private static CurrentDAGDatabase mDAGDB;
 
+    /**
+     * Memory resident copy of the DAG topology held in CurrentDAGDatabase.
+     */
+    private static DAGGraph mGraph;
+
     /**
      * Instance of KeyManagerDatabase holding key manager stuff.
      */
     private static KeyManagerDatabase mManDB;
 
+    /**
+     * Instance of DataKeyDatabase holding the wrapped data keys of all
+     * encrypted objects.
+     */
+    private static DataKeyDatabase mDataDB;
+
+    /**
+     * Instance of RewrapJobDatabase holding pending re-wrap jobs.
+     */
+    private static RewrapJobDatabase mJobDB;
+
+    /**
+     * Scheduler re-wrapping data keys of rekeyed nodes in the background.
+     */
+    private static RewrapScheduler mRewrapScheduler;
+
     /**
      * Instance of KeyCache holding all current keys of user.
      */
     private static KeyCache mKeyCache;
 
+    /**
+     * Client side key rings of users, holding the key material received by
+     * key trails.
+     */
+    private static Map<String, KeyRing> mKeyRings;
+
+    /**
+     * Pool of pre-generated secret keys used for rekeying.
+     */
+    private static SecretKeyPool mKeyPool;
+
     /**
      * Singleton instance.
      */
@@ -101,15 +182,22 @@ public class Controller {
         return mINSTANCE;
     }
 
-    /**
-     * Global key selector database key.
-     */
-    private int mSelectorKey = 0;
     /**
      * Global dag selector database key.
      */
     private int mDAGKey = 0;
 
+    /**
+     * Next key of encrypted objects, continuing after the highest key stored
+     * in the data key database.
+     */
+    private static final AtomicLong mObjectKey = new AtomicLong();
+
+    /**
+     * Global revision of the whole DAG, increased by every operation.
+     */
+    private long mDAGRevision = 0;
+
     /**
      * Store path of berkeley key selector db.
      */
@@ -131,6 +219,20 @@ public class Controller {
         File.separator).append("tmp").append(File.separator).append("tnk")
         .append(File.separator).append("keymanagerdb").toString());
 
+    /**
+     * Store path of berkeley data key db.
+     */
+    private static final File DATA_STORE = new File(new StringBuilder(
+        File.separator).append("tmp").append(File.separator).append("tnk")
+        .append(File.separator).append("datakeydb").toString());
+
+    /**
+     * Store path of berkeley re-wrap job db.
+     */
+    private static final File JOB_STORE = new File(new StringBuilder(
+        File.separator).append("tmp").append(File.separator).append("tnk")
+        .append(File.separator).append("rewrapjobdb").toString());
+
     /**
      * Initiates all needed instances comprising Berkeley DBs and key cache.
      * Additionally it initiates parsing of initial right tree and setup of
@@ -140,30 +242,55 @@ public class Controller {
      */
     public void init() throws TTEncryptionException {
         if (mNodeEncryption) {
-            mLoggedUser = "ALL";
-            mKeyDB = new KeySelectorDatabase(SEL_STORE);
-            final KeySelector rootSel =
-                new KeySelector("ROOT", new LinkedList<Long>(),
-                    new LinkedList<Long>(), 0, 0, NodeEncryption
-                        .generateSecretKey());
-            mKeyDB.putEntry(rootSel);
+            if (mKeyPool != null) {
+                mKeyPool.shutdown();
+            }
+            mKeyPool = new SecretKeyPool();
+            mKeyPool.start();
 
+            mLoggedUser = "ALL";
             mDAGDB = new CurrentDAGDatabase(DAG_STORE);
             final DAGSelector rootDAG =
                 new DAGSelector("ROOT", new LinkedList<Long>(),
-                    new LinkedList<Long>(), 0, 0, NodeEncryption
-                        .generateSecretKey());
+                    new LinkedList<Long>(), 0, 0, newSecretKey());
             mDAGDB.putEntry(rootDAG);
 
+            mKeyDB = new KeySelectorDatabase(SEL_STORE);
+            final KeySelector rootSel =
+                new KeySelector(rootDAG, mDAGRevision);
+            mKeyDB.putEntry(rootSel);
+
+            mGraph = new DAGGraph();
+            mGraph.load(mDAGDB);
+
             mManDB = new KeyManagerDatabase(MAN_STORE);
             final Set<Long> manSet = new HashSet<Long>();
-            manSet.add(rootSel.getPrimaryKey());
+            manSet.add(rootDAG.getPrimaryKey());
             mManDB.putEntry(new KeyManager(mLoggedUser, manSet));
 
-            mKeyCache = new KeyCache();
-            final LinkedList<Long> keyList = new LinkedList<Long>();
-            keyList.add(rootSel.getPrimaryKey());
-            mKeyCache.put(mLoggedUser, keyList);
+            // stop the old workers before their databases are replaced
+            if (mRewrapScheduler != null
+                && !mRewrapScheduler.shutdown()) {
+                throw new TTEncryptionException(
+                    "Re-wrap workers did not stop!");
+            }
+            mDataDB = new DataKeyDatabase(DATA_STORE);
+            mObjectKey.set(mDataDB.getLastKey() + 1);
+            mJobDB = new RewrapJobDatabase(JOB_STORE);
+            mRewrapScheduler =
+                new RewrapScheduler(mJobDB, mRewrapThreads, mRewrapCpuRate,
+                    mRewrapIoRate);
+            mRewrapScheduler.start();
+
+            mKeyCache =
+                new KeyCache(mCachePolicy, mCacheBound, mCacheMaximum,
+                    mCacheExpiry);
+            final LongLongHashMap keySet = new LongLongHashMap();
+            keySet.put(rootDAG.getPrimaryKey(), KeyCache.tag(rootDAG
+                .getRevision(), rootDAG.getVersion()));
+            mKeyCache.put(mLoggedUser, keySet);
+
+            mKeyRings = new HashMap<String, KeyRing>();
 
         } else {
             throw new TTEncryptionException("Encryption is disabled!");
@@ -172,25 +299,87 @@ public class Controller {
     }
 
     /**
-     * Creates a new key selector key.
+     * Creates a new dag selector key.
      * @return
      */
-    public int newSelectorKey() {
-        return mSelectorKey++;
+    public int newDAGKey() {
+        return mDAGKey++;
     }
 
     /**
-     * Creates a new dag selector key.
+     * Returns the secret key of a dag node. If the key is stale because of
+     * lazy rekeying, a new one is generated and stored along with the
+     * selector of the current node revision, its data keys are queued for
+     * re-wrapping and the key trails of the node are sent to all users owning
+     * it.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
      * @return
+     *         secret key of node.
      */
-    public int newDAGKey() {
-        return mDAGKey++;
+    public synchronized byte[] getSecretKey(final long paramDAGKey) {
+        final DAGSelector mNode = mDAGDB.getEntry(paramDAGKey);
+        if (mNode.isStale()) {
+            mNode.setSecretKey(newSecretKey());
+            mDAGDB.putEntry(mNode);
+
+            // complete the selector written for current revision of node
+            final SortedMap<SelectorKey, KeySelector> mHistory =
+                mKeyDB.getRevisions(paramDAGKey);
+            final KeySelector mSelector = mHistory.get(mHistory.lastKey());
+            mSelector.setSecretKey(mNode.getSecretKey());
+            mKeyDB.putEntry(mSelector);
+
+            mRewrapScheduler.submit(paramDAGKey);
+            new Operator().transmitKeyTrails(paramDAGKey);
+        }
+        return mNode.getSecretKey();
+    }
+
+    /**
+     * Returns a fresh secret key taken from the key pool.
+     *
+     * @return
+     *         secret key.
+     */
+    public byte[] newSecretKey() {
+        return mKeyPool.take();
+    }
+
+    /**
+     * Creates a new key for an encrypted object.
+     *
+     * @return
+     *         object key.
+     */
+    public long newObjectKey() {
+        return mObjectKey.getAndIncrement();
+    }
+
+    /**
+     * Creates the next revision of the whole DAG.
+     * @return
+     */
+    public long newDAGRevision() {
+        return ++mDAGRevision;
+    }
+
+    /**
+     * Returns the current revision of the whole DAG.
+     *
+     * @return
+     *         DAG revision.
+     */
+    public long getDAGRevision() {
+        return mDAGRevision;
     }
 
     public void print() {
 
-        final SortedMap<Long, KeySelector> mSelMap = mKeyDB.getEntries();
-        Iterator<Long> iter = mSelMap.keySet().iterator();
+        final SortedMap<SelectorKey, KeySelector> mSelMap =
+            mKeyDB.getEntries();
+        Iterator<SelectorKey> iter = mSelMap.keySet().iterator();
 
         System.out.println("\nSelector DB Size: " + mKeyDB.count());
 
@@ -280,12 +469,12 @@ public class Controller {
         /*
          * print key cache.
          */
-        final LinkedList<Long> mKeyList =
-            mKeyCache.get(new Controller().getUser());
+        final LongIterator mKeyIter =
+            mKeyCache.get(new Controller().getUser()).iterator();
         final StringBuilder cacheString =
             new StringBuilder("Key Cache of " + new Controller().getUser() + ": ");
-        for (long aKey : mKeyList) {
-            cacheString.append(aKey + " ");
+        while (mKeyIter.hasNext()) {
+            cacheString.append(mKeyIter.next() + " ");
         }
         System.out.println(cacheString.toString());
 
@@ -308,6 +497,14 @@ public class Controller {
     public CurrentDAGDatabase getDAGDb() {
         return mDAGDB;
     }
+    /**
+     * Returns memory resident graph of current DAG.
+     *
+     * @return DAGGraph instance.
+     */
+    public DAGGraph getGraph() {
+        return mGraph;
+    }
     /**
      * Returns key manager database instance.
      *
@@ -316,6 +513,22 @@ public class Controller {
     public KeyManagerDatabase getManDb() {
         return mManDB;
     }
+    /**
+     * Returns data key database instance.
+     *
+     * @return DataKey instance.
+     */
+    public DataKeyDatabase getDataDb() {
+        return mDataDB;
+    }
+    /**
+     * Returns re-wrap scheduler instance.
+     *
+     * @return RewrapScheduler instance.
+     */
+    public RewrapScheduler getRewrapScheduler() {
+        return mRewrapScheduler;
+    }
     /**
      * Returns key cache instance.
      *
@@ -324,6 +537,29 @@ public class Controller {
     public KeyCache getKeyCache() {
         return mKeyCache;
     }
+    /**
+     * Returns key ring of a user, creating an empty one on first access.
+     *
+     * @param paramUser
+     *            user name.
+     * @return KeyRing instance.
+     */
+    public KeyRing getKeyRing(final String paramUser) {
+        KeyRing mRing = mKeyRings.get(paramUser);
+        if (mRing == null) {
+            mRing = new KeyRing();
+            mKeyRings.put(paramUser, mRing);
+        }
+        return mRing;
+    }
+    /**
+     * Returns secret key pool instance.
+     *
+     * @return SecretKeyPool instance.
+     */
+    public SecretKeyPool getKeyPool() {
+        return mKeyPool;
+    }
 
     /**
      * Clears all established berkeley dbs.
@@ -331,6 +567,9 @@ public class Controller {
      * @throws AbsTTException
      */
     public void clear() throws TTEncryptionException {
+        if (mRewrapScheduler != null && !mRewrapScheduler.shutdown()) {
+            throw new TTEncryptionException("Re-wrap workers did not stop!");
+        }
         if (SEL_STORE.exists()) {
             recursiveDelete(SEL_STORE);
         }
@@ -340,6 +579,12 @@ public class Controller {
         if (MAN_STORE.exists()) {
             recursiveDelete(MAN_STORE);
         }
+        if (DATA_STORE.exists()) {
+            recursiveDelete(DATA_STORE);
+        }
+        if (JOB_STORE.exists()) {
+            recursiveDelete(JOB_STORE);
+        }
 
     }
 
@@ -381,35 +626,81 @@ public class Controller {
     }
 
     /**
-     * Set session user.
+     * Returns whether lazy rekeying is enabled or not.
+     *
+     * @return lazy rekeying enabled.
      */
-    public void setUser(final String paramUser) {
-        mLoggedUser = paramUser;
+    public boolean checkLazyRekeying() {
+        return mLazyRekeying;
     }
 
     /**
-     * Set dek.
+     * Enables or disables lazy rekeying.
+     *
+     * @param paramBol
+     *            if lazy rekeying should be enabled or not.
      */
-    public void setDek(final long paramDek) {
-        mDataEncryptionKey = paramDek;
+    public void setLazyRekeying(final boolean paramBol) {
+        mLazyRekeying = paramBol;
     }
 
     /**
-     * Returns session user.
+     * Sets the budget of re-wrapping data keys in the background, taking
+     * effect with the next {@link #init()}.
      *
-     * @return current logged user.
+     * @param paramThreads
+     *            number of threads.
+     * @param paramCpuRate
+     *            maximum number of data keys unwrapped and wrapped per second
+     *            or {@link RewrapScheduler#UNLIMITED}.
+     * @param paramIoRate
+     *            maximum number of database reads and writes per second or
+     *            {@link RewrapScheduler#UNLIMITED}.
      */
-    public String getUser() {
-        return mLoggedUser;
+    public void setRewrapBudget(final int paramThreads,
+        final int paramCpuRate, final int paramIoRate) {
+        mRewrapThreads = paramThreads;
+        mRewrapCpuRate = paramCpuRate;
+        mRewrapIoRate = paramIoRate;
+    }
+
+    /**
+     * Sets eviction policy and bounds of the key cache, taking effect with
+     * the next {@link #init()}.
+     *
+     * @param paramPolicy
+     *            {@link KeyCache#POLICY_LRU} or {@link KeyCache#POLICY_TINY_LFU}.
+     * @param paramBound
+     *            {@link KeyCache#BOUND_ENTRIES} or {@link KeyCache#BOUND_BYTES}.
+     * @param paramMaximum
+     *            maximum number of users or bytes or
+     *            {@link KeyCache#UNLIMITED}.
+     * @param paramExpiry
+     *            milliseconds after the last access users expire or
+     *            {@link KeyCache#UNLIMITED}.
+     */
+    public void setKeyCacheBounds(final int paramPolicy, final int paramBound,
+        final long paramMaximum, final long paramExpiry) {
+        mCachePolicy = paramPolicy;
+        mCacheBound = paramBound;
+        mCacheMaximum = paramMaximum;
+        mCacheExpiry = paramExpiry;
+    }
+
+    /**
+     * Set session user.
+     */
+    public void setUser(final String paramUser) {
+        mLoggedUser = paramUser;
     }
 
     /**
-     * Returns data encryption key.
+     * Returns session user.
      *
-     * @return data encryption key.
+     * @return current logged user.
      */
-    public long getDataEncryptionKey() {
-        return mDataEncryptionKey;
+    public String getUser() {
+        return mLoggedUser;
     }
 
 }
@@ -0,0 +1,640 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.dag;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.SortedMap;
+
+import encryptionlayer.database.CurrentDAGDatabase;
+import encryptionlayer.database.model.DAGSelector;
+
+/**
+ * Memory resident copy of the DAG topology. Parent and child edges are kept
+ * in compressed sparse row form, i.e. one shared primitive edge array per
+ * direction plus per node offsets, so traversals neither touch the Berkeley
+ * DB nor allocate boxed values.
+ *
+ * DAG keys are handed out densely by {@link Controller#newDAGKey()} and are
+ * therefore used directly as row index. The graph has to be kept in sync with
+ * the {@link CurrentDAGDatabase} on every mutation; the {@link AncestorIndex}
+ * of the graph is maintained along with it. Instances are not thread safe.
+ *
+ * @author ptrk01
+ */
+public class DAGGraph {
+
+    /**
+     * Initial number of node rows.
+     */
+    private static final int INIT_NODES = 64;
+
+    /**
+     * Initial edge capacity of a row that is created or relocated.
+     */
+    private static final int INIT_ROW_CAPACITY = 4;
+
+    /**
+     * Parent edges of each node.
+     */
+    private final Adjacency mParents;
+
+    /**
+     * Child edges of each node.
+     */
+    private final Adjacency mChilds;
+
+    /**
+     * Ancestor closures of all nodes.
+     */
+    private final AncestorIndex mAncestors;
+
+    /**
+     * Marks which rows hold an existing node.
+     */
+    private boolean[] mExists;
+
+    /**
+     * Number of existing nodes.
+     */
+    private int mNodeCount;
+
+    /**
+     * Visit stamps of the traversal, compared against {@link #mEpoch}.
+     */
+    private int[] mVisited;
+
+    /**
+     * Current traversal stamp.
+     */
+    private int mEpoch;
+
+    /**
+     * Reused buffer collecting lookup results.
+     */
+    private int[] mBuffer;
+
+    /**
+     * Constructor creating an empty graph.
+     */
+    public DAGGraph() {
+        mParents = new Adjacency();
+        mChilds = new Adjacency();
+        mAncestors = new AncestorIndex(this);
+        mExists = new boolean[INIT_NODES];
+        mVisited = new int[INIT_NODES];
+        mBuffer = new int[INIT_NODES];
+    }
+
+    /**
+     * Loads the complete topology of the current DAG from the database. Any
+     * previous content of the graph is dropped.
+     *
+     * @param paramDb
+     *            database holding the current DAG.
+     */
+    public final void load(final CurrentDAGDatabase paramDb) {
+        mParents.reset();
+        mChilds.reset();
+        mAncestors.clear();
+        mExists = new boolean[INIT_NODES];
+        mNodeCount = 0;
+
+        final SortedMap<Long, DAGSelector> mMap = paramDb.getEntries();
+        final Iterator<Long> iter = mMap.keySet().iterator();
+        while (iter.hasNext()) {
+            final DAGSelector mDAG = mMap.get(iter.next());
+            final int node = row(mDAG.getPrimaryKey());
+            addNode(node);
+            for (long aParent : mDAG.getParents()) {
+                mParents.add(node, row(aParent));
+            }
+            for (long aChild : mDAG.getChilds()) {
+                mChilds.add(node, row(aChild));
+            }
+        }
+        mParents.compact();
+        mChilds.compact();
+        mAncestors.rebuild();
+    }
+
+    /**
+     * Adds a node without any edges.
+     *
+     * @param paramKey
+     *            dag key of new node.
+     */
+    public final void addNode(final long paramKey) {
+        final int node = row(paramKey);
+        ensureNodes(node + 1);
+        if (!mExists[node]) {
+            mExists[node] = true;
+            mNodeCount++;
+            mAncestors.addNode(node);
+        }
+    }
+
+    /**
+     * Removes a node together with all its incident edges.
+     *
+     * @param paramKey
+     *            dag key of node to remove.
+     */
+    public final void removeNode(final long paramKey) {
+        if (!contains(paramKey)) {
+            return;
+        }
+        final int node = (int)paramKey;
+        while (mChilds.size(node) > 0) {
+            removeEdge(node, mChilds.get(node, mChilds.size(node) - 1));
+        }
+        while (mParents.size(node) > 0) {
+            removeEdge(mParents.get(node, mParents.size(node) - 1), node);
+        }
+        mParents.clear(node);
+        mChilds.clear(node);
+        mAncestors.removeNode(node);
+        mExists[node] = false;
+        mNodeCount--;
+    }
+
+    /**
+     * Checks if node exists in graph.
+     *
+     * @param paramKey
+     *            dag key of node.
+     * @return
+     *         bool result.
+     */
+    public final boolean contains(final long paramKey) {
+        return paramKey >= 0 && paramKey < mExists.length
+            && mExists[(int)paramKey];
+    }
+
+    /**
+     * Returns the number of nodes in the graph.
+     *
+     * @return
+     *         number of nodes.
+     */
+    public final int nodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Adds an edge from parent to child in both directions.
+     *
+     * @param paramParent
+     *            dag key of parent node.
+     * @param paramChild
+     *            dag key of child node.
+     */
+    public final void addEdge(final long paramParent, final long paramChild) {
+        final int parent = row(paramParent);
+        final int child = row(paramChild);
+        mChilds.add(parent, child);
+        mParents.add(child, parent);
+        mAncestors.edgeAdded(parent, child);
+    }
+
+    /**
+     * Removes an edge from parent to child in both directions.
+     *
+     * @param paramParent
+     *            dag key of parent node.
+     * @param paramChild
+     *            dag key of child node.
+     */
+    public final void removeEdge(final long paramParent,
+        final long paramChild) {
+        if (hasEdge(paramParent, paramChild)) {
+            mChilds.remove((int)paramParent, (int)paramChild);
+            mParents.remove((int)paramChild, (int)paramParent);
+            mAncestors.edgeRemoved((int)paramChild);
+        }
+    }
+
+    /**
+     * Checks whether child is a direct child of parent.
+     *
+     * @param paramParent
+     *            dag key of parent node.
+     * @param paramChild
+     *            dag key of child node.
+     * @return
+     *         bool result.
+     */
+    public final boolean hasEdge(final long paramParent, final long paramChild) {
+        return contains(paramParent) && contains(paramChild)
+            && mParents.indexOf((int)paramChild, (int)paramParent) != -1;
+    }
+
+    /**
+     * Returns number of parents of a node.
+     *
+     * @param paramKey
+     *            dag key of node.
+     * @return
+     *         number of parents.
+     */
+    public final int parentCount(final long paramKey) {
+        return contains(paramKey) ? mParents.size((int)paramKey) : 0;
+    }
+
+    /**
+     * Returns the i-th parent of a node.
+     *
+     * @param paramKey
+     *            dag key of node.
+     * @param paramIndex
+     *            index between 0 and {@link #parentCount(long)}.
+     * @return
+     *         dag key of parent.
+     */
+    public final long parent(final long paramKey, final int paramIndex) {
+        return mParents.get((int)paramKey, paramIndex);
+    }
+
+    /**
+     * Returns number of children of a node.
+     *
+     * @param paramKey
+     *            dag key of node.
+     * @return
+     *         number of children.
+     */
+    public final int childCount(final long paramKey) {
+        return contains(paramKey) ? mChilds.size((int)paramKey) : 0;
+    }
+
+    /**
+     * Returns the i-th child of a node.
+     *
+     * @param paramKey
+     *            dag key of node.
+     * @param paramIndex
+     *            index between 0 and {@link #childCount(long)}.
+     * @return
+     *         dag key of child.
+     */
+    public final long child(final long paramKey, final int paramIndex) {
+        return mChilds.get((int)paramKey, paramIndex);
+    }
+
+    /**
+     * Collects the given start nodes and all their ancestors from the
+     * ancestor index. Every node is contained only once, unknown start nodes
+     * are skipped.
+     *
+     * @param paramStarts
+     *            dag keys to start from.
+     * @return
+     *         dag keys of start nodes and all their ancestors.
+     */
+    public final long[] ancestors(final long... paramStarts) {
+        nextEpoch();
+        int size = 0;
+        for (long aStart : paramStarts) {
+            if (contains(aStart)) {
+                size = collect((int)aStart, size);
+                for (int aAncestor : mAncestors.get((int)aStart)) {
+                    size = collect(aAncestor, size);
+                }
+            }
+        }
+        final long[] result = new long[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = mBuffer[i];
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether a node is an ancestor of another node.
+     *
+     * @param paramAncestor
+     *            dag key of possible ancestor.
+     * @param paramKey
+     *            dag key of node.
+     * @return
+     *         bool result.
+     */
+    public final boolean isAncestor(final long paramAncestor,
+        final long paramKey) {
+        return contains(paramAncestor) && contains(paramKey)
+            && mAncestors.isAncestor((int)paramAncestor, (int)paramKey);
+    }
+
+    /**
+     * Adds a row to the result buffer unless it has been added during the
+     * current lookup.
+     *
+     * @param paramNode
+     *            row to add.
+     * @param paramSize
+     *            current number of results.
+     * @return
+     *         new number of results.
+     */
+    private int collect(final int paramNode, final int paramSize) {
+        if (mVisited[paramNode] == mEpoch) {
+            return paramSize;
+        }
+        mVisited[paramNode] = mEpoch;
+        mBuffer[paramSize] = paramNode;
+        return paramSize + 1;
+    }
+
+    /**
+     * Starts a new traversal by increasing the visit stamp.
+     */
+    private void nextEpoch() {
+        if (mVisited.length < mExists.length) {
+            mVisited = new int[mExists.length];
+            mBuffer = new int[mExists.length];
+            mEpoch = 0;
+        }
+        mEpoch++;
+        if (mEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(mVisited, 0);
+            mEpoch = 1;
+        }
+    }
+
+    /**
+     * Converts a dag key to its row and makes sure the row exists.
+     *
+     * @param paramKey
+     *            dag key.
+     * @return
+     *         row of node.
+     */
+    private int row(final long paramKey) {
+        if (paramKey < 0 || paramKey > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid dag key " + paramKey);
+        }
+        ensureNodes((int)paramKey + 1);
+        return (int)paramKey;
+    }
+
+    /**
+     * Grows all node indexed arrays to hold at least the given number of rows.
+     *
+     * @param paramRows
+     *            number of rows needed.
+     */
+    private void ensureNodes(final int paramRows) {
+        if (paramRows > mExists.length) {
+            final int length = Math.max(paramRows, mExists.length * 2);
+            final boolean[] exists = new boolean[length];
+            System.arraycopy(mExists, 0, exists, 0, mExists.length);
+            mExists = exists;
+        }
+        mParents.ensureRows(paramRows);
+        mChilds.ensureRows(paramRows);
+    }
+
+    /**
+     * One direction of the adjacency in compressed sparse row form. Each row
+     * owns a slice of the shared edge array. A full row is relocated to the
+     * end of the edge array with doubled capacity; the abandoned slices are
+     * reclaimed by {@link #compact()} once they make up half of the array.
+     */
+    private static final class Adjacency {
+
+        /**
+         * Start of each row within the edge array.
+         */
+        private int[] mOffsets = new int[INIT_NODES];
+
+        /**
+         * Number of edges of each row.
+         */
+        private int[] mSizes = new int[INIT_NODES];
+
+        /**
+         * Reserved slots of each row.
+         */
+        private int[] mCapacities = new int[INIT_NODES];
+
+        /**
+         * Shared edge array.
+         */
+        private int[] mEdges = new int[INIT_NODES * INIT_ROW_CAPACITY];
+
+        /**
+         * First unused slot of the edge array.
+         */
+        private int mEnd;
+
+        /**
+         * Number of abandoned slots in the edge array.
+         */
+        private int mGarbage;
+
+        /**
+         * Drops all rows and edges.
+         */
+        void reset() {
+            mOffsets = new int[INIT_NODES];
+            mSizes = new int[INIT_NODES];
+            mCapacities = new int[INIT_NODES];
+            mEdges = new int[INIT_NODES * INIT_ROW_CAPACITY];
+            mEnd = 0;
+            mGarbage = 0;
+        }
+
+        /**
+         * Grows the row arrays.
+         *
+         * @param paramRows
+         *            number of rows needed.
+         */
+        void ensureRows(final int paramRows) {
+            if (paramRows > mOffsets.length) {
+                final int length = Math.max(paramRows, mOffsets.length * 2);
+                mOffsets = grow(mOffsets, length);
+                mSizes = grow(mSizes, length);
+                mCapacities = grow(mCapacities, length);
+            }
+        }
+
+        /**
+         * Returns number of edges of a row.
+         *
+         * @param paramRow
+         *            row.
+         * @return
+         *         number of edges.
+         */
+        int size(final int paramRow) {
+            return mSizes[paramRow];
+        }
+
+        /**
+         * Returns the i-th edge target of a row.
+         *
+         * @param paramRow
+         *            row.
+         * @param paramIndex
+         *            index within the row.
+         * @return
+         *         edge target.
+         */
+        int get(final int paramRow, final int paramIndex) {
+            if (paramIndex < 0 || paramIndex >= mSizes[paramRow]) {
+                throw new IndexOutOfBoundsException("Index: " + paramIndex);
+            }
+            return mEdges[mOffsets[paramRow] + paramIndex];
+        }
+
+        /**
+         * Returns the position of an edge target within a row.
+         *
+         * @param paramRow
+         *            row.
+         * @param paramTarget
+         *            edge target.
+         * @return
+         *         index within the row or -1 if there is no such edge.
+         */
+        int indexOf(final int paramRow, final int paramTarget) {
+            final int offset = mOffsets[paramRow];
+            for (int i = 0; i < mSizes[paramRow]; i++) {
+                if (mEdges[offset + i] == paramTarget) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Appends an edge to a row, relocating the row if it is full.
+         *
+         * @param paramRow
+         *            row to append to.
+         * @param paramTarget
+         *            edge target.
+         */
+        void add(final int paramRow, final int paramTarget) {
+            if (mSizes[paramRow] == mCapacities[paramRow]) {
+                final int capacity =
+                    Math.max(INIT_ROW_CAPACITY, mCapacities[paramRow] * 2);
+                if (mEnd + capacity > mEdges.length) {
+                    if (mGarbage * 2 > mEdges.length) {
+                        compact();
+                    }
+                    if (mEnd + capacity > mEdges.length) {
+                        mEdges =
+                            grow(mEdges, Math.max(mEnd + capacity,
+                                mEdges.length * 2));
+                    }
+                }
+                System.arraycopy(mEdges, mOffsets[paramRow], mEdges, mEnd,
+                    mSizes[paramRow]);
+                mGarbage += mCapacities[paramRow];
+                mOffsets[paramRow] = mEnd;
+                mCapacities[paramRow] = capacity;
+                mEnd += capacity;
+            }
+            mEdges[mOffsets[paramRow] + mSizes[paramRow]++] = paramTarget;
+        }
+
+        /**
+         * Removes one occurrence of an edge from a row. The last edge of the
+         * row takes the place of the removed one.
+         *
+         * @param paramRow
+         *            row to remove from.
+         * @param paramTarget
+         *            edge target.
+         */
+        void remove(final int paramRow, final int paramTarget) {
+            final int index = indexOf(paramRow, paramTarget);
+            if (index != -1) {
+                final int offset = mOffsets[paramRow];
+                mEdges[offset + index] =
+                    mEdges[offset + mSizes[paramRow] - 1];
+                mSizes[paramRow]--;
+            }
+        }
+
+        /**
+         * Removes all edges of a row and releases its slice.
+         *
+         * @param paramRow
+         *            row to clear.
+         */
+        void clear(final int paramRow) {
+            mGarbage += mCapacities[paramRow];
+            mSizes[paramRow] = 0;
+            mCapacities[paramRow] = 0;
+            mOffsets[paramRow] = 0;
+        }
+
+        /**
+         * Rewrites the edge array so that all rows are stored back to back
+         * without any spare slots.
+         */
+        void compact() {
+            int total = 0;
+            for (int i = 0; i < mSizes.length; i++) {
+                total += mSizes[i];
+            }
+            final int[] edges =
+                new int[Math.max(total, INIT_NODES * INIT_ROW_CAPACITY)];
+            int end = 0;
+            for (int i = 0; i < mSizes.length; i++) {
+                System.arraycopy(mEdges, mOffsets[i], edges, end, mSizes[i]);
+                mOffsets[i] = end;
+                mCapacities[i] = mSizes[i];
+                end += mSizes[i];
+            }
+            mEdges = edges;
+            mEnd = end;
+            mGarbage = 0;
+        }
+
+        /**
+         * Copies an array into a larger one.
+         *
+         * @param paramArray
+         *            array to copy.
+         * @param paramLength
+         *            new length.
+         * @return
+         *         grown array.
+         */
+        private static int[] grow(final int[] paramArray, final int paramLength) {
+            final int[] array = new int[paramLength];
+            System.arraycopy(paramArray, 0, array, 0, paramArray.length);
+            return array;
+        }
+    }
+
+}
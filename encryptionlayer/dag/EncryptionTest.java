@@ -0,0 +1,566 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+
+package encryptionlayer.dag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import encrpytionlayer.exception.TTEncryptionException;
+import encryptionlayer.collections.LongHashSet;
+import encryptionlayer.database.model.DAGSelector;
+import encryptionlayer.utils.CipherHeader;
+import encryptionlayer.utils.KeyTrail;
+import encryptionlayer.utils.KeyTrailBatch;
+import encryptionlayer.utils.StreamEncryption;
+
+/**
+ * Driver checking key trail transport, chunked encryption, lazy rekeying and
+ * key cache revocation against the embedded databases. Prints one line per
+ * check and exits with status 1 if any check failed.
+ *
+ * @author ptrk01
+ */
+public class EncryptionTest {
+
+    /**
+     * Number of plain bytes encrypted by the stream checks, four chunks.
+     */
+    private static final int DATA_SIZE = 3 * StreamEncryption.CHUNK_SIZE + 1000;
+
+    /**
+     * Number of failed checks.
+     */
+    private static int failed = 0;
+
+    public static void main(String[] args) {
+        try {
+            checkKeyTrails();
+            checkStreams();
+            checkParallel();
+            checkLazyRekeying();
+            checkRevocation(false);
+            checkRevocation(true);
+
+            new Controller().clear();
+        } catch (TTEncryptionException e) {
+            e.printStackTrace();
+            failed++;
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed++;
+        }
+
+        System.out.println("Failed checks: " + failed);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Encodes the trails of a user, decodes and delivers them, and feeds
+     * truncated and oversized batches to the client.
+     *
+     * @throws TTEncryptionException
+     *             if the databases could not be set up.
+     */
+    private static void checkKeyTrails() throws TTEncryptionException {
+        final Controller mController = setUp(false);
+        final Operator op = new Operator();
+        op.join("ROOT", new String[] {
+            "G1"
+        });
+        op.join("G1", new String[] {
+            "U1"
+        });
+
+        final DAGSelector mRoot = getNode("ROOT");
+        final DAGSelector mGroup = getNode("G1");
+        final DAGSelector mUser = getNode("U1");
+        final List<KeyTrail> mTrails = new ArrayList<KeyTrail>();
+        mTrails.add(KeyTrail.create(mRoot.getPrimaryKey(), mRoot
+            .getRevision(), mRoot.getVersion(), mController
+            .getSecretKey(mRoot.getPrimaryKey()), mGroup.getPrimaryKey(),
+            mGroup.getRevision(), mGroup.getVersion(), mController
+                .getSecretKey(mGroup.getPrimaryKey())));
+        mTrails.add(KeyTrail.create(mGroup.getPrimaryKey(), mGroup
+            .getRevision(), mGroup.getVersion(), mController
+            .getSecretKey(mGroup.getPrimaryKey()), mUser.getPrimaryKey(),
+            mUser.getRevision(), mUser.getVersion(), mController
+                .getSecretKey(mUser.getPrimaryKey())));
+
+        final KeyTrailBatch mBatch =
+            new KeyTrailBatch(mController.getDAGRevision(), mTrails);
+        final ByteBuffer mWire = ByteBuffer.allocate(mBatch.getEncodedSize());
+        mBatch.encode(mWire);
+        final byte[] mEncoded = mWire.array();
+
+        final KeyTrailBatch mDecoded =
+            KeyTrailBatch.decode(ByteBuffer.wrap(mEncoded));
+        boolean mEqual =
+            mDecoded != null
+                && mDecoded.getDAGRevision() == mBatch.getDAGRevision()
+                && mDecoded.getTrails().size() == mTrails.size();
+        for (int i = 0; mEqual && i < mTrails.size(); i++) {
+            mEqual = isEqual(mTrails.get(i), mDecoded.getTrails().get(i));
+        }
+        check("trail batch roundtrip", mEqual);
+
+        // the ring has to learn both keys from the batch alone
+        mController.getKeyRing("U1").remove(mRoot.getPrimaryKey());
+        mController.getKeyRing("U1").remove(mGroup.getPrimaryKey());
+        final int mFailed =
+            new ClientHandler().receiveKeyTrails("U1", ByteBuffer
+                .wrap(mEncoded));
+        check("trail batch delivered", mFailed == 0
+            && Arrays.equals(mController.getSecretKey(mRoot.getPrimaryKey()),
+                mController.getKeyRing("U1").get(mRoot.getPrimaryKey(),
+                    mRoot.getRevision(), mRoot.getVersion())));
+
+        check("truncated trail batch rejected", isRejected(Arrays.copyOf(
+            mEncoded, mEncoded.length - 1)));
+        final byte[] mOversized = new byte[64];
+        mOversized[0] = KeyTrailBatch.FORMAT;
+        mOversized[1] = 0;
+        mOversized[2] = 100;
+        check("oversized trail batch rejected", isRejected(mOversized));
+    }
+
+    /**
+     * Encrypts a stream and checks that truncated, reordered and modified
+     * chunks are not decrypted.
+     *
+     * @throws TTEncryptionException
+     *             if the databases could not be set up.
+     * @throws IOException
+     *             if the roundtrip fails.
+     */
+    private static void checkStreams() throws TTEncryptionException,
+        IOException {
+        setUp(false);
+        final ClientHandler mClient = new ClientHandler();
+        final long mRoot = getNode("ROOT").getPrimaryKey();
+        final byte[] mPlain = newData();
+
+        final ByteArrayOutputStream mSink = new ByteArrayOutputStream();
+        final OutputStream mOut = mClient.encryptStream(mRoot, mSink);
+        mOut.write(mPlain);
+        mOut.close();
+        final byte[] mEncrypted = mSink.toByteArray();
+
+        check("stream roundtrip", Arrays.equals(mPlain, readStream(mClient,
+            mEncrypted)));
+        check("truncated stream rejected", readStream(mClient, truncate(
+            mEncrypted)) == null);
+        check("reordered stream rejected", readStream(mClient, swapChunks(
+            mEncrypted)) == null);
+        check("modified stream rejected", readStream(mClient, modify(
+            mEncrypted)) == null);
+    }
+
+    /**
+     * Encrypts data in parallel and checks that truncated, reordered and
+     * modified chunks are not decrypted.
+     *
+     * @throws TTEncryptionException
+     *             if the databases could not be set up.
+     * @throws IOException
+     *             if the roundtrip fails.
+     */
+    private static void checkParallel() throws TTEncryptionException,
+        IOException {
+        setUp(false);
+        final ClientHandler mClient = new ClientHandler();
+        final long mRoot = getNode("ROOT").getPrimaryKey();
+        final byte[] mPlain = newData();
+        final byte[] mEncrypted = mClient.encryptParallel(mRoot, mPlain);
+
+        check("parallel roundtrip", Arrays.equals(mPlain, mClient
+            .decryptParallel(mEncrypted)));
+        check("parallel chunk read", Arrays.equals(Arrays.copyOfRange(mPlain,
+            StreamEncryption.CHUNK_SIZE, 2 * StreamEncryption.CHUNK_SIZE),
+            mClient.readChunk(mEncrypted, 1)));
+        check("truncated parallel data rejected", readParallel(mClient,
+            truncate(mEncrypted)) == null);
+        check("reordered parallel data rejected", readParallel(mClient,
+            swapChunks(mEncrypted)) == null);
+        check("modified parallel data rejected", readParallel(mClient,
+            modify(mEncrypted)) == null);
+    }
+
+    /**
+     * Counts the keys a join takes from the key pool with eager and lazy
+     * rekeying, and checks that lazily rekeyed keys reach all members on
+     * first use.
+     *
+     * @throws TTEncryptionException
+     *             if the databases could not be set up.
+     */
+    private static void checkLazyRekeying() throws TTEncryptionException {
+        final long[] mJoinKeys = new long[2];
+        for (int i = 0; i < 2; i++) {
+            final boolean mLazy = i == 1;
+            final Controller mController = setUp(mLazy);
+            final Operator op = new Operator();
+            // chain ROOT > G1 > G2 > alice, dave joins below G2
+            op.join("ROOT", new String[] {
+                "G1", "G2", "alice"
+            });
+            final long mBefore = getTakenKeys(mController);
+            op.join("G2", new String[] {
+                "dave"
+            });
+            mJoinKeys[i] = getTakenKeys(mController) - mBefore;
+
+            boolean mStale = true;
+            boolean mFresh = true;
+            for (final String aName : new String[] {
+                "ROOT", "G1", "G2"
+            }) {
+                mStale &= getNode(aName).isStale();
+                mFresh &= !getNode(aName).isStale();
+            }
+            check((mLazy ? "lazy" : "eager") + " join leaves ancestors "
+                + (mLazy ? "stale" : "fresh"), mLazy ? mStale : mFresh);
+
+            final DAGSelector mRoot = getNode("ROOT");
+            final byte[] mRootKey =
+                mController.getSecretKey(mRoot.getPrimaryKey());
+            final DAGSelector mCurrent = getNode("ROOT");
+            boolean mDelivered = true;
+            for (final String aUser : new String[] {
+                "alice", "dave"
+            }) {
+                mDelivered &=
+                    Arrays.equals(mRootKey, mController.getKeyRing(aUser).get(
+                        mCurrent.getPrimaryKey(), mCurrent.getRevision(),
+                        mCurrent.getVersion()));
+            }
+            check((mLazy ? "lazy" : "eager")
+                + " root key delivered to all members", mDelivered);
+        }
+        System.out.println("Join keys eager: " + mJoinKeys[0] + " lazy: "
+            + mJoinKeys[1]);
+        check("eager join rekeys leaf and all ancestors", mJoinKeys[0] == 4);
+        check("lazy join only takes the leaf key", mJoinKeys[1] == 1);
+    }
+
+    /**
+     * Checks that a user loses access to the keys of a group after leaving
+     * it, while remaining members keep decrypting older data.
+     *
+     * @param paramLazy
+     *            whether lazy rekeying is used.
+     * @throws TTEncryptionException
+     *             if the databases could not be set up.
+     */
+    private static void checkRevocation(final boolean paramLazy)
+        throws TTEncryptionException {
+        final Controller mController = setUp(paramLazy);
+        final Operator op = new Operator();
+        final ClientHandler mClient = new ClientHandler();
+        op.join("ROOT", new String[] {
+            "G1"
+        });
+        op.join("G1", new String[] {
+            "U1"
+        });
+        op.join("G1", new String[] {
+            "U2"
+        });
+        final long mGroup = getNode("G1").getPrimaryKey();
+        final byte[] mPlain = "revocation".getBytes();
+        final String mMode = paramLazy ? "lazy" : "eager";
+
+        mController.setUser("U2");
+        mClient.initKeyCacheKeys("U2");
+        final byte[] mEncrypted = mClient.encryptData(mGroup, mPlain);
+        check(mMode + " member holds group key", contains(mController, "U2",
+            mGroup));
+
+        op.leave("U2", new String[] {
+            "G1"
+        });
+        check(mMode + " group key revoked after leave", !contains(
+            mController, "U2", mGroup));
+
+        boolean mDenied = false;
+        try {
+            mClient.decryptData(mEncrypted);
+        } catch (final TTEncryptionException e) {
+            mDenied = true;
+        }
+        check(mMode + " former member denied", mDenied);
+
+        mController.setUser("U1");
+        mClient.initKeyCacheKeys("U1");
+        check(mMode + " remaining member decrypts older data", Arrays.equals(
+            mPlain, mClient.decryptData(mEncrypted)));
+        mController.setUser("ALL");
+    }
+
+    /**
+     * Prints the result of a check and counts failures.
+     *
+     * @param paramName
+     *            name of check.
+     * @param paramPassed
+     *            whether the check passed.
+     */
+    private static void check(final String paramName,
+        final boolean paramPassed) {
+        System.out.println((paramPassed ? "ok      " : "FAILED  ") + paramName);
+        if (!paramPassed) {
+            failed++;
+        }
+    }
+
+    /**
+     * Sets up empty databases.
+     *
+     * @param paramLazy
+     *            whether lazy rekeying is used.
+     * @return
+     *         controller.
+     * @throws TTEncryptionException
+     *             if the databases could not be set up.
+     */
+    private static Controller setUp(final boolean paramLazy)
+        throws TTEncryptionException {
+        final Controller mController = Controller.getInstance();
+        mController.setEncryptionOption(true);
+        mController.setLazyRekeying(paramLazy);
+        mController.clear();
+        mController.init();
+        return mController;
+    }
+
+    /**
+     * Returns the current state of a node.
+     *
+     * @param paramName
+     *            name of node.
+     * @return
+     *         node.
+     */
+    private static DAGSelector getNode(final String paramName) {
+        return Controller.getInstance().getDAGDb().getEntry(
+            Controller.getInstance().getDAGDb().getKeyByName(paramName));
+    }
+
+    /**
+     * Returns the number of keys taken from the key pool so far.
+     *
+     * @param paramController
+     *            controller.
+     * @return
+     *         number of keys.
+     */
+    private static long getTakenKeys(final Controller paramController) {
+        return paramController.getKeyPool().getHits()
+            + paramController.getKeyPool().getMisses();
+    }
+
+    /**
+     * Checks whether the key cache entry of a user holds a node.
+     *
+     * @param paramController
+     *            controller.
+     * @param paramUser
+     *            user.
+     * @param paramDAGKey
+     *            dag key of node.
+     * @return
+     *         true if the user is cached with the node.
+     */
+    private static boolean contains(final Controller paramController,
+        final String paramUser, final long paramDAGKey) {
+        final LongHashSet mKeys = paramController.getKeyCache().get(paramUser);
+        return mKeys != null && mKeys.contains(paramDAGKey);
+    }
+
+    /**
+     * Compares two key trails.
+     *
+     * @param paramFirst
+     *            first trail.
+     * @param paramSecond
+     *            second trail.
+     * @return
+     *         true if nodes, revisions, versions and wrapped keys are equal.
+     */
+    private static boolean isEqual(final KeyTrail paramFirst,
+        final KeyTrail paramSecond) {
+        return paramFirst.getParentKey() == paramSecond.getParentKey()
+            && paramFirst.getParentRevision() == paramSecond
+                .getParentRevision()
+            && paramFirst.getParentVersion() == paramSecond.getParentVersion()
+            && paramFirst.getChildKey() == paramSecond.getChildKey()
+            && paramFirst.getChildRevision() == paramSecond.getChildRevision()
+            && paramFirst.getChildVersion() == paramSecond.getChildVersion()
+            && Arrays.equals(paramFirst.getWrappedKey(), paramSecond
+                .getWrappedKey());
+    }
+
+    /**
+     * Checks whether the client refuses an encoded batch.
+     *
+     * @param paramEncoded
+     *            encoded batch.
+     * @return
+     *         true if the batch is rejected.
+     */
+    private static boolean isRejected(final byte[] paramEncoded) {
+        try {
+            new ClientHandler().receiveKeyTrails("U1", ByteBuffer
+                .wrap(paramEncoded));
+        } catch (final RuntimeException e) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates random plain data.
+     *
+     * @return
+     *         data spanning four chunks.
+     */
+    private static byte[] newData() {
+        final byte[] mData = new byte[DATA_SIZE];
+        new Random(DATA_SIZE).nextBytes(mData);
+        return mData;
+    }
+
+    /**
+     * Decrypts a stream.
+     *
+     * @param paramClient
+     *            client handler.
+     * @param paramEncrypted
+     *            encrypted stream.
+     * @return
+     *         original data or null if the stream is rejected.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     */
+    private static byte[] readStream(final ClientHandler paramClient,
+        final byte[] paramEncrypted) throws TTEncryptionException {
+        try {
+            final InputStream mIn =
+                paramClient.decryptStream(new ByteArrayInputStream(
+                    paramEncrypted));
+            final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+            final byte[] mBuffer = new byte[4096];
+            int mRead;
+            while ((mRead = mIn.read(mBuffer)) != -1) {
+                mOut.write(mBuffer, 0, mRead);
+            }
+            mIn.close();
+            return mOut.toByteArray();
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts data encrypted in parallel.
+     *
+     * @param paramClient
+     *            client handler.
+     * @param paramEncrypted
+     *            encrypted data.
+     * @return
+     *         original data or null if the data is rejected.
+     * @throws TTEncryptionException
+     *             if the user does not own the key.
+     */
+    private static byte[] readParallel(final ClientHandler paramClient,
+        final byte[] paramEncrypted) throws TTEncryptionException {
+        try {
+            return paramClient.decryptParallel(paramEncrypted);
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops the final chunk, so the data ends after a full chunk.
+     *
+     * @param paramEncrypted
+     *            header and encrypted chunks.
+     * @return
+     *         truncated copy.
+     */
+    private static byte[] truncate(final byte[] paramEncrypted) {
+        return Arrays.copyOf(paramEncrypted, CipherHeader.SIZE + 3
+            * StreamEncryption.ENCRYPTED_CHUNK_SIZE);
+    }
+
+    /**
+     * Swaps the first two chunks.
+     *
+     * @param paramEncrypted
+     *            header and encrypted chunks.
+     * @return
+     *         reordered copy.
+     */
+    private static byte[] swapChunks(final byte[] paramEncrypted) {
+        final byte[] mSwapped = paramEncrypted.clone();
+        final int mFirst = CipherHeader.SIZE;
+        final int mSecond = mFirst + StreamEncryption.ENCRYPTED_CHUNK_SIZE;
+        System.arraycopy(paramEncrypted, mFirst, mSwapped, mSecond,
+            StreamEncryption.ENCRYPTED_CHUNK_SIZE);
+        System.arraycopy(paramEncrypted, mSecond, mSwapped, mFirst,
+            StreamEncryption.ENCRYPTED_CHUNK_SIZE);
+        return mSwapped;
+    }
+
+    /**
+     * Flips one bit within the second chunk.
+     *
+     * @param paramEncrypted
+     *            header and encrypted chunks.
+     * @return
+     *         modified copy.
+     */
+    private static byte[] modify(final byte[] paramEncrypted) {
+        final byte[] mModified = paramEncrypted.clone();
+        mModified[CipherHeader.SIZE + StreamEncryption.ENCRYPTED_CHUNK_SIZE
+            + 100] ^= 1;
+        return mModified;
+    }
+}
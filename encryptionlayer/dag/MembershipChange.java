@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.dag;
+
+/**
+ * A single membership change of the DAG, i.e. a join or a leave operation.
+ * Changes are collected and handed over to
+ * {@link Operator#applyBatch(java.util.List)} to be applied with one rekeying
+ * of all affected nodes.
+ *
+ * @author ptrk01
+ */
+public final class MembershipChange {
+
+    /**
+     * Kind of membership change.
+     */
+    public enum Type {
+        /** Nodes are added to the DAG. */
+        JOIN,
+        /** Nodes or edges are removed from the DAG. */
+        LEAVE
+    }
+
+    /**
+     * Kind of this change.
+     */
+    private final Type mType;
+
+    /**
+     * Parent node on a join, child node on a leave.
+     */
+    private final String mNode;
+
+    /**
+     * New descendants on a join, parents to leave on a leave.
+     */
+    private final String[] mRelatives;
+
+    /**
+     * Constructor.
+     *
+     * @param paramType
+     *            kind of change.
+     * @param paramNode
+     *            parent node on a join, child node on a leave.
+     * @param paramRelatives
+     *            new descendants on a join, parents to leave on a leave.
+     */
+    private MembershipChange(final Type paramType, final String paramNode,
+        final String[] paramRelatives) {
+        this.mType = paramType;
+        this.mNode = paramNode;
+        this.mRelatives = paramRelatives;
+    }
+
+    /**
+     * Creates a join change.
+     *
+     * @param parent
+     *            root new node(s) should be attached.
+     * @param descendants
+     *            new node(s) array.
+     * @return
+     *         join change.
+     */
+    public static MembershipChange join(final String parent,
+        final String[] descendants) {
+        return new MembershipChange(Type.JOIN, parent, descendants);
+    }
+
+    /**
+     * Creates a leave change.
+     *
+     * @param child
+     *            node or node edge to remove.
+     * @param parents
+     *            parent nodes of child, connection should remove.
+     * @return
+     *         leave change.
+     */
+    public static MembershipChange leave(final String child,
+        final String[] parents) {
+        return new MembershipChange(Type.LEAVE, child, parents);
+    }
+
+    /**
+     * Returns kind of change.
+     *
+     * @return
+     *         change type.
+     */
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * Returns parent node on a join, child node on a leave.
+     *
+     * @return
+     *         node name.
+     */
+    public String getNode() {
+        return mNode;
+    }
+
+    /**
+     * Returns new descendants on a join, parents to leave on a leave.
+     *
+     * @return
+     *         node names.
+     */
+    public String[] getRelatives() {
+        return mRelatives;
+    }
+
+}
@@ -27,21 +27,31 @@
  */
 package encryptionlayer.dag;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.TreeMap;
 
 import encrpytionlayer.exception.TTEncryptionException;
+import encryptionlayer.cache.KeyCache;
+import encryptionlayer.collections.LongHashSet;
+import encryptionlayer.collections.LongIterator;
+import encryptionlayer.collections.LongLongHashMap;
+import encryptionlayer.collections.LongObjectHashMap;
 import encryptionlayer.database.model.DAGSelector;
 import encryptionlayer.database.model.KeyManager;
 import encryptionlayer.database.model.KeySelector;
-import encryptionlayer.utils.NodeEncryption;
+import encryptionlayer.database.model.SelectorKey;
+import encryptionlayer.utils.KeyTrail;
+import encryptionlayer.utils.KeyTrailBatch;
+import encryptionlayer.utils.KeyTrailEncryptor;
 
 public class Operator {
 
@@ -56,314 +66,364 @@ public class Operator {
      */
     public void join(final String parent, final String[] descendants)
         throws TTEncryptionException {
+        final List<MembershipChange> mBatch = new LinkedList<MembershipChange>();
+        mBatch.add(MembershipChange.join(parent, descendants));
+        applyBatch(mBatch);
+    }
 
-        final LinkedList<Long> idsChanged = new LinkedList<Long>();
-        String user = "ALL";
-        if (descendants.length > 0) {
-            user = descendants[descendants.length - 1];
-            if(!nodeExists(user)){
-                // create key manager entry for new user.
-                Controller.getInstance().getManDb().putEntry(new KeyManager(user,
-                    new HashSet<Long>()));
-            }
-        }
-        if (nodeExists(parent)) {
-            final long parentKey = getNodeKey(parent);
-
-            // calculate all nodes that are affected by the join update
-            final Queue<Long> queue = new LinkedList<Long>();
-            final LinkedList<Long> visited = new LinkedList<Long>();
-            queue.add(parentKey);
-            visited.add(parentKey);
-            idsChanged.add(parentKey);
-            while (!queue.isEmpty()) {
-                final DAGSelector mDAG = getDAGSelector(queue.remove());
-                final LinkedList<Long> parents = mDAG.getParents();
-                for (long aParent : parents) {
-                    if (!visited.contains(aParent)) {
-                        queue.add(aParent);
-                        if (!idsChanged.contains(aParent)) {
-                            idsChanged.add(aParent);
-                        }
-                        visited.add(aParent);
-                    }
-                }
-            }
-
-            // create all new nodes
-            long prevNode = -1;
-            final long lastNodeRevChild = getNodeKey(descendants[0]);
-            final long lastNodeRevParent = getNodeKey(parent);
-            for (int i = descendants.length - 1; i >= 0; i--) {
-                // check if node to be inserted already exits, if so, do only a connection
-                if (descendants.length == 1 && lastNodeRevChild != -1) {
-                    final DAGSelector mParentNode =
-                        Controller.getInstance().getDAGDb().getEntry(
-                            lastNodeRevParent);
-                    mParentNode.addChild(lastNodeRevChild);
-                    Controller.getInstance().getDAGDb().putEntry(mParentNode);
-
-                    final DAGSelector mChildNode =
-                        Controller.getInstance().getDAGDb().getEntry(
-                            lastNodeRevChild);
-                    mChildNode.addParent(lastNodeRevParent);
-                    Controller.getInstance().getDAGDb().putEntry(mChildNode);
-
-                } else {
-
-                    final LinkedList<Long> parentList = new LinkedList<Long>();
-                    final LinkedList<Long> childList = new LinkedList<Long>();
-
-                    if (prevNode != -1) {
-                        childList.add(prevNode);
-                    }
-
-                    final DAGSelector mNewNode =
-                        new DAGSelector(descendants[i], parentList, childList,
-                            0, 0, NodeEncryption.generateSecretKey());
-
-                    if (i == 0) {
-                        mNewNode.addParent(parentKey);
-
-                        final DAGSelector mPrevNode =
-                            Controller.getInstance().getDAGDb().getEntry(
-                                parentKey);
-                        mPrevNode.addChild(mNewNode.getPrimaryKey());
-                        Controller.getInstance().getDAGDb().putEntry(mPrevNode);
-                    }
-
-                    Controller.getInstance().getDAGDb().putEntry(mNewNode);
+    /**
+     * Remove nodes or edges from the DAG.
+     *
+     * @param child
+     *            node or node edge to remove.
+     * @param parents
+     *            parent node of child, connection should remove. If empty, all
+     *            connections are removed.
+     * @throws TTEncryptionException
+     */
+    public void leave(final String child, final String[] parents)
+        throws TTEncryptionException {
+        final List<MembershipChange> mBatch = new LinkedList<MembershipChange>();
+        mBatch.add(MembershipChange.leave(child, parents));
+        applyBatch(mBatch);
+    }
 
-                    if (prevNode != -1) {
-                        final DAGSelector mPrevNode =
-                            Controller.getInstance().getDAGDb().getEntry(
-                                prevNode);
-                        final LinkedList<Long> prevNodeParents =
-                            mPrevNode.getParents();
-                        prevNodeParents.add(mNewNode.getPrimaryKey());
-                        Controller.getInstance().getDAGDb().putEntry(mPrevNode);
-                    }
+    /**
+     * Moves a node from some parents to others within one batch, so the
+     * affected ancestors are rekeyed and written to the selector store only
+     * once. Connections to the new parents are made before the old ones are
+     * removed, hence the node is never removed from the DAG in between. A move
+     * not changing any connection does nothing.
+     *
+     * @param child
+     *            node to be moved.
+     * @param fromParents
+     *            parent nodes of child, connection should remove.
+     * @param toParents
+     *            parent nodes, child should be connected to.
+     * @throws TTEncryptionException
+     */
+    public void move(final String child, final String[] fromParents,
+        final String[] toParents) throws TTEncryptionException {
+        final long childKey = getNodeKey(child);
+        if (childKey == -1) {
+            throw new TTEncryptionException("Move: Node to be moved does not exist!");
+        }
 
-                    prevNode = mNewNode.getPrimaryKey();
+        final Set<String> mTo = new LinkedHashSet<String>();
+        for (String aParent : toParents) {
+            mTo.add(aParent);
+        }
 
-                }
+        // only remove existing connections not restored by the move
+        final List<String> mRemove = new LinkedList<String>();
+        for (String aParent : fromParents) {
+            final long parentKey = getNodeKey(aParent);
+            if (parentKey == -1) {
+                throw new TTEncryptionException("Move: Parent node " + aParent
+                    + " does not exist!");
             }
+            if (!mTo.contains(aParent)
+                && getGraph().hasEdge(parentKey, childKey)
+                && !mRemove.contains(aParent)) {
+                mRemove.add(aParent);
+            }
+        }
 
-
-            // update revisions and secret material
-            for (long idChanged : idsChanged) {
-                final DAGSelector mNode =
-                    Controller.getInstance().getDAGDb().getEntry(idChanged);
-                mNode.increaseRevision();
-                mNode.setSecretKey(NodeEncryption.generateSecretKey());
-                Controller.getInstance().getDAGDb().putEntry(mNode);
+        // only add connections not existing yet
+        final List<MembershipChange> mBatch = new LinkedList<MembershipChange>();
+        for (String aParent : mTo) {
+            final long parentKey = getNodeKey(aParent);
+            if (parentKey == -1) {
+                throw new TTEncryptionException("Move: Parent node " + aParent
+                    + " does not exist!");
             }
+            if (!getGraph().hasEdge(parentKey, childKey)) {
+                mBatch.add(MembershipChange.join(aParent, new String[] {
+                    child
+                }));
+            }
+        }
 
-            // write new DAG revision to selector store
-            final Map<Long, Long> newOldIds = new HashMap<Long, Long>();
-            final LinkedList<KeySelector> keySels =
-                new LinkedList<KeySelector>();
-            final SortedMap<Long, DAGSelector> mMap =
-                Controller.getInstance().getDAGDb().getEntries();
-            final Iterator<Long> iter = mMap.keySet().iterator();
-            while (iter.hasNext()) {
-                final DAGSelector mDAG = mMap.get(iter.next());
-                final KeySelector mSel =
-                    new KeySelector(mDAG.getName(), mDAG.getParents(), mDAG
-                        .getChilds(), mDAG.getRevision(), mDAG.getVersion(),
-                        mDAG.getSecretKey());
-                keySels.add(mSel);
-                newOldIds.put(mDAG.getPrimaryKey(), mSel.getPrimaryKey());
+        if (!mRemove.isEmpty()) {
+            if (getGraph().childCount(childKey) != 0) {
+                throw new TTEncryptionException(
+                    "Move: Node to be moved is not a leaf node!");
             }
+            mBatch.add(MembershipChange.leave(child, mRemove
+                .toArray(new String[mRemove.size()])));
+        }
 
-            for (int i = 0; i < keySels.size(); i++) {
-                KeySelector aSel = keySels.get(i);
+        if (!mBatch.isEmpty()) {
+            applyBatch(mBatch);
+        }
+    }
 
-                final Iterator<Long> mIter = newOldIds.keySet().iterator();
-                while (mIter.hasNext()) {
-                    final long key = mIter.next();
-                    final long value = newOldIds.get(key);
+    /**
+     * Applies a batch of membership changes. All structural changes are
+     * applied first in the given order, then every affected node is rekeyed
+     * only once, one DAG revision is written to the selector store and one set
+     * of key trails is transmitted for the whole batch. A node affected by a
+     * join gets a new revision, one affected by a leave a new version. In
+     * lazy rekeying mode the secret keys are only marked stale and generated
+     * on first use.
+     *
+     * If a change fails, the changes applied before are still rekeyed and
+     * persisted before the exception is thrown.
+     *
+     * @param paramChanges
+     *            list of membership changes.
+     * @throws TTEncryptionException
+     */
+    public void applyBatch(final List<MembershipChange> paramChanges)
+        throws TTEncryptionException {
+        final BatchState mState = new BatchState();
 
-                    if (aSel.getParents().contains(key)) {
-                        aSel.removeParent(key);
-                        aSel.addParent(value);
+        TTEncryptionException mFailure = null;
+        try {
+            for (MembershipChange aChange : paramChanges) {
+                if (aChange.getType() == MembershipChange.Type.JOIN) {
+                    applyJoin(aChange.getNode(), aChange.getRelatives(), mState);
+                } else {
+                    applyLeave(aChange.getNode(), aChange.getRelatives(),
+                        mState);
+                }
+            }
+        } catch (final TTEncryptionException e) {
+            mFailure = e;
+        }
 
+        if (!mState.mNodesChanged.isEmpty()) {
+            // update revisions, versions and secret material once per node
+            final LongHashSet idsChanged = new LongHashSet();
+            final LongHashSet mAffected = new LongHashSet(mState.mJoined.size());
+            mAffected.addAll(mState.mJoined);
+            mAffected.addAll(mState.mLeft);
+            final LongIterator mIter = mAffected.iterator();
+            while (mIter.hasNext()) {
+                final long aAffected = mIter.next();
+                final DAGSelector mNode = getDAGSelector(aAffected);
+
+                // mNode is NULL, when node has been removed later in the batch
+                if (mNode != null) {
+                    if (mState.mJoined.contains(aAffected)) {
+                        mNode.increaseRevision();
                     }
-                    if (aSel.getChilds().contains(key)) {
-                        aSel.removeChild(key);
-                        aSel.addChild(value);
-
+                    if (mState.mLeft.contains(aAffected)) {
+                        mNode.increaseVersion();
+                    }
+                    if (Controller.getInstance().checkLazyRekeying()) {
+                        mNode.markStale();
+                    } else {
+                        mNode.setSecretKey(Controller.getInstance()
+                            .newSecretKey());
                     }
+                    Controller.getInstance().getDAGDb().putEntry(mNode);
+                    idsChanged.add(aAffected);
                 }
-                Controller.getInstance().getSelDb().putEntry(aSel);
             }
 
-            updateKeyManagerJoin(newOldIds, user);
+            // write new DAG revision to selector store
+            writeSelectors(mState.mNodesChanged);
+
+            // renew wrapped data keys in the background, the objects
+            // themselves stay untouched; with lazy rekeying nodes are
+            // submitted once their new key is generated
+            if (!Controller.getInstance().checkLazyRekeying()) {
+                Controller.getInstance().getRewrapScheduler().submit(
+                    idsChanged);
+            }
+
+            updateKeyManagers(mState);
+
+            // refresh only the cached keys of changed nodes
+            final Map<String, KeyManager> mOwners =
+                getOwners(mState.mNodesChanged);
+            invalidateKeyCache(mState.mNodesChanged, mOwners);
 
             // create and transmit key trails
-            final Map<Long, byte[]> mKeyTrails = encryptKeyTrails(idsChanged);
+            final Map<String, List<KeyTrail>> mKeyTrails =
+                encryptKeyTrails(idsChanged, mOwners);
             transmitKeyTrails(mKeyTrails);
-
-        } else {
-            throw new TTEncryptionException("Join: Parent node does not exist!");
         }
 
+        if (mFailure != null) {
+            throw mFailure;
+        }
     }
 
     /**
-     * Remove nodes or edges from the DAG.
+     * Applies the structural part of a join operation.
      *
-     * @param child
-     *            node or node edge to remove.
-     * @param parents
-     *            parent node of child, connection should remove.
+     * @param parent
+     *            root new node(s) should be attached.
+     * @param descendants
+     *            new node(s) array.
+     * @param paramState
+     *            state of the running batch.
      * @throws TTEncryptionException
      */
-    public void leave(final String child, final String[] parents)
-        throws TTEncryptionException {
-        final LinkedList<Long> idsChanged = new LinkedList<Long>();
+    private void applyJoin(final String parent, final String[] descendants,
+        final BatchState paramState) throws TTEncryptionException {
+        if (!nodeExists(parent)) {
+            throw new TTEncryptionException("Join: Parent node does not exist!");
+        }
 
-        final long childKey = getNodeKey(child);
-        final DAGSelector mDAGSel = getDAGSelector(childKey);
-        if (!nodeExists(child) || mDAGSel.getChilds().size() == 0) {
+        if (descendants.length > 0) {
+            final String user = descendants[descendants.length - 1];
+            if (!nodeExists(user)) {
+                // create key manager entry for new user.
+                Controller.getInstance().getManDb().putEntry(
+                    new KeyManager(user, new HashSet<Long>()));
+            }
+            paramState.mUsers.add(user);
+        }
 
-            final String user = child;
+        final long parentKey = getNodeKey(parent);
 
-            // check if all parent nodes exits and whether they are parents of child
-            for (String aParent : parents) {
-                if (!nodeExists(aParent)) {
-                    throw new TTEncryptionException("Leave: Parent node "
-                        + aParent + " does not exist!");
-                }
-            }
+        // calculate all nodes that are affected by the join update
+        for (long aChanged : getGraph().ancestors(parentKey)) {
+            paramState.mJoined.add(aChanged);
+            paramState.mNodesChanged.add(aChanged);
+        }
+
+        // create all new nodes
+        long prevNode = -1;
+        final long lastNodeRevChild =
+            descendants.length > 0 ? getNodeKey(descendants[0]) : -1;
+        for (int i = descendants.length - 1; i >= 0; i--) {
+            // check if node to be inserted already exits, if so, do only a connection
+            if (descendants.length == 1 && lastNodeRevChild != -1) {
+                final DAGSelector mParentNode =
+                    Controller.getInstance().getDAGDb().getEntry(parentKey);
+                mParentNode.addChild(lastNodeRevChild);
+                Controller.getInstance().getDAGDb().putEntry(mParentNode);
+
+                final DAGSelector mChildNode =
+                    Controller.getInstance().getDAGDb().getEntry(
+                        lastNodeRevChild);
+                mChildNode.addParent(parentKey);
+                Controller.getInstance().getDAGDb().putEntry(mChildNode);
+
+                getGraph().addEdge(parentKey, lastNodeRevChild);
+                paramState.mNodesChanged.add(lastNodeRevChild);
+                paramState.mAttached.add(lastNodeRevChild);
 
-            // calculate all nodes that are affected by the leave update
-            final Queue<Long> queue = new LinkedList<Long>();
-            final LinkedList<Long> visited = new LinkedList<Long>();
-            if (parents.length == 0) {
-                queue.add(childKey);
-                visited.add(childKey);
-                idsChanged.add(childKey);
-                while (!queue.isEmpty()) {
-                    final DAGSelector mDAG = getDAGSelector(queue.remove());
-                    final LinkedList<Long> parentList = mDAG.getParents();
-                    for (long aParent : parentList) {
-                        if (!visited.contains(aParent)) {
-                            queue.add(aParent);
-                            if (!idsChanged.contains(aParent)) {
-                                idsChanged.add(aParent);
-                            }
-                            visited.add(aParent);
-                        }
-                    }
-                }
             } else {
-                for (String aParent : parents) {
-                    final long parentKey = getNodeKey(aParent);
-                    queue.add(parentKey);
-                    visited.add(parentKey);
-                    idsChanged.add(parentKey);
-                }
-                while (!queue.isEmpty()) {
-                    final DAGSelector mDAG = getDAGSelector(queue.remove());
-                    final LinkedList<Long> parentList = mDAG.getParents();
-                    for (long aParent : parentList) {
-                        if (!visited.contains(aParent)) {
-                            queue.add(aParent);
-                            if (!idsChanged.contains(aParent)) {
-                                idsChanged.add(aParent);
-                            }
-                            visited.add(aParent);
-                        }
-                    }
+
+                final LinkedList<Long> parentList = new LinkedList<Long>();
+                final LinkedList<Long> childList = new LinkedList<Long>();
+
+                if (prevNode != -1) {
+                    childList.add(prevNode);
                 }
-            }
 
-            // update version and secret material and node references
-            for (long idChanged : idsChanged) {
-                final DAGSelector mNode =
-                    Controller.getInstance().getDAGDb().getEntry(idChanged);
-                mNode.increaseVersion();
-                mNode.setSecretKey(NodeEncryption.generateSecretKey());
+                final DAGSelector mNewNode =
+                    new DAGSelector(descendants[i], parentList, childList, 0,
+                        0, Controller.getInstance().newSecretKey());
 
-                // delete all references of delete node
-                if (mNode.getParents().contains(childKey)) {
-                    mNode.removeParent(childKey);
+                getGraph().addNode(mNewNode.getPrimaryKey());
+                paramState.mNodesChanged.add(mNewNode.getPrimaryKey());
 
-                }
-                if (mNode.getChilds().contains(childKey)) {
-                    mNode.removeChild(childKey);
+                if (i == 0) {
+                    mNewNode.addParent(parentKey);
+                    getGraph().addEdge(parentKey, mNewNode.getPrimaryKey());
+                    paramState.mAttached.add(mNewNode.getPrimaryKey());
+
+                    final DAGSelector mPrevNode =
+                        Controller.getInstance().getDAGDb().getEntry(parentKey);
+                    mPrevNode.addChild(mNewNode.getPrimaryKey());
+                    Controller.getInstance().getDAGDb().putEntry(mPrevNode);
                 }
 
-                Controller.getInstance().getDAGDb().putEntry(mNode);
-            }
+                Controller.getInstance().getDAGDb().putEntry(mNewNode);
 
-            // remove node from DAG if parents to delete is same size as its parents; if not, remove its
-            // references from delete parents
-            DAGSelector node =
-                Controller.getInstance().getDAGDb().getEntry(childKey);
-            final Map<Long, Long> newOldIds = new HashMap<Long, Long>();
-            if (parents.length == node.getParents().size()) {
-                Controller.getInstance().getDAGDb().deleteEntry(childKey);
-                Controller.getInstance().getManDb().deleteEntry(user);
-                newOldIds.put(childKey, -1L);
-            } else {
-                for (String aParent : parents) {
-                    if (node.getParents().contains(getNodeKey(aParent))) {
-                        node.removeParent(getNodeKey(aParent));
-                    }
+                if (prevNode != -1) {
+                    final DAGSelector mPrevNode =
+                        Controller.getInstance().getDAGDb().getEntry(prevNode);
+                    final LinkedList<Long> prevNodeParents =
+                        mPrevNode.getParents();
+                    prevNodeParents.add(mNewNode.getPrimaryKey());
+                    Controller.getInstance().getDAGDb().putEntry(mPrevNode);
+                    getGraph().addEdge(mNewNode.getPrimaryKey(), prevNode);
                 }
-                Controller.getInstance().getDAGDb().putEntry(node);
-            }
 
-            // write new DAG revision to selector store
-            LinkedList<KeySelector> keySels = new LinkedList<KeySelector>();
-            final SortedMap<Long, DAGSelector> mMap =
-                Controller.getInstance().getDAGDb().getEntries();
-            final Iterator<Long> iter = mMap.keySet().iterator();
-            while (iter.hasNext()) {
-                final DAGSelector mDAG = mMap.get(iter.next());
-                KeySelector mSel =
-                    new KeySelector(mDAG.getName(), mDAG.getParents(), mDAG
-                        .getChilds(), mDAG.getRevision(), mDAG.getVersion(),
-                        mDAG.getSecretKey());
-                keySels.add(mSel);
-                newOldIds.put(mDAG.getPrimaryKey(), mSel.getPrimaryKey());
-            }
+                prevNode = mNewNode.getPrimaryKey();
 
-            for (int i = 0; i < keySels.size(); i++) {
-                KeySelector aSel = keySels.get(i);
+            }
+        }
+    }
 
-                final Iterator<Long> mIter = newOldIds.keySet().iterator();
-                while (mIter.hasNext()) {
-                    final long key = mIter.next();
-                    final long value = newOldIds.get(key);
+    /**
+     * Applies the structural part of a leave operation.
+     *
+     * @param child
+     *            node or node edge to remove.
+     * @param parents
+     *            parent node of child, connection should remove. If empty, all
+     *            connections are removed.
+     * @param paramState
+     *            state of the running batch.
+     * @throws TTEncryptionException
+     */
+    private void applyLeave(final String child, final String[] parents,
+        final BatchState paramState) throws TTEncryptionException {
+        final long childKey = getNodeKey(child);
+        if (childKey == -1 || getGraph().childCount(childKey) != 0) {
+            throw new TTEncryptionException(
+                "Leave: Node to be deleted does not exist or is not a leaf node!");
+        }
 
-                    if (aSel.getParents().contains(key)) {
-                        aSel.removeParent(key);
-                        if (value != -1) {
-                            aSel.addParent(value);
-                        }
-                    }
-                    if (aSel.getChilds().contains(key)) {
-                        aSel.removeChild(key);
-                        if (value != -1) {
-                            aSel.addChild(value);
-                        }
-                    }
-                }
-                Controller.getInstance().getSelDb().putEntry(aSel);
+        // check if all parent nodes exits
+        for (String aParent : parents) {
+            if (!nodeExists(aParent)) {
+                throw new TTEncryptionException("Leave: Parent node "
+                    + aParent + " does not exist!");
             }
+        }
 
-            updateKeyManagerLeave(newOldIds, user);
+        final DAGSelector node =
+            Controller.getInstance().getDAGDb().getEntry(childKey);
+        final long[] mLeft;
+        if (parents.length == 0) {
+            mLeft = new long[node.getParents().size()];
+            for (int i = 0; i < mLeft.length; i++) {
+                mLeft[i] = node.getParents().get(i);
+            }
+        } else {
+            mLeft = new long[parents.length];
+            for (int i = 0; i < parents.length; i++) {
+                mLeft[i] = getNodeKey(parents[i]);
+            }
+        }
 
-            // create and transmit key trails
-            final Map<Long, byte[]> mKeyTrails = encryptKeyTrails(idsChanged);
-            transmitKeyTrails(mKeyTrails);
+        // calculate all nodes that are affected by the leave update
+        for (long aChanged : getGraph().ancestors(mLeft)) {
+            paramState.mLeft.add(aChanged);
+            paramState.mNodesChanged.add(aChanged);
+        }
+        paramState.mNodesChanged.add(childKey);
+        paramState.mUsers.add(child);
+
+        // delete all references between child and the parents to leave
+        for (long aParent : mLeft) {
+            if (node.getParents().contains(aParent)) {
+                node.removeParent(aParent);
+                getGraph().removeEdge(aParent, childKey);
+
+                final DAGSelector mParentNode = getDAGSelector(aParent);
+                mParentNode.removeChild(childKey);
+                Controller.getInstance().getDAGDb().putEntry(mParentNode);
+            }
+        }
 
+        // remove node from DAG if it has no parents anymore
+        if (node.getParents().isEmpty()) {
+            Controller.getInstance().getDAGDb().deleteEntry(childKey);
+            getGraph().removeNode(childKey);
+            Controller.getInstance().getManDb().deleteEntry(child);
         } else {
-            throw new TTEncryptionException(
-                "Leave: Node to be deleted does not exist or is not a leaf node!");
+            Controller.getInstance().getDAGDb().putEntry(node);
         }
     }
 
@@ -376,16 +436,7 @@ public class Operator {
      *         bool result.
      */
     public boolean nodeExists(final String nodeName) {
-        final SortedMap<Long, DAGSelector> mMap =
-            Controller.getInstance().getDAGDb().getEntries();
-        final Iterator<Long> iter = mMap.keySet().iterator();
-        while (iter.hasNext()) {
-            final DAGSelector mSelector = mMap.get(iter.next());
-            if (mSelector.getName().equals(nodeName)) {
-                return true;
-            }
-        }
-        return false;
+        return Controller.getInstance().getDAGDb().getKeyByName(nodeName) != -1;
     }
 
     /**
@@ -397,17 +448,7 @@ public class Operator {
      *         id of node.
      */
     public long getNodeKey(final String nodeName) {
-        final SortedMap<Long, DAGSelector> mMap =
-            Controller.getInstance().getDAGDb().getEntries();
-        final Iterator<Long> iter = mMap.keySet().iterator();
-        long curNode = -1;
-        while (iter.hasNext()) {
-            final DAGSelector mSelector = mMap.get(iter.next());
-            if (mSelector.getName().equals(nodeName)) {
-                curNode = mSelector.getPrimaryKey();
-            }
-        }
-        return curNode;
+        return Controller.getInstance().getDAGDb().getKeyByName(nodeName);
     }
 
     /**
@@ -424,8 +465,7 @@ public class Operator {
         final long parentKey = getNodeKey(parent);
         final long childKey = getNodeKey(child);
         if (nodeExists(child) && nodeExists(parent)) {
-            if (Controller.getInstance().getDAGDb().getEntry(childKey)
-                .getParents().contains(parentKey)) {
+            if (getGraph().hasEdge(parentKey, childKey)) {
                 return true;
             }
         }
@@ -445,6 +485,16 @@ public class Operator {
         return Controller.getInstance().getDAGDb().getEntry(id);
     }
 
+    /**
+     * Returns the memory resident graph mirroring the current DAG.
+     *
+     * @return
+     *         DAGGraph instance.
+     */
+    private DAGGraph getGraph() {
+        return Controller.getInstance().getGraph();
+    }
+
     /**
      * Returns KeyManager instance of given id.
      *
@@ -458,146 +508,309 @@ public class Operator {
     }
 
     /**
-     * Transmits the key to the client.
+     * Transmits the key trails to the clients of all users, encoded as one
+     * batch of the current DAG revision per user.
      *
-     * @param paramKeyTails
-     *            map of key trails.
+     * @param paramKeyTrails
+     *            key trails by user.
      */
-    private void transmitKeyTrails(final Map<Long, byte[]> paramKeyTails) {
-        new ClientHandler().decryptKeyTrails(paramKeyTails);
+    private void transmitKeyTrails(
+        final Map<String, List<KeyTrail>> paramKeyTrails) {
+        final ClientHandler mClient = new ClientHandler();
+        for (Map.Entry<String, List<KeyTrail>> aEntry : paramKeyTrails
+            .entrySet()) {
+            final KeyTrailBatch mBatch =
+                new KeyTrailBatch(Controller.getInstance().getDAGRevision(),
+                    aEntry.getValue());
+            final ByteBuffer mWire =
+                ByteBuffer.allocate(mBatch.getEncodedSize());
+            mBatch.encode(mWire);
+            mWire.flip();
+            mClient.receiveKeyTrails(aEntry.getKey(), mWire);
+        }
     }
 
     /**
-     * Updates the key manager on a join operation.
+     * Writes a new DAG revision to the selector store. Only the given nodes
+     * get a new key selector; removed nodes get a selector marking their
+     * removal.
      *
-     * @param paramMap
-     *            map containing all through join effected nodes with old and new id.
+     * @param paramNodes
+     *            dag keys of all nodes changed by the operation.
      */
-    private void updateKeyManagerJoin(final Map<Long, Long> paramMap,
-        final String user) {
-        final Iterator<String> mOuterIter =
-            Controller.getInstance().getManDb().getEntries().keySet()
-                .iterator();
-
-        while (mOuterIter.hasNext()) { // iterate through all users.
-            final String mKeyUser = (String)mOuterIter.next();
-            final KeyManager mManager =
-                Controller.getInstance().getManDb().getEntries().get(mKeyUser);
-
-            final Iterator<Long> mInnerIter = paramMap.keySet().iterator();
-            while (mInnerIter.hasNext()) { // iterate through all keys that have changed.
-                final long mId = (Long)mInnerIter.next();
-                if (mKeyUser.equals(user)) {
-                    mManager.addKey(paramMap.get(mId));
-                } else if (mManager.getKeySet().contains(mId)) {
-                    mManager.addKey(paramMap.get(mId));
+    private void writeSelectors(final LongHashSet paramNodes) {
+        final long revision = Controller.getInstance().newDAGRevision();
+        final LongIterator mIter = paramNodes.iterator();
+        while (mIter.hasNext()) {
+            final long aNode = mIter.next();
+            final DAGSelector mDAG = getDAGSelector(aNode);
+            if (mDAG == null) {
+                final SortedMap<SelectorKey, KeySelector> mHistory =
+                    Controller.getInstance().getSelDb().getRevisions(aNode);
+
+                // history is empty, when node has been added and removed in
+                // the same batch
+                if (!mHistory.isEmpty()) {
+                    Controller.getInstance().getSelDb().putEntry(
+                        new KeySelector(mHistory.get(mHistory.lastKey()),
+                            revision));
                 }
+            } else {
+                Controller.getInstance().getSelDb().putEntry(
+                    new KeySelector(mDAG, revision));
             }
-            Controller.getInstance().getManDb().putEntry(mManager);
         }
     }
 
     /**
-     * Updates the key manager on a leave operation.
+     * Updates the key managers after the structural changes of a batch. Since
+     * nodes keep their dag key over all revisions, only users whose ancestors
+     * may have changed are touched: the joining and leaving users and all
+     * users below an attached node, i.e. all users holding its key, looked up
+     * by the key set index. Their key set is set to the keys of all their
+     * current ancestors.
      *
-     * @param paramMap
-     *            map containing all through leave effected nodes with old and new id.
+     * @param paramState
+     *            state of the applied batch.
      */
-    private void updateKeyManagerLeave(final Map<Long, Long> paramMap,
-        final String user) {
-        final Iterator<String> mOuterIter =
-            Controller.getInstance().getManDb().getEntries().keySet()
-                .iterator();
-        while (mOuterIter.hasNext()) { // iterate through all users.
-            final String mKeyUser = (String)mOuterIter.next();
-            final KeyManager mManager =
-                Controller.getInstance().getManDb().getEntries().get(mKeyUser);
-
-            final Iterator<Long> mInnerIter = paramMap.keySet().iterator();
-            while (mInnerIter.hasNext()) { // iterate through all keys that have changed.
-                long mId = (Long)mInnerIter.next();
-                if (mManager.getKeySet().contains(mId)) {
-                    mManager.addKey(paramMap.get(mId));
+    private void updateKeyManagers(final BatchState paramState) {
+        final Map<String, KeyManager> mDirty = new HashMap<String, KeyManager>();
+        for (String aUser : paramState.mUsers) {
+            final KeyManager mManager = getManager(aUser);
+
+            // mManager is NULL, when node has been removed completely
+            if (mManager != null) {
+                mDirty.put(aUser, mManager);
+            }
+        }
+        final LongIterator mIter = paramState.mAttached.iterator();
+        while (mIter.hasNext()) {
+            mDirty.putAll(Controller.getInstance().getManDb().getEntriesByKey(
+                mIter.next()));
+        }
+
+        for (KeyManager aManager : mDirty.values()) {
+            final long mUserKey = getNodeKey(aManager.getUser());
+
+            // mUserKey is -1, when user is not a node of the DAG
+            if (mUserKey != -1) {
+                aManager.getKeySet().clear();
+                for (long aKey : getGraph().ancestors(mUserKey)) {
+                    aManager.addKey(aKey);
                 }
+                Controller.getInstance().getManDb().putEntry(aManager);
             }
+        }
+    }
 
-            // remove all old keys from user's key manager it is losing through group leaving.
-            if (mKeyUser.equals(user)) {
-                final Iterator<Long> mapIter = paramMap.keySet().iterator();
-                while (mapIter.hasNext()) {
-                    final long mMapKey = (Long)mapIter.next();
-                    if (mManager.getKeySet().contains(mMapKey)) {
-                        if (!mManager.getKeySet().contains(
-                            paramMap.get(mMapKey))) {
-                            mManager.removeKey(mMapKey);
-
-                            final Iterator<Long> mIter =
-                                Controller.getInstance().getDAGDb()
-                                    .getEntries().keySet().iterator();
-                            while (mIter.hasNext()) {
-                                long mMapId = (Long)mIter.next();
-                                final DAGSelector mInnerSel =
-                                    Controller.getInstance().getDAGDb()
-                                        .getEntries().get(mMapId);
-                                if (mInnerSel.getName().equals(
-                                    Controller.getInstance().getDAGDb()
-                                        .getEntry(mMapKey).getName())) {
-                                    mManager.removeKey(mMapId);
-                                }
-                            }
-                        }
-                    }
+    /**
+     * Nodes and users touched by the structural changes of a batch.
+     */
+    private static final class BatchState {
+
+        /**
+         * Nodes affected by a join, getting a new revision.
+         */
+        private final LongHashSet mJoined = new LongHashSet();
+
+        /**
+         * Nodes affected by a leave, getting a new version.
+         */
+        private final LongHashSet mLeft = new LongHashSet();
+
+        /**
+         * All nodes changed, including new and removed ones.
+         */
+        private final LongHashSet mNodesChanged = new LongHashSet();
+
+        /**
+         * Nodes attached to a parent by a join.
+         */
+        private final LongHashSet mAttached = new LongHashSet();
+
+        /**
+         * Users joined or left.
+         */
+        private final Set<String> mUsers = new HashSet<String>();
+
+    }
+
+    /**
+     * Returns the key managers of all users owning at least one of the given
+     * nodes.
+     *
+     * @param paramNodes
+     *            dag keys of nodes.
+     * @return
+     *         key managers by user.
+     */
+    private Map<String, KeyManager> getOwners(final LongHashSet paramNodes) {
+        final Map<String, KeyManager> mManagers =
+            new TreeMap<String, KeyManager>();
+        final LongIterator mIter = paramNodes.iterator();
+        while (mIter.hasNext()) {
+            mManagers.putAll(Controller.getInstance().getManDb()
+                .getEntriesByKey(mIter.next()));
+        }
+        return mManagers;
+    }
+
+    /**
+     * Refreshes the keys of changed nodes in the key cache. Cached users
+     * owning a changed node get its key tagged with the new revision and
+     * version, all others lose it; no user is reloaded as a whole.
+     *
+     * @param paramNodes
+     *            dag keys of all nodes changed by the operation.
+     * @param paramOwners
+     *            key managers of all users owning a changed node.
+     */
+    private void invalidateKeyCache(final LongHashSet paramNodes,
+        final Map<String, KeyManager> paramOwners) {
+        final LongLongHashMap mChanged = new LongLongHashMap(paramNodes.size());
+        final LongIterator mIter = paramNodes.iterator();
+        while (mIter.hasNext()) {
+            final long aNode = mIter.next();
+            final DAGSelector mNode = getDAGSelector(aNode);
+
+            // mNode is NULL, when node has been removed
+            if (mNode == null) {
+                mChanged.put(aNode, KeyCache.NO_TAG);
+            } else {
+                mChanged.put(aNode, KeyCache.tag(mNode.getRevision(), mNode
+                    .getVersion()));
+            }
+        }
+
+        final Map<String, LongHashSet> mOwned =
+            new HashMap<String, LongHashSet>();
+        for (KeyManager aManager : paramOwners.values()) {
+            final LongHashSet mKeys = new LongHashSet();
+            for (Long aKey : aManager.getKeySet()) {
+                if (paramNodes.contains(aKey)) {
+                    mKeys.add(aKey);
                 }
             }
-            Controller.getInstance().getManDb().putEntry(mManager);
+            mOwned.put(aManager.getUser(), mKeys);
         }
+
+        Controller.getInstance().getKeyCache().invalidate(mChanged, mOwned);
     }
 
     /**
-     * Creates and encrypts key trails.
+     * Sends the key trails of a node to all users owning it, after its
+     * secret key has been generated on first use.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     */
+    void transmitKeyTrails(final long paramDAGKey) {
+        final LongHashSet mNodes = new LongHashSet(1);
+        mNodes.add(paramDAGKey);
+        transmitKeyTrails(encryptKeyTrails(mNodes, getOwners(mNodes)));
+    }
+
+    /**
+     * Creates key trails for all users owning a changed node. Each trail
+     * wraps the secret key of a changed node under the secret key of one of
+     * its childs the user owns as well. A trail needed by several users is
+     * created once and shared. With lazy rekeying stale nodes get no trails
+     * here; they are sent once their key is generated on first use.
      *
      * @param paramList
-     *            id list of all node which are affected by update.
+     *            ids of all nodes which are affected by update.
+     * @param paramManagers
+     *            key managers of at least all users owning a node of the
+     *            list.
      * @return
-     *         key trails map.
+     *         key trails by user.
      */
-    private Map<Long, byte[]> encryptKeyTrails(final List<Long> paramList) {
-
-        final Map<Long, byte[]> mKeyTrails = new HashMap<Long, byte[]>();
-        final KeyManager mKeyManager = getManager(new Controller().getUser());
-
-        // mKeyManager is NULL, when logged user is not a member of any group
-        if (mKeyManager != null) {
-            final Set<Long> mUserKeySet = mKeyManager.getKeySet();
-
-            final Iterator<Long> mSetIter = mUserKeySet.iterator();
-
-            while (mSetIter.hasNext()) {
-                final long mMapId = (Long)mSetIter.next();
-
-                if (paramList.contains(mMapId)) {
-
-                    final List<Long> mChilds =
-                        Controller.getInstance().getDAGDb().getEntry(mMapId)
-                            .getChilds();
-                    for (int i = 0; i < mChilds.size(); i++) {
-                        if (mUserKeySet.contains(mChilds.get(i))) {
-                            final byte[] mChildSecretKey =
-                                Controller.getInstance().getDAGDb().getEntry(
-                                    mChilds.get(i)).getSecretKey();
-                            final byte[] mIdAsByteArray =
-                                NodeEncryption.longToByteArray(mMapId);
-                            final byte[] mEncryptedId =
-                                NodeEncryption.encrypt(mIdAsByteArray,
-                                    mChildSecretKey);
-                            mKeyTrails.put(mChilds.get(i), mEncryptedId);
+    private Map<String, List<KeyTrail>> encryptKeyTrails(
+        final LongHashSet paramList,
+        final Map<String, KeyManager> paramManagers) {
+
+        // generating keys of stale nodes here would defeat lazy rekeying
+        final LongHashSet mChanged = new LongHashSet(paramList.size());
+        final boolean mLazy = Controller.getInstance().checkLazyRekeying();
+        final LongIterator mIter = paramList.iterator();
+        while (mIter.hasNext()) {
+            final long aId = mIter.next();
+            if (!mLazy || !getDAGSelector(aId).isStale()) {
+                mChanged.add(aId);
+            }
+        }
+
+        // register the wanted trails of all users
+        final KeyTrailEncryptor mEncryptor = new KeyTrailEncryptor();
+        final LongObjectHashMap<DAGSelector> mNodes =
+            new LongObjectHashMap<DAGSelector>();
+        for (KeyManager aManager : paramManagers.values()) {
+            final Set<Long> mUserKeySet = aManager.getKeySet();
+            for (Long aId : mUserKeySet) {
+                if (mChanged.contains(aId)) {
+                    for (Long aChild : getNode(aId, mEncryptor, mNodes)
+                        .getChilds()) {
+                        if (mUserKeySet.contains(aChild)) {
+                            getNode(aChild, mEncryptor, mNodes);
+                            mEncryptor.addTrail(aId, aChild);
+                        }
+                    }
+                }
+            }
+        }
+
+        mEncryptor.encrypt();
+
+        // hand out the shared trails
+        final Map<String, List<KeyTrail>> mKeyTrails =
+            new HashMap<String, List<KeyTrail>>();
+        for (KeyManager aManager : paramManagers.values()) {
+            final Set<Long> mUserKeySet = aManager.getKeySet();
+            final List<KeyTrail> mUserTrails = new ArrayList<KeyTrail>();
+            for (Long aId : mUserKeySet) {
+                if (mChanged.contains(aId)) {
+                    for (Long aChild : mNodes.get(aId).getChilds()) {
+                        if (mUserKeySet.contains(aChild)) {
+                            mUserTrails.add(mEncryptor.getTrail(aId, aChild));
                         }
                     }
                 }
             }
+            if (!mUserTrails.isEmpty()) {
+                mKeyTrails.put(aManager.getUser(), mUserTrails);
+            }
         }
 
         return mKeyTrails;
     }
 
+    /**
+     * Returns a node and registers its current secret key, reading the node
+     * only once per operation. A stale key is generated, as the trail needs
+     * it.
+     *
+     * @param paramId
+     *            dag key of node.
+     * @param paramEncryptor
+     *            encryptor to register key at.
+     * @param paramNodes
+     *            nodes read before.
+     * @return
+     *         the node.
+     */
+    private DAGSelector getNode(final long paramId,
+        final KeyTrailEncryptor paramEncryptor,
+        final LongObjectHashMap<DAGSelector> paramNodes) {
+        DAGSelector mNode = paramNodes.get(paramId);
+        if (mNode == null) {
+            final byte[] mSecretKey =
+                Controller.getInstance().getSecretKey(paramId);
+            mNode = getDAGSelector(paramId);
+            paramEncryptor.addNode(paramId, mNode.getRevision(), mNode
+                .getVersion(), mSecretKey);
+            paramNodes.put(paramId, mNode);
+        }
+        return mNode;
+    }
+
 }
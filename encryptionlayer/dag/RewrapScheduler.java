@@ -0,0 +1,626 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.dag;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import encrpytionlayer.exception.TTEncryptionException;
+import encryptionlayer.collections.LongHashSet;
+import encryptionlayer.collections.LongIterator;
+import encryptionlayer.collections.LongObjectHashMap;
+import encryptionlayer.database.RewrapJobDatabase;
+import encryptionlayer.database.model.DAGSelector;
+import encryptionlayer.database.model.DataKey;
+import encryptionlayer.database.model.KeySelector;
+import encryptionlayer.database.model.RewrapJob;
+import encryptionlayer.utils.NodeEncryption;
+
+/**
+ * Background scheduler re-wrapping the data keys of rekeyed nodes under their
+ * new secret keys. Operations only submit the nodes they have rekeyed, so a
+ * revocation completes without re-wrapping on the latency path of the
+ * operation. The work is bounded by a number of worker threads, a CPU budget
+ * of data keys unwrapped and wrapped per second and an I/O budget of database
+ * reads and writes per second. Pending jobs are persisted and resumed by
+ * {@link #start()}. A failed job is retried with exponential backoff; after
+ * {@link #MAX_ATTEMPTS} attempts it is given up, reported by
+ * {@link #awaitIdle()} and {@link #getFailed()}, and stays persisted until
+ * the node is submitted again or the scheduler is restarted.
+ * <p>
+ * Only objects of envelope encryption are covered, whose data keys are
+ * stored in the {@link encryptionlayer.database.DataKeyDatabase}. Data
+ * encrypted directly under a node key, by
+ * {@link ClientHandler#encryptData(long, byte[])}, the streams or
+ * {@link encryptionlayer.utils.ParallelEncryption}, is held by the caller and
+ * has to be re-encrypted by it after a revocation.
+ *
+ * @author ptrk01
+ */
+public class RewrapScheduler {
+
+    /**
+     * Default number of worker threads.
+     */
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * Rate meaning that re-wrapping is not throttled.
+     */
+    public static final int UNLIMITED = 0;
+
+    /**
+     * Number of locks nodes are striped over, so a node is never processed by
+     * two workers at the same time.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Number of attempts of a job before it is given up.
+     */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * Delay before the first retry of a failed job in milliseconds, doubled
+     * with every further attempt.
+     */
+    private static final long RETRY_DELAY = 100;
+
+    /**
+     * Time to wait for each worker to stop on shutdown in milliseconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    /**
+     * Nodes waiting to be processed, failed ones delayed until their retry.
+     */
+    private final BlockingQueue<Job> mQueue = new DelayQueue<Job>();
+
+    /**
+     * Nodes in queue, so a node is queued at most once.
+     */
+    private final LongHashSet mQueued = new LongHashSet();
+
+    /**
+     * Number of nodes queued or being processed.
+     */
+    private int mPending;
+
+    /**
+     * Nodes whose jobs have been given up.
+     */
+    private final LongHashSet mFailed = new LongHashSet();
+
+    /**
+     * Failure of the job given up last.
+     */
+    private Exception mLastFailure;
+
+    /**
+     * Marks that the scheduler has been shut down.
+     */
+    private boolean mShutdown;
+
+    /**
+     * Locks nodes are striped over.
+     */
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * Worker threads.
+     */
+    private final Thread[] mWorkers;
+
+    /**
+     * Budget of data keys unwrapped and wrapped.
+     */
+    private final RateLimiter mCpuBudget;
+
+    /**
+     * Budget of database reads and writes.
+     */
+    private final RateLimiter mIoBudget;
+
+    /**
+     * Database persisting the pending jobs.
+     */
+    private final RewrapJobDatabase mJobDB;
+
+    /**
+     * Number of data keys re-wrapped.
+     */
+    private final AtomicLong mRewrapped = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param paramJobDB
+     *            database persisting the pending jobs.
+     * @param paramThreads
+     *            number of worker threads.
+     * @param paramCpuRate
+     *            maximum number of data keys unwrapped and wrapped per second
+     *            or {@link #UNLIMITED}.
+     * @param paramIoRate
+     *            maximum number of database reads and writes per second or
+     *            {@link #UNLIMITED}.
+     */
+    public RewrapScheduler(final RewrapJobDatabase paramJobDB,
+        final int paramThreads, final int paramCpuRate, final int paramIoRate) {
+        mJobDB = paramJobDB;
+        mCpuBudget = new RateLimiter(paramCpuRate);
+        mIoBudget = new RateLimiter(paramIoRate);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new Object();
+        }
+        mWorkers = new Thread[paramThreads];
+        for (int i = 0; i < paramThreads; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            final Job mJob = take();
+                            Exception mFailure = null;
+                            try {
+                                process(mJob.mDAGKey);
+                            } catch (final TTEncryptionException exc) {
+                                mFailure = exc;
+                            } catch (final RuntimeException exc) {
+                                mFailure = exc;
+                            }
+                            if (mFailure == null) {
+                                done(mJob.mDAGKey);
+                            } else {
+                                failed(mJob, mFailure);
+                            }
+                        }
+                    } catch (final InterruptedException exc) {
+                        // scheduler has been shut down, jobs stay persisted
+                    }
+                }
+            }, "RewrapScheduler-" + i);
+            mWorkers[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Resumes all persisted jobs and starts the workers.
+     */
+    public final void start() {
+        synchronized (this) {
+            for (Long aDAGKey : mJobDB.getEntries().keySet()) {
+                enqueue(aDAGKey);
+            }
+        }
+        for (Thread aWorker : mWorkers) {
+            aWorker.start();
+        }
+    }
+
+    /**
+     * Stops the workers and waits for them to finish, so none of them writes
+     * to the databases afterwards. Pending jobs stay persisted.
+     *
+     * @return
+     *         true if all workers have stopped within the timeout.
+     */
+    public final boolean shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+            mQueue.clear();
+            mQueued.clear();
+            mPending = 0;
+            notifyAll();
+        }
+        for (Thread aWorker : mWorkers) {
+            aWorker.interrupt();
+        }
+        boolean mStopped = true;
+        for (Thread aWorker : mWorkers) {
+            if (aWorker == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                aWorker.join(SHUTDOWN_TIMEOUT);
+            } catch (final InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+            mStopped &= !aWorker.isAlive();
+        }
+        return mStopped;
+    }
+
+    /**
+     * Submits a node whose data keys have to be re-wrapped under its current
+     * secret key.
+     *
+     * @param paramDAGKey
+     *            dag key of rekeyed node.
+     */
+    public final synchronized void submit(final long paramDAGKey) {
+        RewrapJob mJob = mJobDB.getEntry(paramDAGKey);
+        if (mJob == null) {
+            mJob = new RewrapJob(paramDAGKey);
+        }
+        mJob.addRequest();
+        mJobDB.putEntry(mJob);
+        enqueue(paramDAGKey);
+    }
+
+    /**
+     * Submits all nodes of a set.
+     *
+     * @param paramDAGKeys
+     *            dag keys of rekeyed nodes.
+     */
+    public final synchronized void submit(final LongHashSet paramDAGKeys) {
+        final LongIterator mIter = paramDAGKeys.iterator();
+        while (mIter.hasNext()) {
+            submit(mIter.next());
+        }
+    }
+
+    /**
+     * Waits until all submitted jobs have been processed or given up.
+     *
+     * @return
+     *         true if no job has been given up.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public final synchronized boolean awaitIdle() throws InterruptedException {
+        while (mPending > 0) {
+            wait();
+        }
+        return mFailed.isEmpty();
+    }
+
+    /**
+     * Returns the nodes whose jobs have been given up.
+     *
+     * @return
+     *         dag keys of nodes.
+     */
+    public final synchronized LongHashSet getFailed() {
+        final LongHashSet mNodes = new LongHashSet(mFailed.size());
+        mNodes.addAll(mFailed);
+        return mNodes;
+    }
+
+    /**
+     * Returns the failure of the job given up last.
+     *
+     * @return
+     *         failure or null if no job has been given up.
+     */
+    public final synchronized Exception getLastFailure() {
+        return mLastFailure;
+    }
+
+    /**
+     * Returns number of nodes queued or being processed.
+     *
+     * @return
+     *         number of pending jobs.
+     */
+    public final synchronized int getPending() {
+        return mPending;
+    }
+
+    /**
+     * Returns number of data keys re-wrapped.
+     *
+     * @return
+     *         number of re-wraps.
+     */
+    public final long getRewrapped() {
+        return mRewrapped.get();
+    }
+
+    /**
+     * Queues a node unless it is already queued.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     */
+    private void enqueue(final long paramDAGKey) {
+        if (!mShutdown && mQueued.add(paramDAGKey)) {
+            mPending++;
+            mQueue.add(new Job(paramDAGKey, 0, 0));
+        }
+    }
+
+    /**
+     * Takes the next node to process.
+     *
+     * @return
+     *         job of node.
+     * @throws InterruptedException
+     *             if the scheduler has been shut down.
+     */
+    private Job take() throws InterruptedException {
+        final Job mJob = mQueue.take();
+        synchronized (this) {
+            mQueued.remove(mJob.mDAGKey);
+        }
+        return mJob;
+    }
+
+    /**
+     * Marks a taken node as processed.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     */
+    private synchronized void done(final long paramDAGKey) {
+        if (!mShutdown) {
+            mFailed.remove(paramDAGKey);
+            release();
+        }
+    }
+
+    /**
+     * Queues a failed node again after a backoff delay, or gives it up after
+     * {@link #MAX_ATTEMPTS} attempts. Its job stays persisted either way.
+     *
+     * @param paramJob
+     *            failed job.
+     * @param paramFailure
+     *            failure of the job.
+     */
+    private synchronized void failed(final Job paramJob,
+        final Exception paramFailure) {
+        if (mShutdown) {
+            return;
+        }
+        final int mAttempts = paramJob.mAttempts + 1;
+        if (mAttempts < MAX_ATTEMPTS) {
+            if (mQueued.add(paramJob.mDAGKey)) {
+                mQueue.add(new Job(paramJob.mDAGKey, mAttempts, RETRY_DELAY
+                    << (mAttempts - 1)));
+            } else {
+                // submitted again meanwhile, the queued job takes over
+                release();
+            }
+        } else {
+            mFailed.add(paramJob.mDAGKey);
+            mLastFailure = paramFailure;
+            release();
+        }
+    }
+
+    /**
+     * Decrements the number of pending jobs and wakes up waiting threads.
+     */
+    private void release() {
+        mPending--;
+        if (mPending == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Re-wraps all data keys of a node not wrapped under its current secret
+     * key and completes the job, unless it has been requested again in the
+     * meantime.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @throws InterruptedException
+     *             if the scheduler has been shut down.
+     * @throws TTEncryptionException
+     *             if a data key could not be re-wrapped; all others are
+     *             re-wrapped nevertheless.
+     */
+    private void process(final long paramDAGKey) throws InterruptedException,
+        TTEncryptionException {
+        final Controller mController = Controller.getInstance();
+        final RewrapJob mJob = mJobDB.getEntry(paramDAGKey);
+        final long mRequests = mJob == null ? 0 : mJob.getRequests();
+        TTEncryptionException mFailure = null;
+
+        synchronized (mLocks[(int)(paramDAGKey & (LOCK_STRIPES - 1))]) {
+            final DAGSelector mNode =
+                mController.getDAGDb().getEntry(paramDAGKey);
+
+            // removed nodes keep their last key; nodes whose new key has not
+            // been generated or stored yet are submitted again afterwards
+            final KeySelector mCurrent =
+                mNode == null ? null : mController.getSelDb().getEntry(
+                    paramDAGKey, mNode.getRevision(), mNode.getVersion());
+            if (mCurrent != null && mCurrent.getSecretKey() != null) {
+                // old secret keys by revision and version, read once each
+                final LongObjectHashMap<KeySelector> mOldKeys =
+                    new LongObjectHashMap<KeySelector>();
+                for (DataKey aDataKey : mController.getDataDb()
+                    .getEntriesByNode(paramDAGKey).values()) {
+                    if (aDataKey.getRevision() == mNode.getRevision()
+                        && aDataKey.getVersion() == mNode.getVersion()) {
+                        continue;
+                    }
+                    final long mOldId =
+                        ((long)aDataKey.getRevision() << 32)
+                            | (aDataKey.getVersion() & 0xFFFFFFFFL);
+                    KeySelector mOld = mOldKeys.get(mOldId);
+                    if (mOld == null) {
+                        mIoBudget.acquire();
+                        mOld =
+                            mController.getSelDb().getEntry(paramDAGKey,
+                                aDataKey.getRevision(), aDataKey.getVersion());
+                        mOldKeys.put(mOldId, mOld);
+                    }
+                    if (mOld == null || mOld.getSecretKey() == null) {
+                        mFailure =
+                            new TTEncryptionException("No key of node "
+                                + paramDAGKey + " exists at revision "
+                                + aDataKey.getRevision() + "."
+                                + aDataKey.getVersion() + "!");
+                        continue;
+                    }
+                    mCpuBudget.acquire();
+                    final byte[] mDataKey =
+                        NodeEncryption.unwrapKey(aDataKey.getWrappedKey(), mOld
+                            .getSecretKey());
+                    final byte[] mWrapped =
+                        mDataKey == null ? null : NodeEncryption.wrapKey(
+                            mDataKey, mCurrent.getSecretKey());
+                    if (mWrapped == null) {
+                        mFailure =
+                            new TTEncryptionException("Data key of object "
+                                + aDataKey.getPrimaryKey()
+                                + " could not be re-wrapped!");
+                        continue;
+                    }
+                    aDataKey.setWrappedKey(mNode.getRevision(), mNode
+                        .getVersion(), mWrapped);
+                    mIoBudget.acquire();
+                    mController.getDataDb().putEntry(aDataKey);
+                    mRewrapped.incrementAndGet();
+                }
+            }
+        }
+
+        if (mFailure != null) {
+            throw mFailure;
+        }
+
+        synchronized (this) {
+            final RewrapJob mLatest = mJobDB.getEntry(paramDAGKey);
+            if (mLatest != null && mLatest.getRequests() == mRequests) {
+                mJobDB.deleteEntry(paramDAGKey);
+            }
+        }
+    }
+
+    /**
+     * Queued node, delayed until its retry if it has failed before.
+     */
+    private static final class Job implements Delayed {
+
+        /**
+         * Dag key of node.
+         */
+        private final long mDAGKey;
+
+        /**
+         * Number of failed attempts.
+         */
+        private final int mAttempts;
+
+        /**
+         * Point in time the job is due at in nanoseconds.
+         */
+        private final long mDue;
+
+        /**
+         * Constructor.
+         *
+         * @param paramDAGKey
+         *            dag key of node.
+         * @param paramAttempts
+         *            number of failed attempts.
+         * @param paramDelay
+         *            delay in milliseconds.
+         */
+        Job(final long paramDAGKey, final int paramAttempts,
+            final long paramDelay) {
+            mDAGKey = paramDAGKey;
+            mAttempts = paramAttempts;
+            mDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(paramDelay);
+        }
+
+        @Override
+        public long getDelay(final TimeUnit paramUnit) {
+            return paramUnit.convert(mDue - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed paramOther) {
+            final long mDiff =
+                getDelay(TimeUnit.NANOSECONDS)
+                    - paramOther.getDelay(TimeUnit.NANOSECONDS);
+            return mDiff < 0 ? -1 : (mDiff > 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * Budget of operations per second, handing out evenly spaced slots.
+     */
+    private static final class RateLimiter {
+
+        /**
+         * Nanoseconds between two operations or 0 if not throttled.
+         */
+        private final long mInterval;
+
+        /**
+         * Point in time the next operation is allowed at.
+         */
+        private long mNextSlot = System.nanoTime();
+
+        /**
+         * Constructor.
+         *
+         * @param paramRate
+         *            maximum number of operations per second or
+         *            {@link RewrapScheduler#UNLIMITED}.
+         */
+        RateLimiter(final int paramRate) {
+            mInterval =
+                paramRate == UNLIMITED ? 0 : TimeUnit.SECONDS.toNanos(1)
+                    / paramRate;
+        }
+
+        /**
+         * Waits until the budget allows the next operation.
+         *
+         * @throws InterruptedException
+         *             if the scheduler has been shut down.
+         */
+        void acquire() throws InterruptedException {
+            if (mInterval == 0) {
+                return;
+            }
+            final long mWait;
+            synchronized (this) {
+                final long mNow = System.nanoTime();
+                final long mSlot = Math.max(mNextSlot, mNow);
+                mNextSlot = mSlot + mInterval;
+                mWait = mSlot - mNow;
+            }
+            if (mWait > 0) {
+                TimeUnit.NANOSECONDS.sleep(mWait);
+            }
+        }
+    }
+
+}
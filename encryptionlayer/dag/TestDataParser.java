@@ -32,10 +32,12 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
+import encryptionlayer.database.model.DAGSelector;
 import encryptionlayer.exception.TTEncryptionException;
 
 public class TestDataParser {
@@ -45,6 +47,7 @@ public class TestDataParser {
 
     private static int joinOps = 0;
     private static int leaveOps = 0;
+    private static int moveOps = 0;
 
     public static void main(String[] args) {
         try {
@@ -60,7 +63,12 @@ public class TestDataParser {
                 + (System.currentTimeMillis() - time) + "ms");
             System.out.println("Total joins: " + joinOps);
             System.out.println("Total leaves: " + leaveOps);
-            System.out.println("Total ops: " + (joinOps + leaveOps));
+            System.out.println("Total moves: " + moveOps);
+            System.out.println("Total ops: " + (joinOps + leaveOps + moveOps));
+            System.out.println("Key pool hits: "
+                + Controller.getInstance().getKeyPool().getHits()
+                + " misses: "
+                + Controller.getInstance().getKeyPool().getMisses());
 
             new Controller().print();
             new Controller().clear();
@@ -94,7 +102,7 @@ public class TestDataParser {
                         + (System.currentTimeMillis() - time) + "ms");
                     time = System.currentTimeMillis();
                     System.out.println("Joins: " + joinOps + " Leaves: "
-                        + leaveOps);
+                        + leaveOps + " Moves: " + moveOps);
                     System.out.println("");
                 }
 
@@ -137,16 +145,37 @@ public class TestDataParser {
                     // System.out.println("Parent: " + parentNode);
 
                     if (op.checkMembership(childNode, parentNode)) {
-                        op.leave(childNode, new String[] {
-                            parentNode
-                        });
+                        // leave and re-join in one batch, rekeying the
+                        // parent chain once
+                        op.applyBatch(Arrays.asList(MembershipChange.leave(
+                            childNode, new String[] {
+                                parentNode
+                            }), MembershipChange.join(parentNode,
+                            new String[] {
+                                childNode
+                            })));
                         leaveOps++;
-                        op.join(parentNode, new String[] {
-                            childNode
-                        });
                         joinOps++;
                     }
 
+                    else if (op.nodeExists(childNode)
+                        && op.nodeExists(parentNode)) {
+                        // node changes its parent, move it keeping its node
+                        final DAGSelector mChild =
+                            op.getDAGSelector(op.getNodeKey(childNode));
+                        final String[] fromParents =
+                            new String[mChild.getParents().size()];
+                        int k = 0;
+                        for (Long aParent : mChild.getParents()) {
+                            fromParents[k++] =
+                                op.getDAGSelector(aParent).getName();
+                        }
+                        op.move(childNode, fromParents, new String[] {
+                            parentNode
+                        });
+                        moveOps++;
+                    }
+
                     else {
                         String parent = "ROOT";
                         int i = 0;
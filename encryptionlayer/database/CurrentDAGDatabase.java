@@ -34,8 +34,10 @@ import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
 
 import encryptionlayer.exception.TTEncryptionException;
@@ -65,6 +67,11 @@ public class CurrentDAGDatabase extends AbsKeyDatabase {
      */
     private static final String NAME = "berkeleyDAGSelector";
 
+    /**
+     * Name of the secondary key holding the node names.
+     */
+    private static final String NAME_KEY = "mName";
+
     /**
      * Constructor. Building up the berkeley db and setting necessary settings.
      *
@@ -163,6 +170,69 @@ public class CurrentDAGDatabase extends AbsKeyDatabase {
         return entity;
     }
 
+    /**
+     * Getting the {@link DAGSelector} related to a given node name by using
+     * the secondary name index. If several nodes share the same name, the
+     * one with the highest key (the most recently created one) is returned.
+     *
+     * @param paramName
+     *            name of the node.
+     * @return
+     *         dag selector instance or null if no node has this name.
+     */
+    public final DAGSelector getEntryByName(final String paramName) {
+        SecondaryIndex<String, Long, DAGSelector> secondaryIndex;
+        DAGSelector entity = null;
+        try {
+            secondaryIndex = getNameIndex();
+
+            final EntityCursor<DAGSelector> mCursor =
+                secondaryIndex.subIndex(paramName).entities();
+            try {
+                entity = mCursor.last();
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return entity;
+    }
+
+    /**
+     * Getting the key of the node with the given name by using the secondary
+     * name index. Only the keys are read, no {@link DAGSelector} is
+     * deserialized.
+     *
+     * @param paramName
+     *            name of the node.
+     * @return
+     *         key of the node or -1 if no node has this name.
+     */
+    public final long getKeyByName(final String paramName) {
+        SecondaryIndex<String, Long, DAGSelector> secondaryIndex;
+        long key = -1;
+        try {
+            secondaryIndex = getNameIndex();
+
+            final EntityCursor<Long> mCursor =
+                secondaryIndex.subIndex(paramName).keys();
+            try {
+                final Long mKey = mCursor.last();
+                if (mKey != null) {
+                    key = mKey;
+                }
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return key;
+    }
+
     /**
      * Deletes an entry from database.
      *
@@ -229,4 +299,17 @@ public class CurrentDAGDatabase extends AbsKeyDatabase {
         return sMap;
     }
 
+    /**
+     * Returns the secondary index mapping node names to dag keys.
+     *
+     * @return
+     *         secondary name index.
+     */
+    private SecondaryIndex<String, Long, DAGSelector> getNameIndex() {
+        final PrimaryIndex<Long, DAGSelector> primaryIndex =
+            (PrimaryIndex<Long, DAGSelector>)mStore.getPrimaryIndex(
+                Long.class, DAGSelector.class);
+        return mStore.getSecondaryIndex(primaryIndex, String.class, NAME_KEY);
+    }
+
 }
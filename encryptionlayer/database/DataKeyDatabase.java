@@ -0,0 +1,311 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.database;
+
+import java.io.File;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
+import com.sleepycat.persist.StoreConfig;
+
+import encryptionlayer.exception.TTEncryptionException;
+import encryptionlayer.database.model.DataKey;
+
+/**
+ * Berkeley implementation of a persistent data key database, holding the
+ * wrapped data key of each encrypted object.
+ *
+ * @author ptrk01
+ */
+public class DataKeyDatabase extends AbsKeyDatabase {
+
+    /**
+     * Berkeley Environment for the database.
+     */
+    private Environment mEnv;
+
+    /**
+     * Berkeley Entity store instance for the database.
+     */
+    private EntityStore mStore;
+
+    /**
+     * Name for the database.
+     */
+    private static final String NAME = "berkeleyDataKey";
+
+    /**
+     * Name of the secondary key mapping nodes to the objects they own.
+     */
+    private static final String DAG_KEY = "mDAGKey";
+
+    /**
+     * Constructor. Building up the berkeley db and setting necessary settings.
+     *
+     * @param paramFile
+     *            the place where the berkeley db is stored.
+     */
+    public DataKeyDatabase(final File paramFile) {
+        super(paramFile);
+        EnvironmentConfig environmentConfig = new EnvironmentConfig();
+        environmentConfig.setAllowCreate(true);
+        environmentConfig.setTransactional(true);
+
+        final DatabaseConfig conf = new DatabaseConfig();
+        conf.setTransactional(true);
+        conf.setKeyPrefixing(true);
+
+        try {
+            mEnv = new Environment(place, environmentConfig);
+
+            StoreConfig storeConfig = new StoreConfig();
+            storeConfig.setAllowCreate(true);
+            storeConfig.setTransactional(true);
+            mStore = new EntityStore(mEnv, NAME, storeConfig);
+
+        } catch (final Exception mELExp) {
+            mELExp.printStackTrace();
+        }
+    }
+
+    /**
+     * Clearing the database. That is removing all elements
+     */
+    public final void clearPersistent() {
+        try {
+            for (final File file : place.listFiles()) {
+                if (!file.delete()) {
+                    throw new TTEncryptionException("Couldn't delete!");
+                }
+            }
+            if (!place.delete()) {
+                throw new TTEncryptionException("Couldn't delete!");
+            }
+
+            if (mStore != null) {
+                mStore.close();
+            }
+            if (mEnv != null) {
+                mEnv.close();
+            }
+        } catch (final TTEncryptionException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Putting a {@link DataKey} into the database.
+     *
+     * @param paramEntity
+     *            data key instance to get information for storage.
+     */
+    public final void putEntry(final DataKey paramEntity) {
+        PrimaryIndex<Long, DataKey> primaryIndex;
+        try {
+            primaryIndex =
+
+                (PrimaryIndex<Long, DataKey>)mStore.getPrimaryIndex(
+                    Long.class, DataKey.class);
+
+            primaryIndex.put(paramEntity);
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Getting the {@link DataKey} of a given object.
+     *
+     * @param paramKey
+     *            key of object.
+     * @return
+     *         data key instance or null if the object is unknown.
+     */
+    public final DataKey getEntry(final long paramKey) {
+        PrimaryIndex<Long, DataKey> primaryIndex;
+        DataKey entity = null;
+        try {
+            primaryIndex =
+
+                (PrimaryIndex<Long, DataKey>)mStore.getPrimaryIndex(
+                    Long.class, DataKey.class);
+
+            entity = (DataKey)primaryIndex.get(paramKey);
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return entity;
+    }
+
+    /**
+     * Deletes an entry from storage.
+     *
+     * @param paramKey
+     *            primary key of entry to delete.
+     * @return
+     *         status whether deletion was successful or not.
+     */
+    public final boolean deleteEntry(final long paramKey) {
+        PrimaryIndex<Long, DataKey> primaryIndex;
+        boolean status = false;
+        try {
+            primaryIndex =
+                (PrimaryIndex<Long, DataKey>)mStore.getPrimaryIndex(
+                    Long.class, DataKey.class);
+            status = primaryIndex.delete(paramKey);
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+
+        return status;
+    }
+
+    /**
+     * Returns number of database entries.
+     *
+     * @return
+     *         number of entries in database.
+     */
+    public final int count() {
+        PrimaryIndex<Long, DataKey> primaryIndex;
+        long counter = 0;
+        try {
+            primaryIndex =
+
+                (PrimaryIndex<Long, DataKey>)mStore.getPrimaryIndex(
+                    Long.class, DataKey.class);
+
+            counter = primaryIndex.count();
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return (int)counter;
+    }
+
+    /**
+     * Returns all database entries as {@link SortedMap}.
+     *
+     * @return
+     *         all database entries.
+     */
+    public final SortedMap<Long, DataKey> getEntries() {
+        PrimaryIndex<Long, DataKey> primaryIndex;
+        SortedMap<Long, DataKey> sMap = null;
+        try {
+            primaryIndex =
+
+                (PrimaryIndex<Long, DataKey>)mStore.getPrimaryIndex(
+                    Long.class, DataKey.class);
+
+            sMap = primaryIndex.sortedMap();
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return sMap;
+    }
+
+    /**
+     * Returns the highest object key stored.
+     *
+     * @return
+     *         highest object key or -1 if the database is empty.
+     */
+    public final long getLastKey() {
+        long mLast = -1;
+        try {
+            final PrimaryIndex<Long, DataKey> primaryIndex =
+                (PrimaryIndex<Long, DataKey>)mStore.getPrimaryIndex(
+                    Long.class, DataKey.class);
+
+            final EntityCursor<DataKey> mCursor = primaryIndex.entities();
+            try {
+                final DataKey mEntry = mCursor.last();
+                if (mEntry != null) {
+                    mLast = mEntry.getPrimaryKey();
+                }
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return mLast;
+    }
+
+    /**
+     * Returns the data keys of all objects owned by the given node by using
+     * the secondary dag key index.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @return
+     *         data keys of all objects owned by the node.
+     */
+    public final SortedMap<Long, DataKey> getEntriesByNode(
+        final long paramDAGKey) {
+        final SortedMap<Long, DataKey> sMap = new TreeMap<Long, DataKey>();
+        try {
+            final PrimaryIndex<Long, DataKey> primaryIndex =
+                (PrimaryIndex<Long, DataKey>)mStore.getPrimaryIndex(
+                    Long.class, DataKey.class);
+            final SecondaryIndex<Long, Long, DataKey> secondaryIndex =
+                mStore.getSecondaryIndex(primaryIndex, Long.class, DAG_KEY);
+
+            final EntityCursor<DataKey> mCursor =
+                secondaryIndex.subIndex(paramDAGKey).entities();
+            try {
+                for (DataKey aDataKey : mCursor) {
+                    sMap.put(aDataKey.getPrimaryKey(), aDataKey);
+                }
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return sMap;
+    }
+
+}
@@ -29,13 +29,16 @@ package encryptionlayer.database;
 
 import java.io.File;
 import java.util.SortedMap;
+import java.util.TreeMap;
 
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
 
 import encryptionlayer.exception.TTEncryptionException;
@@ -64,6 +67,11 @@ public class KeyManagerDatabase extends AbsKeyDatabase {
      */
     private static final String NAME = "berkeleyKeyManager";
 
+    /**
+     * Name of the secondary key mapping keys to the users owning them.
+     */
+    private static final String KEY_SET = "mKeySet";
+
     /**
      * Constructor. Building up the berkeley db and setting necessary settings.
      *
@@ -237,4 +245,40 @@ public class KeyManagerDatabase extends AbsKeyDatabase {
         return sMap;
     }
 
+    /**
+     * Returns the key managers of all users owning the given key by using
+     * the secondary key set index.
+     *
+     * @param paramKey
+     *            key the users own.
+     * @return
+     *         key managers of all users owning the key.
+     */
+    public final SortedMap<String, KeyManager> getEntriesByKey(
+        final long paramKey) {
+        final SortedMap<String, KeyManager> sMap =
+            new TreeMap<String, KeyManager>();
+        try {
+            final PrimaryIndex<String, KeyManager> primaryIndex =
+                (PrimaryIndex<String, KeyManager>)mStore.getPrimaryIndex(
+                    String.class, KeyManager.class);
+            final SecondaryIndex<Long, String, KeyManager> secondaryIndex =
+                mStore.getSecondaryIndex(primaryIndex, Long.class, KEY_SET);
+
+            final EntityCursor<KeyManager> mCursor =
+                secondaryIndex.subIndex(paramKey).entities();
+            try {
+                for (KeyManager aManager : mCursor) {
+                    sMap.put(aManager.getUser(), aManager);
+                }
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return sMap;
+    }
+
 }
@@ -29,17 +29,28 @@ package encryptionlayer.database;
 
 import java.io.File;
 import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
 
+import com.sleepycat.bind.EntityBinding;
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
 
 import encryptionlayer.exception.TTEncryptionException;
 import encryptionlayer.database.model.KeySelector;
+import encryptionlayer.database.model.SelectorKey;
 
 /**
  * Berkeley implementation of a persistent key selector database. That means
@@ -64,6 +75,11 @@ public class KeySelectorDatabase extends AbsKeyDatabase {
      */
     private static final String NAME = "berkeleyKeySelector";
 
+    /**
+     * Name of the secondary key holding the DAG revisions.
+     */
+    private static final String DAG_REVISION = "mDAGRevision";
+
     /**
      * Constructor. Building up the berkeley db and setting necessary settings.
      *
@@ -126,11 +142,11 @@ public class KeySelectorDatabase extends AbsKeyDatabase {
      *            key selector instance to put into database.
      */
     public final void putEntry(final KeySelector paramEntity) {
-        PrimaryIndex<Long, KeySelector> primaryIndex;
+        PrimaryIndex<SelectorKey, KeySelector> primaryIndex;
         try {
             primaryIndex =
-                (PrimaryIndex<Long, KeySelector>)mStore.getPrimaryIndex(
-                    Long.class, KeySelector.class);
+                (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                    SelectorKey.class, KeySelector.class);
 
             primaryIndex.put(paramEntity);
         } catch (DatabaseException e) {
@@ -147,13 +163,13 @@ public class KeySelectorDatabase extends AbsKeyDatabase {
      * @return
      *         key selector instance.
      */
-    public final KeySelector getEntry(final long paramKey) {
-        PrimaryIndex<Long, KeySelector> primaryIndex;
+    public final KeySelector getEntry(final SelectorKey paramKey) {
+        PrimaryIndex<SelectorKey, KeySelector> primaryIndex;
         KeySelector entity = null;
         try {
             primaryIndex =
-                (PrimaryIndex<Long, KeySelector>)mStore.getPrimaryIndex(
-                    Long.class, KeySelector.class);
+                (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                    SelectorKey.class, KeySelector.class);
             entity = (KeySelector)primaryIndex.get(paramKey);
 
         } catch (final DatabaseException mDbExp) {
@@ -169,12 +185,12 @@ public class KeySelectorDatabase extends AbsKeyDatabase {
      *         number of entries in database.
      */
     public final int count() {
-        PrimaryIndex<Long, KeySelector> primaryIndex;
+        PrimaryIndex<SelectorKey, KeySelector> primaryIndex;
         long counter = 0;
         try {
             primaryIndex =
-                (PrimaryIndex<Long, KeySelector>)mStore.getPrimaryIndex(
-                    Long.class, KeySelector.class);
+                (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                    SelectorKey.class, KeySelector.class);
             counter = primaryIndex.count();
 
         } catch (final DatabaseException mDbExp) {
@@ -189,13 +205,13 @@ public class KeySelectorDatabase extends AbsKeyDatabase {
      * @return
      *         all database entries.
      */
-    public final SortedMap<Long, KeySelector> getEntries() {
-        PrimaryIndex<Long, KeySelector> primaryIndex;
-        SortedMap<Long, KeySelector> sMap = null;
+    public final SortedMap<SelectorKey, KeySelector> getEntries() {
+        PrimaryIndex<SelectorKey, KeySelector> primaryIndex;
+        SortedMap<SelectorKey, KeySelector> sMap = null;
         try {
             primaryIndex =
-                (PrimaryIndex<Long, KeySelector>)mStore.getPrimaryIndex(
-                    Long.class, KeySelector.class);
+                (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                    SelectorKey.class, KeySelector.class);
             sMap = primaryIndex.sortedMap();
 
         } catch (final DatabaseException mDbExp) {
@@ -204,4 +220,223 @@ public class KeySelectorDatabase extends AbsKeyDatabase {
         return sMap;
     }
 
+    /**
+     * Getting the latest {@link KeySelector} of a node's key generation, i.e.
+     * the selector holding the secret key of the node at the given revision
+     * and version.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRev
+     *            revision of node.
+     * @param paramVer
+     *            version of node.
+     * @return
+     *         key selector instance or null if there is no such generation.
+     */
+    public final KeySelector getEntry(final long paramDAGKey,
+        final int paramRev, final int paramVer) {
+        PrimaryIndex<SelectorKey, KeySelector> primaryIndex;
+        KeySelector entity = null;
+        try {
+            primaryIndex =
+                (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                    SelectorKey.class, KeySelector.class);
+
+            final EntityCursor<KeySelector> mCursor =
+                primaryIndex.entities(new SelectorKey(paramDAGKey, paramRev,
+                    paramVer, 0), true, new SelectorKey(paramDAGKey, paramRev,
+                    paramVer, Long.MAX_VALUE), true);
+            try {
+                entity = mCursor.last();
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return entity;
+    }
+
+    /**
+     * Returns the selectors of several nodes at given revisions and versions
+     * with one cursor, instead of one lookup each. The cursor moves forward
+     * through the requested keys and jumps from one to the next, so
+     * selectors in between are not read. For each requested key the
+     * selector written last is returned.
+     *
+     * @param paramKeys
+     *            dag keys, revisions and versions of nodes; the DAG revision
+     *            of the keys has to be 0.
+     * @return
+     *         selectors by requested key; keys without selector are
+     *         missing.
+     */
+    public final SortedMap<SelectorKey, KeySelector> getEntries(
+        final SortedSet<SelectorKey> paramKeys) {
+        final SortedMap<SelectorKey, KeySelector> sMap =
+            new TreeMap<SelectorKey, KeySelector>();
+        if (paramKeys.isEmpty()) {
+            return sMap;
+        }
+        PrimaryIndex<SelectorKey, KeySelector> primaryIndex;
+        try {
+            primaryIndex =
+                (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                    SelectorKey.class, KeySelector.class);
+
+            final EntryBinding<SelectorKey> mKeyBinding =
+                primaryIndex.getKeyBinding();
+            final EntityBinding<KeySelector> mEntityBinding =
+                primaryIndex.getEntityBinding();
+            final DatabaseEntry mKeyEntry = new DatabaseEntry();
+            final DatabaseEntry mDataEntry = new DatabaseEntry();
+            final Cursor mCursor =
+                primaryIndex.getDatabase().openCursor(null, null);
+            try {
+                for (SelectorKey aKey : paramKeys) {
+                    // the selector written last of a generation precedes
+                    // the first key beyond it
+                    mKeyBinding.objectToEntry(new SelectorKey(aKey
+                        .getDAGKey(), aKey.getRevision(), aKey.getVersion(),
+                        Long.MAX_VALUE), mKeyEntry);
+                    OperationStatus mStatus =
+                        mCursor.getSearchKeyRange(mKeyEntry, mDataEntry,
+                            LockMode.DEFAULT);
+                    if (mStatus == OperationStatus.SUCCESS) {
+                        mStatus =
+                            mCursor.getPrev(mKeyEntry, mDataEntry,
+                                LockMode.DEFAULT);
+                    } else {
+                        mStatus =
+                            mCursor.getLast(mKeyEntry, mDataEntry,
+                                LockMode.DEFAULT);
+                    }
+                    final KeySelector mSelector =
+                        mStatus == OperationStatus.SUCCESS ? mEntityBinding
+                            .entryToObject(mKeyEntry, mDataEntry) : null;
+                    if (mSelector != null && isGeneration(mSelector, aKey)) {
+                        sMap.put(aKey, mSelector);
+                    }
+                }
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return sMap;
+    }
+
+    /**
+     * Checks whether a selector belongs to the node generation of a key.
+     *
+     * @param paramSelector
+     *            selector read.
+     * @param paramKey
+     *            dag key, revision and version of node.
+     * @return
+     *         true if dag key, revision and version match.
+     */
+    private static boolean isGeneration(final KeySelector paramSelector,
+        final SelectorKey paramKey) {
+        return paramSelector.getDAGKey() == paramKey.getDAGKey()
+            && paramSelector.getRevision() == paramKey.getRevision()
+            && paramSelector.getVersion() == paramKey.getVersion();
+    }
+
+    /**
+     * Returns all selectors written for one dag node, i.e. its history.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @return
+     *         selectors of node sorted by selector key.
+     */
+    public final SortedMap<SelectorKey, KeySelector> getRevisions(
+        final long paramDAGKey) {
+        PrimaryIndex<SelectorKey, KeySelector> primaryIndex;
+        final SortedMap<SelectorKey, KeySelector> sMap =
+            new TreeMap<SelectorKey, KeySelector>();
+        try {
+            primaryIndex =
+                (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                    SelectorKey.class, KeySelector.class);
+
+            final EntityCursor<KeySelector> mCursor =
+                primaryIndex.entities(new SelectorKey(paramDAGKey,
+                    Integer.MIN_VALUE, Integer.MIN_VALUE, 0), true,
+                    new SelectorKey(paramDAGKey, Integer.MAX_VALUE,
+                        Integer.MAX_VALUE, Long.MAX_VALUE), true);
+            try {
+                for (KeySelector aSel : mCursor) {
+                    sMap.put(aSel.getPrimaryKey(), aSel);
+                }
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return sMap;
+    }
+
+    /**
+     * Reconstructs the DAG as it was at the given DAG revision. Since only
+     * changed nodes are written per revision, the latest selector of each node
+     * up to the revision is taken; removed nodes are left out.
+     *
+     * @param paramDAGRevision
+     *            revision of the DAG.
+     * @return
+     *         selectors of all nodes at that revision mapped by dag key.
+     */
+    public final SortedMap<Long, KeySelector> getDAG(
+        final long paramDAGRevision) {
+        SecondaryIndex<Long, SelectorKey, KeySelector> secondaryIndex;
+        final SortedMap<Long, KeySelector> sMap =
+            new TreeMap<Long, KeySelector>();
+        try {
+            secondaryIndex = getSecondaryIndex(DAG_REVISION);
+
+            final EntityCursor<KeySelector> mCursor =
+                secondaryIndex.entities(null, true, paramDAGRevision, true);
+            try {
+                for (KeySelector aSel : mCursor) {
+                    if (aSel.isDeleted()) {
+                        sMap.remove(aSel.getDAGKey());
+                    } else {
+                        sMap.put(aSel.getDAGKey(), aSel);
+                    }
+                }
+            } finally {
+                mCursor.close();
+            }
+
+        } catch (final DatabaseException mDbExp) {
+            mDbExp.printStackTrace();
+        }
+        return sMap;
+    }
+
+    /**
+     * Returns a secondary index of the selectors.
+     *
+     * @param paramKeyName
+     *            name of the secondary key.
+     * @return
+     *         secondary index.
+     */
+    private SecondaryIndex<Long, SelectorKey, KeySelector> getSecondaryIndex(
+        final String paramKeyName) {
+        final PrimaryIndex<SelectorKey, KeySelector> primaryIndex =
+            (PrimaryIndex<SelectorKey, KeySelector>)mStore.getPrimaryIndex(
+                SelectorKey.class, KeySelector.class);
+        return mStore.getSecondaryIndex(primaryIndex, Long.class,
+            paramKeyName);
+    }
+
 }
@@ -31,6 +31,8 @@ import java.util.LinkedList;
 
 import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
 
 import encryptionlayer.dag.Controller;
 import encryptionlayer.utils.NodeEncryption;
@@ -45,8 +47,10 @@ public class DAGSelector {
     private long mDAGKey;
 
     /**
-     * Name of the node (group or user name).
+     * Name of the node (group or user name). Indexed to look up nodes by
+     * name without scanning the whole DAG.
      */
+    @SecondaryKey(relate = Relationship.MANY_TO_ONE)
     private String mName;
 
     /**
@@ -78,6 +82,12 @@ public class DAGSelector {
      */
     private byte[] mSecretKey;
 
+    /**
+     * Marks that the node has been rekeyed lazily and its new secret key has
+     * not been generated yet.
+     */
+    private boolean mStale;
+
     /**
      * Standard constructor.
      */
@@ -246,5 +256,26 @@ public class DAGSelector {
      */
     public final void setSecretKey(final byte[] mSecretKey) {
         this.mSecretKey = mSecretKey;
+        this.mStale = false;
+    }
+
+    /**
+     * Returns whether the secret key of node is stale, i.e. has to be
+     * generated before next use.
+     *
+     * @return
+     *         stale state.
+     */
+    public final boolean isStale() {
+        return mStale;
+    }
+
+    /**
+     * Marks secret key of node as stale. The old secret key is dropped, the
+     * new one is set on first use.
+     */
+    public final void markStale() {
+        this.mSecretKey = null;
+        this.mStale = true;
     }
 }
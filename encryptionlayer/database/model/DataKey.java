@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.database.model;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
+
+/**
+ * This class represents the data key model of envelope encryption. Each
+ * encrypted object has its own data key, which is stored wrapped under the
+ * secret key of the dag node owning the object. When the node is rekeyed
+ * only the wrapped data key has to be renewed, the encrypted object stays
+ * untouched.
+ *
+ * @author ptrk01
+ */
+@Entity
+public class DataKey {
+
+    /**
+     * Object key and primary key of database.
+     */
+    @PrimaryKey
+    private long mObjectKey;
+
+    /**
+     * Dag key of the node owning the object. Indexed to find all data keys to
+     * re-wrap after the node has been rekeyed.
+     */
+    @SecondaryKey(relate = Relationship.MANY_TO_ONE)
+    private long mDAGKey;
+
+    /**
+     * Revision of node whose secret key wraps the data key.
+     */
+    private int mRevision;
+
+    /**
+     * Version of node whose secret key wraps the data key.
+     */
+    private int mVersion;
+
+    /**
+     * Data key wrapped under the secret key of node.
+     */
+    private byte[] mWrappedKey;
+
+    /**
+     * Standard constructor.
+     */
+    public DataKey() {
+        super();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param paramObjectKey
+     *            key of encrypted object.
+     * @param paramDAGKey
+     *            dag key of owning node.
+     * @param paramRevision
+     *            revision of node whose secret key wraps the data key.
+     * @param paramVersion
+     *            version of node whose secret key wraps the data key.
+     * @param paramWrappedKey
+     *            wrapped data key.
+     */
+    public DataKey(final long paramObjectKey, final long paramDAGKey,
+        final int paramRevision, final int paramVersion,
+        final byte[] paramWrappedKey) {
+        this.mObjectKey = paramObjectKey;
+        this.mDAGKey = paramDAGKey;
+        this.mRevision = paramRevision;
+        this.mVersion = paramVersion;
+        this.mWrappedKey = paramWrappedKey;
+    }
+
+    /**
+     * Returns key of encrypted object.
+     *
+     * @return
+     *         object key.
+     */
+    public final long getPrimaryKey() {
+        return mObjectKey;
+    }
+
+    /**
+     * Returns dag key of owning node.
+     *
+     * @return
+     *         dag key.
+     */
+    public final long getDAGKey() {
+        return mDAGKey;
+    }
+
+    /**
+     * Returns revision of node whose secret key wraps the data key.
+     *
+     * @return
+     *         node's revision.
+     */
+    public final int getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * Returns version of node whose secret key wraps the data key.
+     *
+     * @return
+     *         node's version.
+     */
+    public final int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns wrapped data key.
+     *
+     * @return
+     *         wrapped data key.
+     */
+    public final byte[] getWrappedKey() {
+        return mWrappedKey;
+    }
+
+    /**
+     * Sets data key wrapped under another secret key of node.
+     *
+     * @param paramRevision
+     *            revision of node whose secret key wraps the data key.
+     * @param paramVersion
+     *            version of node whose secret key wraps the data key.
+     * @param paramWrappedKey
+     *            wrapped data key.
+     */
+    public final void setWrappedKey(final int paramRevision,
+        final int paramVersion, final byte[] paramWrappedKey) {
+        this.mRevision = paramRevision;
+        this.mVersion = paramVersion;
+        this.mWrappedKey = paramWrappedKey;
+    }
+}
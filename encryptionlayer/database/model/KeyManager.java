@@ -31,6 +31,8 @@ import java.util.Set;
 
 import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
 
 /**
  * This class represents the key manager model holding all key data
@@ -48,8 +50,10 @@ public class KeyManager {
     private String mUser;
 
     /**
-     * Set of keys the user owns.
+     * Set of keys the user owns. Indexed to look up all users owning a key
+     * without scanning all key managers.
      */
+    @SecondaryKey(relate = Relationship.MANY_TO_MANY)
     private Set<Long> mKeySet;
 
     /**
@@ -31,14 +31,21 @@ import java.util.LinkedList;
 
 import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.PrimaryKey;
-
-import encryptionlayer.dag.Controller;
-import encryptionlayer.utils.NodeEncryption;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
 
 /**
  * This class represents the key selector model holding all data
  * for a node of the right tree consisting of group and user nodes.
  *
+ * A key selector is a snapshot of one node of the current DAG taken at a
+ * certain DAG revision. Only nodes changed by an operation get a new key
+ * selector; parents and childs are referenced by their stable dag keys, so
+ * the DAG of any revision can be reconstructed by taking the latest
+ * selector of each node up to that revision. The selector is identified by
+ * the {@link SelectorKey} composed of dag key, revision and version of the
+ * node.
+ *
  * @author ptrk01
  */
 @Entity
@@ -48,32 +55,33 @@ public class KeySelector {
      * Selector key and primary key of database.
      */
     @PrimaryKey
-    private long mSelectorKey;
+    private SelectorKey mSelectorKey;
 
     /**
-     * Name of the node (group or user name).
+     * Revision of the whole DAG this selector has been written for.
      */
-    private String mName;
+    @SecondaryKey(relate = Relationship.MANY_TO_ONE)
+    private long mDAGRevision;
 
     /**
-     * List of parent nodes.
+     * Marks that the node has been removed from the DAG at this revision.
      */
-    private LinkedList<Long> mParents;
+    private boolean mDeleted;
 
     /**
-     * List of child nodes.
+     * Name of the node (group or user name).
      */
-    private LinkedList<Long> mChilds;
+    private String mName;
 
     /**
-     * Current revision of node.
+     * List of parent nodes.
      */
-    private int mRevision;
+    private LinkedList<Long> mParents;
 
     /**
-     * Current version of node.
+     * List of child nodes.
      */
-    private int mVersion;
+    private LinkedList<Long> mChilds;
 
     /**
      * Secret key using for data en-/decryption.
@@ -88,146 +96,137 @@ public class KeySelector {
     }
 
     /**
-     * Constructor for building an new key selector instance.
+     * Constructor for building a snapshot of a dag node at the given DAG
+     * revision.
      *
-     * @param paramName
-     *            node name.
-     */
-    public KeySelector(final String paramName, final LinkedList<Long> paramPar,
-        final LinkedList<Long> paramChild, final int paramRev,
-        final int paramVer, byte[] mSecretKey) {
-        this.mSelectorKey = Controller.getInstance().newSelectorKey();
-
-        this.mName = paramName;
-        this.mParents = paramPar;
-        this.mChilds = paramChild;
-        this.mRevision = paramRev;
-        this.mVersion = paramVer;
-        this.mSecretKey = mSecretKey;
-    }
-
-    /**
-     * Returns selector id.
-     *
-     * @return
-     *         selector id.
+     * @param paramNode
+     *            current dag node.
+     * @param paramDAGRevision
+     *            revision of the DAG.
      */
-    public final long getPrimaryKey() {
-        return mSelectorKey;
+    public KeySelector(final DAGSelector paramNode,
+        final long paramDAGRevision) {
+        this.mSelectorKey =
+            new SelectorKey(paramNode.getPrimaryKey(), paramNode.getRevision(),
+                paramNode.getVersion(), paramDAGRevision);
+        this.mDAGRevision = paramDAGRevision;
+
+        this.mName = paramNode.getName();
+        this.mParents = new LinkedList<Long>(paramNode.getParents());
+        this.mChilds = new LinkedList<Long>(paramNode.getChilds());
+        this.mSecretKey = paramNode.getSecretKey();
     }
 
     /**
-     * Returns node name.
+     * Constructor for building a selector marking the removal of a dag node
+     * at the given DAG revision.
      *
-     * @return
-     *         node name.
+     * @param paramNode
+     *            removed dag node.
+     * @param paramDAGRevision
+     *            revision of the DAG.
      */
-    public final String getName() {
-        return mName;
+    public KeySelector(final KeySelector paramNode,
+        final long paramDAGRevision) {
+        this.mSelectorKey =
+            new SelectorKey(paramNode.getDAGKey(), paramNode.getRevision(),
+                paramNode.getVersion(), paramDAGRevision);
+        this.mDAGRevision = paramDAGRevision;
+        this.mDeleted = true;
+
+        this.mName = paramNode.getName();
+        this.mParents = new LinkedList<Long>();
+        this.mChilds = new LinkedList<Long>();
     }
 
     /**
-     * Returns a list of parent nodes for node.
+     * Returns selector id.
      *
      * @return
-     *         set of parent nodes.
+     *         selector id.
      */
-    public final LinkedList<Long> getParents() {
-        return mParents;
+    public final SelectorKey getPrimaryKey() {
+        return mSelectorKey;
     }
 
     /**
-     * Returns a list of child nodes for node.
+     * Returns dag key of node.
      *
      * @return
-     *         set of child nodes.
+     *         dag key.
      */
-    public final LinkedList<Long> getChilds() {
-        return mChilds;
+    public final long getDAGKey() {
+        return mSelectorKey.getDAGKey();
     }
 
     /**
-     * Adds a new parent node to the list.
+     * Returns revision of the DAG this selector belongs to.
      *
-     * @param paramParent
-     *            parent to add to list.
+     * @return
+     *         DAG revision.
      */
-    public final void addParent(final long paramParent) {
-        mParents.add(paramParent);
+    public final long getDAGRevision() {
+        return mDAGRevision;
     }
 
     /**
-     * Adds a new child node to the list.
+     * Returns whether the node has been removed at this revision.
      *
-     * @param paramParent
-     *            parent to add to list.
+     * @return
+     *         deletion state.
      */
-    public final void addChild(final long paramChild) {
-        mChilds.add(paramChild);
+    public final boolean isDeleted() {
+        return mDeleted;
     }
 
     /**
-     * Removes a parent node from list.
+     * Returns node name.
      *
-     * @param paramParent
-     *            parent node to remove.
+     * @return
+     *         node name.
      */
-    public void removeParent(final long paramParent) {
-        mParents.remove(paramParent);
+    public final String getName() {
+        return mName;
     }
 
     /**
-     * Removes a child node from list.
+     * Returns a list of parent nodes for node.
      *
-     * @param paramChild
-     *            child node to remove.
+     * @return
+     *         set of parent nodes.
      */
-    public void removeChild(final long paramChild) {
-        mChilds.remove(paramChild);
+    public final LinkedList<Long> getParents() {
+        return mParents;
     }
 
     /**
-     * Sets new primary key. Usually not needed.
+     * Returns a list of child nodes for node.
      *
-     * @param paramKey
-     *            new key for node.
+     * @return
+     *         set of child nodes.
      */
-    public final void setPrimaryKey(final long paramKey) {
-        this.mSelectorKey = paramKey;
+    public final LinkedList<Long> getChilds() {
+        return mChilds;
     }
 
     /**
-     * Returns current revision of node.
+     * Returns revision of node.
      *
      * @return
      *         node's revision.
      */
     public final int getRevision() {
-        return mRevision;
+        return mSelectorKey.getRevision();
     }
 
     /**
-     * Increases node revision by 1.
-     */
-    public final void increaseRevision() {
-        this.mRevision += 1;
-    }
-
-    /**
-     * Returns current version of node.
+     * Returns version of node.
      *
      * @return
      *         node's version.
      */
     public final int getVersion() {
-        return mVersion;
-    }
-
-    /**
-     * Increases node version by 1.
-     */
-    public final void increaseVersion() {
-        this.mVersion += 1;
+        return mSelectorKey.getVersion();
     }
 
     /**
@@ -239,4 +238,15 @@ public class KeySelector {
     public final byte[] getSecretKey() {
         return mSecretKey;
     }
+
+    /**
+     * Sets secret key, when it has been generated lazily after the selector
+     * has been written.
+     *
+     * @param paramSecretKey
+     *            secret key.
+     */
+    public final void setSecretKey(final byte[] paramSecretKey) {
+        this.mSecretKey = paramSecretKey;
+    }
 }
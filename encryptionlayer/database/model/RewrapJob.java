@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.database.model;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * This class represents a pending re-wrap job of a node, whose data keys
+ * have to be wrapped under its new secret key. The job is persisted until all
+ * data keys of the node are re-wrapped, so pending work survives a restart;
+ * data keys already re-wrapped name the current revision and version of the
+ * node and are skipped when the job is resumed.
+ *
+ * @author ptrk01
+ */
+@Entity
+public class RewrapJob {
+
+    /**
+     * Dag key of node and primary key of database.
+     */
+    @PrimaryKey
+    private long mDAGKey;
+
+    /**
+     * Number of times the job has been requested. A job is only completed if
+     * it has not been requested again while it was processed.
+     */
+    private long mRequests;
+
+    /**
+     * Standard constructor.
+     */
+    public RewrapJob() {
+        super();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     */
+    public RewrapJob(final long paramDAGKey) {
+        this.mDAGKey = paramDAGKey;
+    }
+
+    /**
+     * Returns dag key of node.
+     *
+     * @return
+     *         dag key.
+     */
+    public final long getPrimaryKey() {
+        return mDAGKey;
+    }
+
+    /**
+     * Returns number of times the job has been requested.
+     *
+     * @return
+     *         number of requests.
+     */
+    public final long getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * Counts another request of the job.
+     */
+    public final void addRequest() {
+        this.mRequests += 1;
+    }
+}
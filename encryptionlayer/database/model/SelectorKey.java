@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.database.model;
+
+import com.sleepycat.persist.model.KeyField;
+import com.sleepycat.persist.model.Persistent;
+
+/**
+ * Composite primary key of a {@link KeySelector}. A node keeps its stable dag
+ * key over all revisions; revision and version identify the generation of its
+ * secret key and the DAG revision orders the snapshots written for the same
+ * key generation, e.g. when only the edges of a node changed. Keys are ordered
+ * by their fields in this order.
+ *
+ * @author ptrk01
+ */
+@Persistent
+public class SelectorKey implements Comparable<SelectorKey> {
+
+    /**
+     * Stable dag key of the node.
+     */
+    @KeyField(1)
+    private long mDAGKey;
+
+    /**
+     * Revision of the node.
+     */
+    @KeyField(2)
+    private int mRevision;
+
+    /**
+     * Version of the node.
+     */
+    @KeyField(3)
+    private int mVersion;
+
+    /**
+     * Revision of the whole DAG the snapshot has been written for.
+     */
+    @KeyField(4)
+    private long mDAGRevision;
+
+    /**
+     * Standard constructor.
+     */
+    public SelectorKey() {
+        super();
+    }
+
+    /**
+     * Constructor for building a new selector key.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRev
+     *            revision of node.
+     * @param paramVer
+     *            version of node.
+     * @param paramDAGRevision
+     *            revision of the DAG.
+     */
+    public SelectorKey(final long paramDAGKey, final int paramRev,
+        final int paramVer, final long paramDAGRevision) {
+        this.mDAGKey = paramDAGKey;
+        this.mRevision = paramRev;
+        this.mVersion = paramVer;
+        this.mDAGRevision = paramDAGRevision;
+    }
+
+    /**
+     * Returns dag key of node.
+     *
+     * @return
+     *         dag key.
+     */
+    public final long getDAGKey() {
+        return mDAGKey;
+    }
+
+    /**
+     * Returns revision of node.
+     *
+     * @return
+     *         node's revision.
+     */
+    public final int getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * Returns version of node.
+     *
+     * @return
+     *         node's version.
+     */
+    public final int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns revision of the DAG.
+     *
+     * @return
+     *         DAG revision.
+     */
+    public final long getDAGRevision() {
+        return mDAGRevision;
+    }
+
+    @Override
+    public final int compareTo(final SelectorKey paramKey) {
+        if (mDAGKey != paramKey.mDAGKey) {
+            return mDAGKey < paramKey.mDAGKey ? -1 : 1;
+        }
+        if (mRevision != paramKey.mRevision) {
+            return mRevision < paramKey.mRevision ? -1 : 1;
+        }
+        if (mVersion != paramKey.mVersion) {
+            return mVersion < paramKey.mVersion ? -1 : 1;
+        }
+        if (mDAGRevision != paramKey.mDAGRevision) {
+            return mDAGRevision < paramKey.mDAGRevision ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public final boolean equals(final Object paramObj) {
+        if (this == paramObj) {
+            return true;
+        }
+        if (!(paramObj instanceof SelectorKey)) {
+            return false;
+        }
+        final SelectorKey mKey = (SelectorKey)paramObj;
+        return mDAGKey == mKey.mDAGKey && mRevision == mKey.mRevision
+            && mVersion == mKey.mVersion && mDAGRevision == mKey.mDAGRevision;
+    }
+
+    @Override
+    public final int hashCode() {
+        int hash = (int)(mDAGKey ^ (mDAGKey >>> 32));
+        hash = 31 * hash + mRevision;
+        hash = 31 * hash + mVersion;
+        hash = 31 * hash + (int)(mDAGRevision ^ (mDAGRevision >>> 32));
+        return hash;
+    }
+
+    @Override
+    public final String toString() {
+        return new StringBuilder().append(mDAGKey).append(".").append(
+            mRevision).append(".").append(mVersion).append("@").append(
+            mDAGRevision).toString();
+    }
+
+}
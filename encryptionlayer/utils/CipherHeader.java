@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Header preceding data encrypted in GCM mode. It names the dag node, its
+ * revision and version whose secret key has been used, so the key can be
+ * looked up directly, and carries the random nonce of the encryption. The
+ * header is authenticated along with the data.
+ *
+ * <pre>
+ * | format (1) | dag key (8) | revision (4) | version (4) | nonce (12) |
+ * </pre>
+ *
+ * @author ptrk01
+ */
+public final class CipherHeader {
+
+    /**
+     * Format identifier of GCM encrypted data.
+     */
+    public static final byte FORMAT_GCM = 1;
+
+    /**
+     * Format identifier of GCM encrypted streams, split into chunks of
+     * {@link StreamEncryption#CHUNK_SIZE} bytes.
+     */
+    public static final byte FORMAT_GCM_STREAM = 2;
+
+    /**
+     * Format identifier of GCM encrypted objects of envelope encryption. The
+     * dag key field holds the key of the object, whose data key has been
+     * used; revision and version are unused.
+     */
+    public static final byte FORMAT_ENVELOPE = 3;
+
+    /**
+     * Number of nonce bytes.
+     */
+    public static final int NONCE_SIZE = 12;
+
+    /**
+     * Number of header bytes.
+     */
+    public static final int SIZE = 1 + 8 + 4 + 4 + NONCE_SIZE;
+
+    /**
+     * Format of the encrypted data.
+     */
+    private final byte mFormat;
+
+    /**
+     * Dag key of the node whose secret key has been used.
+     */
+    private final long mDAGKey;
+
+    /**
+     * Revision of node.
+     */
+    private final int mRevision;
+
+    /**
+     * Version of node.
+     */
+    private final int mVersion;
+
+    /**
+     * Nonce of the encryption.
+     */
+    private final byte[] mNonce;
+
+    /**
+     * Constructor for a header of GCM encrypted data.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @param paramNonce
+     *            nonce of the encryption.
+     */
+    public CipherHeader(final long paramDAGKey, final int paramRevision,
+        final int paramVersion, final byte[] paramNonce) {
+        this(FORMAT_GCM, paramDAGKey, paramRevision, paramVersion, paramNonce);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param paramFormat
+     *            format of the encrypted data.
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @param paramNonce
+     *            nonce of the encryption.
+     */
+    public CipherHeader(final byte paramFormat, final long paramDAGKey,
+        final int paramRevision, final int paramVersion,
+        final byte[] paramNonce) {
+        this.mFormat = paramFormat;
+        this.mDAGKey = paramDAGKey;
+        this.mRevision = paramRevision;
+        this.mVersion = paramVersion;
+        this.mNonce = paramNonce;
+    }
+
+    /**
+     * Reads a header from the current position of a buffer and advances it.
+     *
+     * @param paramBuffer
+     *            buffer to read from.
+     * @return
+     *         header or null if the buffer does not start with a known
+     *         header; the position is unchanged then.
+     */
+    public static CipherHeader read(final ByteBuffer paramBuffer) {
+        if (paramBuffer.remaining() < SIZE) {
+            return null;
+        }
+        final byte mFormat = paramBuffer.get(paramBuffer.position());
+        if (mFormat != FORMAT_GCM && mFormat != FORMAT_GCM_STREAM
+            && mFormat != FORMAT_ENVELOPE) {
+            return null;
+        }
+        paramBuffer.get();
+        final long mKey = paramBuffer.getLong();
+        final int mRev = paramBuffer.getInt();
+        final int mVer = paramBuffer.getInt();
+        final byte[] mNonce = new byte[NONCE_SIZE];
+        paramBuffer.get(mNonce);
+        return new CipherHeader(mFormat, mKey, mRev, mVer, mNonce);
+    }
+
+    /**
+     * Writes the header to the current position of a buffer and advances it.
+     *
+     * @param paramBuffer
+     *            buffer to write to.
+     */
+    public void write(final ByteBuffer paramBuffer) {
+        paramBuffer.put(mFormat);
+        paramBuffer.putLong(mDAGKey);
+        paramBuffer.putInt(mRevision);
+        paramBuffer.putInt(mVersion);
+        paramBuffer.put(mNonce);
+    }
+
+    /**
+     * Returns the header as byte array.
+     *
+     * @return
+     *         header bytes.
+     */
+    public byte[] toBytes() {
+        final byte[] mBytes = new byte[SIZE];
+        write(ByteBuffer.wrap(mBytes));
+        return mBytes;
+    }
+
+    /**
+     * Returns format of the encrypted data.
+     *
+     * @return
+     *         format identifier.
+     */
+    public byte getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Returns dag key of node.
+     *
+     * @return
+     *         dag key.
+     */
+    public long getDAGKey() {
+        return mDAGKey;
+    }
+
+    /**
+     * Returns revision of node.
+     *
+     * @return
+     *         node's revision.
+     */
+    public int getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * Returns version of node.
+     *
+     * @return
+     *         node's version.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns nonce of the encryption.
+     *
+     * @return
+     *         nonce.
+     */
+    public byte[] getNonce() {
+        return mNonce;
+    }
+
+}
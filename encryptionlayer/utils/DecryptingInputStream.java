@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream decrypting GCM mode chunks written by
+ * {@link EncryptingOutputStream}. The header has to be read before by
+ * {@link StreamEncryption#readHeader(InputStream)}. Each chunk is verified
+ * before any of its bytes are returned.
+ *
+ * @author ptrk01
+ */
+public final class DecryptingInputStream extends InputStream {
+
+    /**
+     * Stream to read encrypted bytes from.
+     */
+    private final InputStream mIn;
+
+    /**
+     * Secret key of node.
+     */
+    private final byte[] mSecretKey;
+
+    /**
+     * Stream header.
+     */
+    private final CipherHeader mHeader;
+
+    /**
+     * Stream header as bytes.
+     */
+    private final byte[] mHeaderBytes;
+
+    /**
+     * Encrypted bytes of the current chunk.
+     */
+    private final byte[] mEncrypted =
+        new byte[StreamEncryption.ENCRYPTED_CHUNK_SIZE];
+
+    /**
+     * Plain bytes of the current chunk not read yet.
+     */
+    private final ByteBuffer mPlain =
+        ByteBuffer.allocate(StreamEncryption.CHUNK_SIZE);
+
+    /**
+     * Index of the next chunk.
+     */
+    private int mIndex;
+
+    /**
+     * Whether the final chunk has been read.
+     */
+    private boolean mFinal;
+
+    /**
+     * Constructor.
+     *
+     * @param paramIn
+     *            stream to read encrypted chunks from, positioned after the
+     *            header.
+     * @param rawSKey
+     *            Secret key of the node named in the header.
+     * @param paramHeader
+     *            stream header.
+     */
+    public DecryptingInputStream(final InputStream paramIn,
+        final byte[] rawSKey, final CipherHeader paramHeader) {
+        this.mIn = paramIn;
+        this.mSecretKey = rawSKey;
+        this.mHeader = paramHeader;
+        this.mHeaderBytes = paramHeader.toBytes();
+        mPlain.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mPlain.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] paramBytes, final int paramOffset,
+        final int paramLength) throws IOException {
+        if (paramLength == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int mCount = Math.min(paramLength, mPlain.remaining());
+        mPlain.get(paramBytes, paramOffset, mCount);
+        return mCount;
+    }
+
+    @Override
+    public int available() {
+        return mPlain.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Reads and decrypts chunks until plain bytes are available.
+     *
+     * @return
+     *         false if the stream has ended.
+     * @throws IOException
+     *             if reading fails or the data has been modified.
+     */
+    private boolean fill() throws IOException {
+        while (!mPlain.hasRemaining()) {
+            if (mFinal) {
+                return false;
+            }
+            final int mCount =
+                StreamEncryption.readFully(mIn, mEncrypted, 0,
+                    mEncrypted.length);
+            mPlain.clear();
+            mFinal =
+                StreamEncryption.openChunk(mSecretKey, mHeader, mHeaderBytes,
+                    mIndex++, ByteBuffer.wrap(mEncrypted, 0, mCount), mPlain);
+            mPlain.flip();
+            if (mFinal && mIn.read() != -1) {
+                throw new IOException("Data after final chunk!");
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream encrypting all bytes written in GCM mode chunks, see
+ * {@link StreamEncryption}. The header is written on creation, the final
+ * chunk on {@link #close()}; a stream not closed can't be decrypted.
+ *
+ * @author ptrk01
+ */
+public final class EncryptingOutputStream extends OutputStream {
+
+    /**
+     * Stream to write encrypted bytes to.
+     */
+    private final OutputStream mOut;
+
+    /**
+     * Secret key of node.
+     */
+    private final byte[] mSecretKey;
+
+    /**
+     * Stream header.
+     */
+    private final CipherHeader mHeader;
+
+    /**
+     * Stream header as bytes.
+     */
+    private final byte[] mHeaderBytes;
+
+    /**
+     * Plain bytes of the current chunk.
+     */
+    private final ByteBuffer mPlain =
+        ByteBuffer.allocate(StreamEncryption.CHUNK_SIZE);
+
+    /**
+     * Encrypted bytes of the current chunk.
+     */
+    private final ByteBuffer mEncrypted =
+        ByteBuffer.allocate(StreamEncryption.ENCRYPTED_CHUNK_SIZE);
+
+    /**
+     * Index of the current chunk.
+     */
+    private int mIndex;
+
+    /**
+     * Whether the stream has been closed.
+     */
+    private boolean mClosed;
+
+    /**
+     * Constructor writing the stream header.
+     *
+     * @param paramOut
+     *            stream to write encrypted bytes to.
+     * @param rawSKey
+     *            Secret key of node.
+     * @param paramHeader
+     *            stream header, see
+     *            {@link StreamEncryption#newHeader(long, int, int)}.
+     * @throws IOException
+     *             if writing the header fails.
+     */
+    public EncryptingOutputStream(final OutputStream paramOut,
+        final byte[] rawSKey, final CipherHeader paramHeader)
+        throws IOException {
+        this.mOut = paramOut;
+        this.mSecretKey = rawSKey;
+        this.mHeader = paramHeader;
+        this.mHeaderBytes = paramHeader.toBytes();
+        mOut.write(mHeaderBytes);
+    }
+
+    @Override
+    public void write(final int paramByte) throws IOException {
+        ensureOpen();
+        // a full chunk is only written once more bytes follow, since the
+        // final chunk has to be flagged
+        if (!mPlain.hasRemaining()) {
+            writeChunk(false);
+        }
+        mPlain.put((byte)paramByte);
+    }
+
+    @Override
+    public void write(final byte[] paramBytes, final int paramOffset,
+        final int paramLength) throws IOException {
+        ensureOpen();
+        int offset = paramOffset;
+        int length = paramLength;
+        while (length > 0) {
+            if (!mPlain.hasRemaining()) {
+                writeChunk(false);
+            }
+            final int mCount = Math.min(length, mPlain.remaining());
+            mPlain.put(paramBytes, offset, mCount);
+            offset += mCount;
+            length -= mCount;
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. Bytes of the current chunk are kept
+     * until the chunk is full or the stream is closed.
+     *
+     * @throws IOException
+     *             if flushing fails.
+     */
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    /**
+     * Writes the final chunk and closes the underlying stream.
+     *
+     * @throws IOException
+     *             if writing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            try {
+                writeChunk(true);
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * Encrypts and writes the current chunk.
+     *
+     * @param paramFinal
+     *            whether the chunk is the final one.
+     * @throws IOException
+     *             if encryption or writing fails.
+     */
+    private void writeChunk(final boolean paramFinal) throws IOException {
+        mPlain.flip();
+        mEncrypted.clear();
+        StreamEncryption.sealChunk(mSecretKey, mHeader, mHeaderBytes,
+            mIndex++, paramFinal, mPlain, mEncrypted);
+        mOut.write(mEncrypted.array(), 0, mEncrypted.position());
+        mPlain.clear();
+    }
+
+    /**
+     * Checks that the stream is still open.
+     *
+     * @throws IOException
+     *             if the stream has been closed.
+     */
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed!");
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+/**
+ * Key trail telling a client the new secret key of a parent node. The
+ * parent's secret key is wrapped under the secret key of one of its childs,
+ * so a client holding the child key unwraps the parent key locally. Both
+ * keys are named by dag key, revision and version.
+ *
+ * @author ptrk01
+ */
+public final class KeyTrail {
+
+    /**
+     * Dag key of parent node.
+     */
+    private final long mParentKey;
+
+    /**
+     * Revision of parent node.
+     */
+    private final int mParentRevision;
+
+    /**
+     * Version of parent node.
+     */
+    private final int mParentVersion;
+
+    /**
+     * Dag key of child node.
+     */
+    private final long mChildKey;
+
+    /**
+     * Revision of child node.
+     */
+    private final int mChildRevision;
+
+    /**
+     * Version of child node.
+     */
+    private final int mChildVersion;
+
+    /**
+     * Secret key of parent wrapped under secret key of child.
+     */
+    private final byte[] mWrappedKey;
+
+    /**
+     * Constructor.
+     *
+     * @param paramParentKey
+     *            dag key of parent node.
+     * @param paramParentRevision
+     *            revision of parent node.
+     * @param paramParentVersion
+     *            version of parent node.
+     * @param paramChildKey
+     *            dag key of child node.
+     * @param paramChildRevision
+     *            revision of child node.
+     * @param paramChildVersion
+     *            version of child node.
+     * @param paramWrappedKey
+     *            secret key of parent wrapped under secret key of child.
+     */
+    public KeyTrail(final long paramParentKey, final int paramParentRevision,
+        final int paramParentVersion, final long paramChildKey,
+        final int paramChildRevision, final int paramChildVersion,
+        final byte[] paramWrappedKey) {
+        this.mParentKey = paramParentKey;
+        this.mParentRevision = paramParentRevision;
+        this.mParentVersion = paramParentVersion;
+        this.mChildKey = paramChildKey;
+        this.mChildRevision = paramChildRevision;
+        this.mChildVersion = paramChildVersion;
+        this.mWrappedKey = paramWrappedKey;
+    }
+
+    /**
+     * Creates a key trail by wrapping the secret key of parent under the
+     * secret key of child.
+     *
+     * @param paramParentKey
+     *            dag key of parent node.
+     * @param paramParentRevision
+     *            revision of parent node.
+     * @param paramParentVersion
+     *            version of parent node.
+     * @param rawParentSKey
+     *            secret key of parent node.
+     * @param paramChildKey
+     *            dag key of child node.
+     * @param paramChildRevision
+     *            revision of child node.
+     * @param paramChildVersion
+     *            version of child node.
+     * @param rawChildSKey
+     *            secret key of child node.
+     * @return
+     *         key trail.
+     */
+    public static KeyTrail create(final long paramParentKey,
+        final int paramParentRevision, final int paramParentVersion,
+        final byte[] rawParentSKey, final long paramChildKey,
+        final int paramChildRevision, final int paramChildVersion,
+        final byte[] rawChildSKey) {
+        return new KeyTrail(paramParentKey, paramParentRevision,
+            paramParentVersion, paramChildKey, paramChildRevision,
+            paramChildVersion, NodeEncryption.wrapKey(rawParentSKey,
+                rawChildSKey));
+    }
+
+    /**
+     * Unwraps the secret key of parent.
+     *
+     * @param rawChildSKey
+     *            secret key of child node at the revision and version named
+     *            by the trail.
+     * @return
+     *         secret key of parent node or null if the child key does not
+     *         match or the trail has been modified.
+     */
+    public byte[] unwrap(final byte[] rawChildSKey) {
+        return NodeEncryption.unwrapKey(mWrappedKey, rawChildSKey);
+    }
+
+    /**
+     * Returns dag key of parent node.
+     *
+     * @return
+     *         dag key.
+     */
+    public long getParentKey() {
+        return mParentKey;
+    }
+
+    /**
+     * Returns revision of parent node.
+     *
+     * @return
+     *         parent's revision.
+     */
+    public int getParentRevision() {
+        return mParentRevision;
+    }
+
+    /**
+     * Returns version of parent node.
+     *
+     * @return
+     *         parent's version.
+     */
+    public int getParentVersion() {
+        return mParentVersion;
+    }
+
+    /**
+     * Returns dag key of child node.
+     *
+     * @return
+     *         dag key.
+     */
+    public long getChildKey() {
+        return mChildKey;
+    }
+
+    /**
+     * Returns revision of child node.
+     *
+     * @return
+     *         child's revision.
+     */
+    public int getChildRevision() {
+        return mChildRevision;
+    }
+
+    /**
+     * Returns version of child node.
+     *
+     * @return
+     *         child's version.
+     */
+    public int getChildVersion() {
+        return mChildVersion;
+    }
+
+    /**
+     * Returns secret key of parent wrapped under secret key of child.
+     *
+     * @return
+     *         wrapped key.
+     */
+    public byte[] getWrappedKey() {
+        return mWrappedKey;
+    }
+
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Batch of key trails created by one operation, along with its binary wire
+ * format. Trails are sorted by parent and child; parent keys are delta
+ * encoded, child keys relative to their parent, and all numbers are written
+ * as variable length integers. Wrapped keys have a fixed width. Batches are
+ * encoded into and decoded from a {@link ByteBuffer} directly, which may be
+ * a direct buffer handed to a channel.
+ *
+ * <pre>
+ * | format (1) | dag revision (var) | count (var) | trail * count |
+ * trail:
+ * | parent delta (var) | revision (var) | version (var) |
+ * | child delta (zigzag var) | revision (var) | version (var) |
+ * | wrapped key (24) |
+ * </pre>
+ *
+ * @author ptrk01
+ */
+public final class KeyTrailBatch {
+
+    /**
+     * Format identifier of the batch encoding.
+     */
+    public static final byte FORMAT = 1;
+
+    /**
+     * Number of bytes of a wrapped secret key.
+     */
+    public static final int WRAPPED_KEY_SIZE = NodeEncryption.WRAPPED_KEY_SIZE;
+
+    /**
+     * Minimum number of bytes of an encoded trail, six one byte numbers and
+     * the wrapped key.
+     */
+    private static final int MIN_TRAIL_SIZE = 6 + WRAPPED_KEY_SIZE;
+
+    /**
+     * Order of trails within an encoded batch.
+     */
+    private static final Comparator<KeyTrail> ORDER =
+        new Comparator<KeyTrail>() {
+            public int compare(final KeyTrail paramFirst,
+                final KeyTrail paramSecond) {
+                if (paramFirst.getParentKey() != paramSecond.getParentKey()) {
+                    return paramFirst.getParentKey() < paramSecond
+                        .getParentKey() ? -1 : 1;
+                }
+                if (paramFirst.getChildKey() != paramSecond.getChildKey()) {
+                    return paramFirst.getChildKey() < paramSecond
+                        .getChildKey() ? -1 : 1;
+                }
+                return 0;
+            }
+        };
+
+    /**
+     * Revision of the DAG the trails have been created at.
+     */
+    private final long mDAGRevision;
+
+    /**
+     * Trails of the batch.
+     */
+    private final List<KeyTrail> mTrails;
+
+    /**
+     * Constructor.
+     *
+     * @param paramDAGRevision
+     *            revision of the DAG the trails have been created at.
+     * @param paramTrails
+     *            trails of the batch.
+     */
+    public KeyTrailBatch(final long paramDAGRevision,
+        final List<KeyTrail> paramTrails) {
+        this.mDAGRevision = paramDAGRevision;
+        this.mTrails = paramTrails;
+    }
+
+    /**
+     * Returns revision of the DAG the trails have been created at.
+     *
+     * @return
+     *         DAG revision.
+     */
+    public long getDAGRevision() {
+        return mDAGRevision;
+    }
+
+    /**
+     * Returns trails of the batch.
+     *
+     * @return
+     *         key trails.
+     */
+    public List<KeyTrail> getTrails() {
+        return mTrails;
+    }
+
+    /**
+     * Returns the number of bytes of the encoded batch.
+     *
+     * @return
+     *         encoded size.
+     */
+    public int getEncodedSize() {
+        final List<KeyTrail> mSorted = sorted();
+        int mSize =
+            1 + varLongSize(mDAGRevision) + varLongSize(mSorted.size());
+        long mLastParent = 0;
+        for (KeyTrail aTrail : mSorted) {
+            mSize += varLongSize(aTrail.getParentKey() - mLastParent);
+            mSize += varLongSize(aTrail.getParentRevision());
+            mSize += varLongSize(aTrail.getParentVersion());
+            mSize +=
+                varLongSize(zigZag(aTrail.getChildKey()
+                    - aTrail.getParentKey()));
+            mSize += varLongSize(aTrail.getChildRevision());
+            mSize += varLongSize(aTrail.getChildVersion());
+            mSize += WRAPPED_KEY_SIZE;
+            mLastParent = aTrail.getParentKey();
+        }
+        return mSize;
+    }
+
+    /**
+     * Encodes the batch to the current position of a buffer and advances it.
+     *
+     * @param paramBuffer
+     *            buffer to write to, having at least
+     *            {@link #getEncodedSize()} bytes remaining.
+     */
+    public void encode(final ByteBuffer paramBuffer) {
+        final List<KeyTrail> mSorted = sorted();
+        paramBuffer.put(FORMAT);
+        putVarLong(paramBuffer, mDAGRevision);
+        putVarLong(paramBuffer, mSorted.size());
+
+        long mLastParent = 0;
+        for (KeyTrail aTrail : mSorted) {
+            if (aTrail.getWrappedKey().length != WRAPPED_KEY_SIZE) {
+                throw new IllegalArgumentException("Wrapped key of trail "
+                    + aTrail.getParentKey() + " has an invalid size!");
+            }
+            putVarLong(paramBuffer, aTrail.getParentKey() - mLastParent);
+            putVarLong(paramBuffer, aTrail.getParentRevision());
+            putVarLong(paramBuffer, aTrail.getParentVersion());
+            putVarLong(paramBuffer, zigZag(aTrail.getChildKey()
+                - aTrail.getParentKey()));
+            putVarLong(paramBuffer, aTrail.getChildRevision());
+            putVarLong(paramBuffer, aTrail.getChildVersion());
+            paramBuffer.put(aTrail.getWrappedKey());
+            mLastParent = aTrail.getParentKey();
+        }
+    }
+
+    /**
+     * Decodes a batch from the current position of a buffer and advances it.
+     *
+     * @param paramBuffer
+     *            buffer to read from.
+     * @return
+     *         batch or null if the buffer does not start with a known format;
+     *         the position is unchanged then.
+     * @throws java.nio.BufferUnderflowException
+     *             if the batch is truncated.
+     * @throws IllegalArgumentException
+     *             if the batch holds more trails than bytes remain for or a
+     *             malformed number.
+     */
+    public static KeyTrailBatch decode(final ByteBuffer paramBuffer) {
+        if (!paramBuffer.hasRemaining()
+            || paramBuffer.get(paramBuffer.position()) != FORMAT) {
+            return null;
+        }
+        paramBuffer.get();
+        final long mDAGRevision = getVarLong(paramBuffer);
+        final long mTotal = getVarLong(paramBuffer);
+
+        // the count is read from the wire, so it must not size anything
+        // before it has been checked against the bytes actually present
+        if (mTotal < 0 || mTotal > paramBuffer.remaining() / MIN_TRAIL_SIZE) {
+            throw new IllegalArgumentException("Batch claims " + mTotal
+                + " trails in " + paramBuffer.remaining() + " bytes!");
+        }
+        final int mCount = (int)mTotal;
+
+        final List<KeyTrail> mTrails = new ArrayList<KeyTrail>(mCount);
+        long mParent = 0;
+        for (int i = 0; i < mCount; i++) {
+            mParent += getVarLong(paramBuffer);
+            final int mParentRevision = (int)getVarLong(paramBuffer);
+            final int mParentVersion = (int)getVarLong(paramBuffer);
+            final long mChild = mParent + unZigZag(getVarLong(paramBuffer));
+            final int mChildRevision = (int)getVarLong(paramBuffer);
+            final int mChildVersion = (int)getVarLong(paramBuffer);
+            final byte[] mWrappedKey = new byte[WRAPPED_KEY_SIZE];
+            paramBuffer.get(mWrappedKey);
+            mTrails.add(new KeyTrail(mParent, mParentRevision,
+                mParentVersion, mChild, mChildRevision, mChildVersion,
+                mWrappedKey));
+        }
+        return new KeyTrailBatch(mDAGRevision, mTrails);
+    }
+
+    /**
+     * Returns the trails in encoding order.
+     *
+     * @return
+     *         sorted copy of trails.
+     */
+    private List<KeyTrail> sorted() {
+        final List<KeyTrail> mSorted = new ArrayList<KeyTrail>(mTrails);
+        Collections.sort(mSorted, ORDER);
+        return mSorted;
+    }
+
+    /**
+     * Writes a non-negative number as variable length integer, seven bits
+     * per byte with the high bit marking that more bytes follow.
+     *
+     * @param paramBuffer
+     *            buffer to write to.
+     * @param paramValue
+     *            number to write.
+     */
+    private static void putVarLong(final ByteBuffer paramBuffer,
+        final long paramValue) {
+        long value = paramValue;
+        while ((value & ~0x7FL) != 0) {
+            paramBuffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        paramBuffer.put((byte)value);
+    }
+
+    /**
+     * Reads a variable length integer.
+     *
+     * @param paramBuffer
+     *            buffer to read from.
+     * @return
+     *         number read.
+     * @throws IllegalArgumentException
+     *             if the number is longer than ten bytes or exceeds 64 bits.
+     */
+    private static long getVarLong(final ByteBuffer paramBuffer) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            final byte mByte = paramBuffer.get();
+            // the tenth byte holds only the highest bit and ends the number
+            if (shift == 63 && (mByte & 0xFE) != 0) {
+                throw new IllegalArgumentException(
+                    "Variable length integer too long!");
+            }
+            value |= (long)(mByte & 0x7F) << shift;
+            if ((mByte & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of a variable length integer.
+     *
+     * @param paramValue
+     *            number to write.
+     * @return
+     *         number of bytes.
+     */
+    private static int varLongSize(final long paramValue) {
+        long value = paramValue;
+        int mSize = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            mSize++;
+        }
+        return mSize;
+    }
+
+    /**
+     * Maps a signed number to a non-negative one, so small negative numbers
+     * get a short variable length encoding as well.
+     *
+     * @param paramValue
+     *            signed number.
+     * @return
+     *         zigzag encoded number.
+     */
+    private static long zigZag(final long paramValue) {
+        return (paramValue << 1) ^ (paramValue >> 63);
+    }
+
+    /**
+     * Reverts {@link #zigZag(long)}.
+     *
+     * @param paramValue
+     *            zigzag encoded number.
+     * @return
+     *         signed number.
+     */
+    private static long unZigZag(final long paramValue) {
+        return (paramValue >>> 1) ^ -(paramValue & 1);
+    }
+
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Unwraps the parent keys of many key trails in parallel on a fork-join pool.
+ * All trails passed at once have to be independent of each other, i.e. all
+ * their child keys have to be known.
+ *
+ * @author ptrk01
+ */
+public final class KeyTrailDecryptor {
+
+    /**
+     * Pool unwrapping the trails, one thread per core.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    /**
+     * Number of trails below which unwrapping runs in the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    /**
+     * Utility class.
+     */
+    private KeyTrailDecryptor() {
+        // not used over here
+    }
+
+    /**
+     * Unwraps the parent keys of key trails.
+     *
+     * @param paramTrails
+     *            key trails.
+     * @param paramChildKeys
+     *            secret key of the child of each trail.
+     * @return
+     *         secret key of the parent of each trail, null for trails that
+     *         could not be unwrapped.
+     */
+    public static byte[][] decrypt(final KeyTrail[] paramTrails,
+        final byte[][] paramChildKeys) {
+        final byte[][] mParentKeys = new byte[paramTrails.length][];
+        final UnwrapTask mTask =
+            new UnwrapTask(paramTrails, paramChildKeys, mParentKeys, 0,
+                paramTrails.length);
+        if (paramTrails.length < PARALLEL_THRESHOLD) {
+            mTask.compute();
+        } else {
+            POOL.invoke(mTask);
+        }
+        return mParentKeys;
+    }
+
+    /**
+     * Task unwrapping a range of trails, split in halves until the range is
+     * below the threshold.
+     */
+    private static final class UnwrapTask extends RecursiveAction {
+
+        /**
+         * Because of serialization.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Key trails.
+         */
+        private final KeyTrail[] mTrails;
+
+        /**
+         * Secret key of the child of each trail.
+         */
+        private final byte[][] mChildKeys;
+
+        /**
+         * Secret key of the parent of each trail, filled by the tasks.
+         */
+        private final byte[][] mParentKeys;
+
+        /**
+         * First trail of range.
+         */
+        private final int mFrom;
+
+        /**
+         * Trail after range.
+         */
+        private final int mTo;
+
+        /**
+         * Constructor.
+         *
+         * @param paramTrails
+         *            key trails.
+         * @param paramChildKeys
+         *            secret key of the child of each trail.
+         * @param paramParentKeys
+         *            secret key of the parent of each trail.
+         * @param paramFrom
+         *            first trail of range.
+         * @param paramTo
+         *            trail after range.
+         */
+        UnwrapTask(final KeyTrail[] paramTrails,
+            final byte[][] paramChildKeys, final byte[][] paramParentKeys,
+            final int paramFrom, final int paramTo) {
+            this.mTrails = paramTrails;
+            this.mChildKeys = paramChildKeys;
+            this.mParentKeys = paramParentKeys;
+            this.mFrom = paramFrom;
+            this.mTo = paramTo;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= PARALLEL_THRESHOLD / 2 || !inForkJoinPool()) {
+                for (int i = mFrom; i < mTo; i++) {
+                    mParentKeys[i] = mTrails[i].unwrap(mChildKeys[i]);
+                }
+            } else {
+                final int mMiddle = (mFrom + mTo) >>> 1;
+                invokeAll(new UnwrapTask(mTrails, mChildKeys, mParentKeys,
+                    mFrom, mMiddle), new UnwrapTask(mTrails, mChildKeys,
+                    mParentKeys, mMiddle, mTo));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import encryptionlayer.collections.LongHashSet;
+import encryptionlayer.collections.LongIterator;
+import encryptionlayer.collections.LongObjectHashMap;
+
+/**
+ * Creates the key trails of one operation. Node keys and the wanted
+ * (parent, child) trails are registered first; each distinct trail is then
+ * created exactly once, no matter how many users need it. Trails are grouped
+ * by child, the cipher is initialized once per child for the keys of all its
+ * parents, and the groups are encrypted in parallel on a fork-join pool.
+ *
+ * @author ptrk01
+ */
+public final class KeyTrailEncryptor {
+
+    /**
+     * Pool encrypting the groups, one thread per core.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    /**
+     * Number of trails below which encryption runs in the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    /**
+     * Registered node keys by dag key.
+     */
+    private final LongObjectHashMap<NodeKey> mNodes =
+        new LongObjectHashMap<NodeKey>();
+
+    /**
+     * Parents of the wanted trails by child.
+     */
+    private final LongObjectHashMap<LongHashSet> mGroups =
+        new LongObjectHashMap<LongHashSet>();
+
+    /**
+     * Created trails by child and parent.
+     */
+    private final LongObjectHashMap<LongObjectHashMap<KeyTrail>> mTrails =
+        new LongObjectHashMap<LongObjectHashMap<KeyTrail>>();
+
+    /**
+     * Number of distinct trails wanted.
+     */
+    private int mCount;
+
+    /**
+     * Registers the secret key of a node.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @param rawSKey
+     *            secret key of node.
+     */
+    public void addNode(final long paramDAGKey, final int paramRevision,
+        final int paramVersion, final byte[] rawSKey) {
+        mNodes.put(paramDAGKey, new NodeKey(paramRevision, paramVersion,
+            rawSKey));
+    }
+
+    /**
+     * Registers a wanted trail. The keys of both nodes have to be registered
+     * before {@link #encrypt()}; wanting a trail twice creates it once.
+     *
+     * @param paramParentKey
+     *            dag key of parent node.
+     * @param paramChildKey
+     *            dag key of child node.
+     */
+    public void addTrail(final long paramParentKey, final long paramChildKey) {
+        LongHashSet mParents = mGroups.get(paramChildKey);
+        if (mParents == null) {
+            mParents = new LongHashSet();
+            mGroups.put(paramChildKey, mParents);
+        }
+        if (mParents.add(paramParentKey)) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Returns number of distinct trails wanted.
+     *
+     * @return
+     *         number of trails.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Creates all wanted trails.
+     */
+    public void encrypt() {
+        final long[] mChilds = new long[mGroups.size()];
+        final LongIterator mIter = mGroups.keyIterator();
+        for (int i = 0; mIter.hasNext(); i++) {
+            mChilds[i] = mIter.next();
+        }
+
+        final KeyTrail[][] mResults = new KeyTrail[mChilds.length][];
+        final GroupTask mTask =
+            new GroupTask(mChilds, mResults, 0, mChilds.length);
+        if (mCount < PARALLEL_THRESHOLD) {
+            mTask.compute();
+        } else {
+            POOL.invoke(mTask);
+        }
+
+        for (int i = 0; i < mChilds.length; i++) {
+            final LongObjectHashMap<KeyTrail> mByParent =
+                new LongObjectHashMap<KeyTrail>(mResults[i].length);
+            for (KeyTrail aTrail : mResults[i]) {
+                mByParent.put(aTrail.getParentKey(), aTrail);
+            }
+            mTrails.put(mChilds[i], mByParent);
+        }
+    }
+
+    /**
+     * Returns a trail created by {@link #encrypt()}.
+     *
+     * @param paramParentKey
+     *            dag key of parent node.
+     * @param paramChildKey
+     *            dag key of child node.
+     * @return
+     *         key trail or null if it has not been wanted.
+     */
+    public KeyTrail getTrail(final long paramParentKey,
+        final long paramChildKey) {
+        final LongObjectHashMap<KeyTrail> mByParent =
+            mTrails.get(paramChildKey);
+        return mByParent == null ? null : mByParent.get(paramParentKey);
+    }
+
+    /**
+     * Creates the trails of one group, i.e. of all parents of a child.
+     *
+     * @param paramChildKey
+     *            dag key of child node.
+     * @return
+     *         trails of group.
+     */
+    private KeyTrail[] encryptGroup(final long paramChildKey) {
+        final NodeKey mChild = mNodes.get(paramChildKey);
+        final long[] mParents = mGroups.get(paramChildKey).toArray();
+        final byte[][] mParentKeys = new byte[mParents.length][];
+        for (int i = 0; i < mParents.length; i++) {
+            mParentKeys[i] = mNodes.get(mParents[i]).mSecretKey;
+        }
+        final byte[][] mWrapped =
+            NodeEncryption.wrapKeys(mParentKeys, mChild.mSecretKey);
+
+        final KeyTrail[] mGroup = new KeyTrail[mParents.length];
+        for (int i = 0; i < mParents.length; i++) {
+            final NodeKey mParent = mNodes.get(mParents[i]);
+            mGroup[i] =
+                new KeyTrail(mParents[i], mParent.mRevision, mParent.mVersion,
+                    paramChildKey, mChild.mRevision, mChild.mVersion,
+                    mWrapped == null ? null : mWrapped[i]);
+        }
+        return mGroup;
+    }
+
+    /**
+     * Task encrypting a range of groups, split in halves until a single group
+     * is left.
+     */
+    private final class GroupTask extends RecursiveAction {
+
+        /**
+         * Because of serialization.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Childs of all groups.
+         */
+        private final long[] mChilds;
+
+        /**
+         * Trails of all groups, filled by the tasks.
+         */
+        private final KeyTrail[][] mResults;
+
+        /**
+         * First group of range.
+         */
+        private final int mFrom;
+
+        /**
+         * Group after range.
+         */
+        private final int mTo;
+
+        /**
+         * Constructor.
+         *
+         * @param paramChilds
+         *            childs of all groups.
+         * @param paramResults
+         *            trails of all groups.
+         * @param paramFrom
+         *            first group of range.
+         * @param paramTo
+         *            group after range.
+         */
+        GroupTask(final long[] paramChilds, final KeyTrail[][] paramResults,
+            final int paramFrom, final int paramTo) {
+            this.mChilds = paramChilds;
+            this.mResults = paramResults;
+            this.mFrom = paramFrom;
+            this.mTo = paramTo;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= 1 || !inForkJoinPool()) {
+                for (int i = mFrom; i < mTo; i++) {
+                    mResults[i] = encryptGroup(mChilds[i]);
+                }
+            } else {
+                final int mMiddle = (mFrom + mTo) >>> 1;
+                invokeAll(new GroupTask(mChilds, mResults, mFrom, mMiddle),
+                    new GroupTask(mChilds, mResults, mMiddle, mTo));
+            }
+        }
+    }
+
+    /**
+     * Secret key of a node at a revision and version.
+     */
+    private static final class NodeKey {
+
+        /**
+         * Revision of node.
+         */
+        private final int mRevision;
+
+        /**
+         * Version of node.
+         */
+        private final int mVersion;
+
+        /**
+         * Secret key of node.
+         */
+        private final byte[] mSecretKey;
+
+        /**
+         * Constructor.
+         *
+         * @param paramRevision
+         *            revision of node.
+         * @param paramVersion
+         *            version of node.
+         * @param paramSecretKey
+         *            secret key of node.
+         */
+        NodeKey(final int paramRevision, final int paramVersion,
+            final byte[] paramSecretKey) {
+            this.mRevision = paramRevision;
+            this.mVersion = paramVersion;
+            this.mSecretKey = paramSecretKey;
+        }
+    }
+
+}
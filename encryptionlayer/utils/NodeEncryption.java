@@ -27,17 +27,21 @@
  */
 package encryptionlayer.utils;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Helper class to provide operations for node encryption and decryption.
+ * Data is encrypted in authenticated GCM mode; the CBC mode is kept for key
+ * trails and for reading data encrypted before.
  *
  * @author ptrk01
  *
@@ -55,11 +59,105 @@ public class NodeEncryption {
     protected static final String ENCRYPTION_PADDING_TYPE =
         "AES/CBC/PKCS5Padding";
 
+    /**
+     * Authenticated encryption algorithm for data.
+     */
+    protected static final String GCM_PADDING_TYPE = "AES/GCM/NoPadding";
+
     /**
      * Number of bits for encryption.
      */
     protected static final int ENCRYPTION_BITS = 128;
 
+    /**
+     * Key wrap algorithm (RFC 3394).
+     */
+    protected static final String WRAP_TYPE = "AESWrap";
+
+    /**
+     * Number of bytes of a wrapped secret key.
+     */
+    public static final int WRAPPED_KEY_SIZE = ENCRYPTION_BITS / 8 + 8;
+
+    /**
+     * Number of bits of the GCM authentication tag.
+     */
+    protected static final int GCM_TAG_BITS = 128;
+
+    /**
+     * Source of GCM nonces.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Cipher instance of each thread. Instances are reused, since creating
+     * them is expensive, and kept per thread, since they are not thread safe.
+     */
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            Cipher cipher = null;
+            try {
+                cipher = Cipher.getInstance(ENCRYPTION_PADDING_TYPE);
+            } catch (final GeneralSecurityException exc) {
+                exc.printStackTrace();
+            }
+            return cipher;
+        }
+    };
+
+    /**
+     * GCM cipher instance of each thread.
+     */
+    private static final ThreadLocal<Cipher> GCM_CIPHER =
+        new ThreadLocal<Cipher>() {
+            @Override
+            protected Cipher initialValue() {
+                Cipher cipher = null;
+                try {
+                    cipher = Cipher.getInstance(GCM_PADDING_TYPE);
+                } catch (final GeneralSecurityException exc) {
+                    exc.printStackTrace();
+                }
+                return cipher;
+            }
+        };
+
+    /**
+     * Key wrap cipher instance of each thread.
+     */
+    private static final ThreadLocal<Cipher> WRAP_CIPHER =
+        new ThreadLocal<Cipher>() {
+            @Override
+            protected Cipher initialValue() {
+                Cipher cipher = null;
+                try {
+                    cipher = Cipher.getInstance(WRAP_TYPE);
+                } catch (final GeneralSecurityException exc) {
+                    exc.printStackTrace();
+                }
+                return cipher;
+            }
+        };
+
+    /**
+     * Key generator instance of each thread.
+     */
+    private static final ThreadLocal<KeyGenerator> KEY_GENERATOR =
+        new ThreadLocal<KeyGenerator>() {
+            @Override
+            protected KeyGenerator initialValue() {
+                KeyGenerator kGen = null;
+                try {
+                    kGen = KeyGenerator.getInstance(ENCRYPTION_TYPE);
+                    kGen.init(ENCRYPTION_BITS);
+                } catch (final NoSuchAlgorithmException exc) {
+                    exc.printStackTrace();
+                }
+                return kGen;
+            }
+        };
+
     /**
      * Encrypt a node.
      *
@@ -71,29 +169,46 @@ public class NodeEncryption {
      * @return
      *         encrypted node as byte array.
      */
-    public static final synchronized byte[] encrypt(
-        final byte[] bytesToEncrypt, final byte[] rawSKey) {
-
-        // restore secret key from byte array
-        final SecretKeySpec restoredSKey =
-            new SecretKeySpec(rawSKey, ENCRYPTION_TYPE);
-
-        // initialize secret key specifications and cipher
-        final IvParameterSpec ivParams = new IvParameterSpec(rawSKey);
-
-        final Cipher cipher;
+    public static final byte[] encrypt(final byte[] bytesToEncrypt,
+        final byte[] rawSKey) {
         byte[] encrypted = null;
         try {
-            cipher = Cipher.getInstance(ENCRYPTION_PADDING_TYPE);
-            cipher.init(Cipher.ENCRYPT_MODE, restoredSKey, ivParams);
-            encrypted = cipher.doFinal(bytesToEncrypt);
-
+            encrypted =
+                initCipher(Cipher.ENCRYPT_MODE, rawSKey)
+                    .doFinal(bytesToEncrypt);
         } catch (final GeneralSecurityException exc) {
             exc.printStackTrace();
         }
         return encrypted;
     }
 
+    /**
+     * Encrypt all remaining bytes of a buffer into another buffer. Both
+     * buffer positions are advanced.
+     *
+     * @param paramSource
+     *            buffer holding the bytes to encrypt.
+     * @param paramTarget
+     *            buffer to write the encrypted bytes to, having at least
+     *            {@link #getEncryptedSize(int)} bytes remaining.
+     * @param rawSKey
+     *            Secret key for encryption.
+     * @return
+     *         number of bytes written or -1 if encryption failed.
+     */
+    public static final int encrypt(final ByteBuffer paramSource,
+        final ByteBuffer paramTarget, final byte[] rawSKey) {
+        int written = -1;
+        try {
+            written =
+                initCipher(Cipher.ENCRYPT_MODE, rawSKey).doFinal(paramSource,
+                    paramTarget);
+        } catch (final GeneralSecurityException exc) {
+            exc.printStackTrace();
+        }
+        return written;
+    }
+
     /**
      * Decrypt a node.
      *
@@ -105,21 +220,160 @@ public class NodeEncryption {
      * @return
      *         Original byte array of node.
      */
-    public static final synchronized byte[] decrypt(
-        final byte[] bytesToDecrypt, final byte[] rawSKey) {
+    public static final byte[] decrypt(final byte[] bytesToDecrypt,
+        final byte[] rawSKey) {
+        byte[] decrypted = null;
+        try {
+            decrypted =
+                initCipher(Cipher.DECRYPT_MODE, rawSKey)
+                    .doFinal(bytesToDecrypt);
+        } catch (final GeneralSecurityException exc) {
+            exc.printStackTrace();
+        }
+        return decrypted;
+    }
 
-        // restore secret key from byte array
-        final SecretKeySpec restoredSKey =
-            new SecretKeySpec(rawSKey, ENCRYPTION_TYPE);
+    /**
+     * Decrypt all remaining bytes of a buffer into another buffer. Both
+     * buffer positions are advanced.
+     *
+     * @param paramSource
+     *            buffer holding the bytes to decrypt.
+     * @param paramTarget
+     *            buffer to write the decrypted bytes to, having at least as
+     *            many bytes remaining as the source.
+     * @param rawSKey
+     *            Secret key for decryption.
+     * @return
+     *         number of bytes written or -1 if decryption failed.
+     */
+    public static final int decrypt(final ByteBuffer paramSource,
+        final ByteBuffer paramTarget, final byte[] rawSKey) {
+        int written = -1;
+        try {
+            written =
+                initCipher(Cipher.DECRYPT_MODE, rawSKey).doFinal(paramSource,
+                    paramTarget);
+        } catch (final GeneralSecurityException exc) {
+            exc.printStackTrace();
+        }
+        return written;
+    }
 
-        final Cipher cipher;
-        byte[] decrypted = null;
-        final IvParameterSpec ivParams = new IvParameterSpec(rawSKey);
+    /**
+     * Encrypt data in GCM mode with a random nonce. The result starts with a
+     * {@link CipherHeader} naming the node whose key is used; the header is
+     * authenticated along with the data.
+     *
+     * @param bytesToEncrypt
+     *            bytes to encrypt.
+     * @param rawSKey
+     *            Secret key of node for encryption.
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @return
+     *         header and encrypted bytes.
+     */
+    public static final byte[] encryptGCM(final byte[] bytesToEncrypt,
+        final byte[] rawSKey, final long paramDAGKey, final int paramRevision,
+        final int paramVersion) {
+        return encryptGCM(bytesToEncrypt, rawSKey, CipherHeader.FORMAT_GCM,
+            paramDAGKey, paramRevision, paramVersion);
+    }
 
+    /**
+     * Encrypt data in GCM mode with a random nonce and a header of the given
+     * format.
+     *
+     * @param bytesToEncrypt
+     *            bytes to encrypt.
+     * @param rawSKey
+     *            Secret key for encryption.
+     * @param paramFormat
+     *            format of header.
+     * @param paramKey
+     *            key named in the header.
+     * @param paramRevision
+     *            revision named in the header.
+     * @param paramVersion
+     *            version named in the header.
+     * @return
+     *         header and encrypted bytes.
+     */
+    public static final byte[] encryptGCM(final byte[] bytesToEncrypt,
+        final byte[] rawSKey, final byte paramFormat, final long paramKey,
+        final int paramRevision, final int paramVersion) {
+        final byte[] mNonce = new byte[CipherHeader.NONCE_SIZE];
+        RANDOM.nextBytes(mNonce);
+
+        final byte[] encrypted =
+            new byte[CipherHeader.SIZE + bytesToEncrypt.length + GCM_TAG_BITS
+                / 8];
+        new CipherHeader(paramFormat, paramKey, paramRevision, paramVersion,
+            mNonce).write(ByteBuffer.wrap(encrypted));
         try {
-            cipher = Cipher.getInstance(ENCRYPTION_PADDING_TYPE);
-            cipher.init(Cipher.DECRYPT_MODE, restoredSKey, ivParams);
-            decrypted = cipher.doFinal(bytesToDecrypt);
+            final Cipher cipher =
+                initGCMCipher(Cipher.ENCRYPT_MODE, rawSKey, mNonce);
+            cipher.updateAAD(encrypted, 0, CipherHeader.SIZE);
+            cipher.doFinal(bytesToEncrypt, 0, bytesToEncrypt.length,
+                encrypted, CipherHeader.SIZE);
+        } catch (final GeneralSecurityException exc) {
+            exc.printStackTrace();
+            return null;
+        }
+        return encrypted;
+    }
+
+    /**
+     * Decrypt data encrypted in GCM mode and verify its integrity.
+     *
+     * @param bytesToDecrypt
+     *            header and encrypted bytes.
+     * @param rawSKey
+     *            Secret key of the node named in the header.
+     * @return
+     *         Original bytes or null if the bytes have no GCM header or have
+     *         been modified.
+     */
+    public static final byte[] decryptGCM(final byte[] bytesToDecrypt,
+        final byte[] rawSKey) {
+        return decryptGCM(bytesToDecrypt, rawSKey, CipherHeader.FORMAT_GCM);
+    }
+
+    /**
+     * Decrypt data encrypted in GCM mode with a header of the given format
+     * and verify its integrity.
+     *
+     * @param bytesToDecrypt
+     *            header and encrypted bytes.
+     * @param rawSKey
+     *            Secret key for decryption.
+     * @param paramFormat
+     *            expected format of header.
+     * @return
+     *         Original bytes or null if the bytes have no header of the
+     *         format or have been modified.
+     */
+    public static final byte[] decryptGCM(final byte[] bytesToDecrypt,
+        final byte[] rawSKey, final byte paramFormat) {
+        final CipherHeader mHeader =
+            CipherHeader.read(ByteBuffer.wrap(bytesToDecrypt));
+        if (mHeader == null || mHeader.getFormat() != paramFormat) {
+            return null;
+        }
+
+        byte[] decrypted = null;
+        try {
+            final Cipher cipher =
+                initGCMCipher(Cipher.DECRYPT_MODE, rawSKey, mHeader.getNonce());
+            cipher.updateAAD(bytesToDecrypt, 0, CipherHeader.SIZE);
+            decrypted =
+                cipher.doFinal(bytesToDecrypt, CipherHeader.SIZE,
+                    bytesToDecrypt.length - CipherHeader.SIZE);
         } catch (final GeneralSecurityException exc) {
             exc.printStackTrace();
         }
@@ -127,24 +381,161 @@ public class NodeEncryption {
     }
 
     /**
-     * Generate a secret key for en- and decryption operations.
+     * Wrap a secret key under another secret key.
      *
+     * @param rawSKey
+     *            Secret key to wrap.
+     * @param rawKEK
+     *            Secret key used for wrapping.
      * @return
-     *         Generated secret key.
+     *         wrapped key or null if wrapping failed.
      */
-    public static final synchronized byte[] generateSecretKey() {
-        final KeyGenerator kGen;
-        SecretKey sKey = null;
+    public static final byte[] wrapKey(final byte[] rawSKey,
+        final byte[] rawKEK) {
+        byte[] wrapped = null;
         try {
-            kGen = KeyGenerator.getInstance(ENCRYPTION_TYPE);
-            kGen.init(ENCRYPTION_BITS);
-            sKey = kGen.generateKey();
+            final Cipher cipher = WRAP_CIPHER.get();
+            cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(rawKEK,
+                ENCRYPTION_TYPE));
+            wrapped =
+                cipher.wrap(new SecretKeySpec(rawSKey, ENCRYPTION_TYPE));
+        } catch (final GeneralSecurityException exc) {
+            exc.printStackTrace();
+        }
+        return wrapped;
+    }
 
-        } catch (final NoSuchAlgorithmException exc) {
+    /**
+     * Wrap several secret keys under the same secret key. The cipher is
+     * initialized once for all keys, so the key schedule of the wrapping key
+     * is derived once.
+     *
+     * @param rawSKeys
+     *            Secret keys to wrap.
+     * @param rawKEK
+     *            Secret key used for wrapping.
+     * @return
+     *         wrapped keys in the order of the secret keys or null if
+     *         wrapping failed.
+     */
+    public static final byte[][] wrapKeys(final byte[][] rawSKeys,
+        final byte[] rawKEK) {
+        byte[][] wrapped = null;
+        try {
+            final Cipher cipher = WRAP_CIPHER.get();
+            cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(rawKEK,
+                ENCRYPTION_TYPE));
+            final byte[][] mWrapped = new byte[rawSKeys.length][];
+            for (int i = 0; i < rawSKeys.length; i++) {
+                mWrapped[i] =
+                    cipher.wrap(new SecretKeySpec(rawSKeys[i],
+                        ENCRYPTION_TYPE));
+            }
+            wrapped = mWrapped;
+        } catch (final GeneralSecurityException exc) {
             exc.printStackTrace();
         }
+        return wrapped;
+    }
 
-        return sKey.getEncoded();
+    /**
+     * Unwrap a secret key wrapped by {@link #wrapKey(byte[], byte[])}. The
+     * integrity of the wrapped key is verified.
+     *
+     * @param paramWrapped
+     *            wrapped key.
+     * @param rawKEK
+     *            Secret key used for wrapping.
+     * @return
+     *         Secret key or null if the wrapped key has been modified or
+     *         the wrong key is used.
+     */
+    public static final byte[] unwrapKey(final byte[] paramWrapped,
+        final byte[] rawKEK) {
+        byte[] unwrapped = null;
+        try {
+            final Cipher cipher = WRAP_CIPHER.get();
+            cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(rawKEK,
+                ENCRYPTION_TYPE));
+            unwrapped =
+                cipher.unwrap(paramWrapped, ENCRYPTION_TYPE,
+                    Cipher.SECRET_KEY).getEncoded();
+        } catch (final GeneralSecurityException exc) {
+            exc.printStackTrace();
+        }
+        return unwrapped;
+    }
+
+    /**
+     * Returns the size of the encrypted bytes for the given plain size.
+     *
+     * @param paramSize
+     *            number of bytes to encrypt.
+     * @return
+     *         number of encrypted bytes.
+     */
+    public static final int getEncryptedSize(final int paramSize) {
+        final int mBlock = ENCRYPTION_BITS / 8;
+        return (paramSize / mBlock + 1) * mBlock;
+    }
+
+    /**
+     * Generate a secret key for en- and decryption operations.
+     *
+     * @return
+     *         Generated secret key.
+     */
+    public static final byte[] generateSecretKey() {
+        return KEY_GENERATOR.get().generateKey().getEncoded();
+    }
+
+    /**
+     * Initializes the cipher of the current thread.
+     *
+     * @param paramMode
+     *            cipher mode.
+     * @param rawSKey
+     *            Secret key, used as initialization vector as well.
+     * @return
+     *         initialized cipher.
+     * @throws GeneralSecurityException
+     *             if the key is invalid.
+     */
+    private static Cipher initCipher(final int paramMode, final byte[] rawSKey)
+        throws GeneralSecurityException {
+        // restore secret key from byte array
+        final SecretKeySpec restoredSKey =
+            new SecretKeySpec(rawSKey, ENCRYPTION_TYPE);
+
+        // initialize secret key specifications and cipher
+        final IvParameterSpec ivParams = new IvParameterSpec(rawSKey);
+
+        final Cipher cipher = CIPHER.get();
+        cipher.init(paramMode, restoredSKey, ivParams);
+        return cipher;
+    }
+
+    /**
+     * Initializes the GCM cipher of the current thread.
+     *
+     * @param paramMode
+     *            cipher mode.
+     * @param rawSKey
+     *            Secret key.
+     * @param paramNonce
+     *            nonce, never to be reused with the same key.
+     * @return
+     *         initialized cipher.
+     * @throws GeneralSecurityException
+     *             if the key is invalid.
+     */
+    static Cipher initGCMCipher(final int paramMode,
+        final byte[] rawSKey, final byte[] paramNonce)
+        throws GeneralSecurityException {
+        final Cipher cipher = GCM_CIPHER.get();
+        cipher.init(paramMode, new SecretKeySpec(rawSKey, ENCRYPTION_TYPE),
+            new GCMParameterSpec(GCM_TAG_BITS, paramNonce));
+        return cipher;
     }
 
     /**
@@ -0,0 +1,674 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parallel encryption of large payloads in the chunk format of
+ * {@link StreamEncryption}. Since all chunks but the final one have a fixed
+ * size, the position of every chunk is known in advance: chunks are
+ * encrypted and decrypted in parallel on a fork-join pool, and single chunks
+ * can be read without touching the others.
+ *
+ * @author ptrk01
+ */
+public final class ParallelEncryption {
+
+    /**
+     * Pool running the chunk tasks, one thread per core.
+     */
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    /**
+     * Largest array the virtual machine reliably allocates.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Utility class.
+     */
+    private ParallelEncryption() {
+        // not used over here
+    }
+
+    /**
+     * Returns the number of chunks for the given number of plain bytes.
+     *
+     * @param paramSize
+     *            number of plain bytes.
+     * @return
+     *         number of chunks, at least one.
+     */
+    public static long getChunkCount(final long paramSize) {
+        return Math.max(1, (paramSize + StreamEncryption.CHUNK_SIZE - 1)
+            / StreamEncryption.CHUNK_SIZE);
+    }
+
+    /**
+     * Returns the number of encrypted bytes, including header, for the given
+     * number of plain bytes.
+     *
+     * @param paramSize
+     *            number of plain bytes.
+     * @return
+     *         number of encrypted bytes.
+     */
+    public static long getEncryptedSize(final long paramSize) {
+        return CipherHeader.SIZE + paramSize + getChunkCount(paramSize)
+            * (StreamEncryption.ENCRYPTED_CHUNK_SIZE - StreamEncryption.CHUNK_SIZE);
+    }
+
+    /**
+     * Encrypts a byte array in parallel.
+     *
+     * @param paramPlain
+     *            bytes to encrypt.
+     * @param rawSKey
+     *            Secret key of node.
+     * @param paramHeader
+     *            stream header, see
+     *            {@link StreamEncryption#newHeader(long, int, int)}.
+     * @return
+     *         header and encrypted chunks.
+     * @throws IOException
+     *             if encryption fails.
+     * @throws IllegalArgumentException
+     *             if the encrypted bytes do not fit into an array; use
+     *             {@link #encrypt(FileChannel, FileChannel, byte[], CipherHeader)}
+     *             then.
+     */
+    public static byte[] encrypt(final byte[] paramPlain, final byte[] rawSKey,
+        final CipherHeader paramHeader) throws IOException {
+        final byte[] mEncrypted =
+            new byte[arraySize(getEncryptedSize(paramPlain.length))];
+        paramHeader.write(ByteBuffer.wrap(mEncrypted));
+        final int mChunks = (int)getChunkCount(paramPlain.length);
+        run(new ChunkTask(0, mChunks) {
+            @Override
+            void process(final int paramIndex, final byte[] paramHeaderBytes)
+                throws IOException {
+                final int mFrom = paramIndex * StreamEncryption.CHUNK_SIZE;
+                final int mOffset = (int)encryptedOffset(paramIndex);
+                final int mLength =
+                    Math.min(StreamEncryption.CHUNK_SIZE, paramPlain.length
+                        - mFrom);
+                StreamEncryption.sealChunk(rawSKey, paramHeader,
+                    paramHeaderBytes, paramIndex, paramIndex == mChunks - 1,
+                    ByteBuffer.wrap(paramPlain, mFrom, mLength), ByteBuffer
+                        .wrap(mEncrypted, mOffset, mEncrypted.length - mOffset));
+            }
+        }, paramHeader);
+        return mEncrypted;
+    }
+
+    /**
+     * Decrypts a byte array in parallel.
+     *
+     * @param paramEncrypted
+     *            header and encrypted chunks.
+     * @param rawSKey
+     *            Secret key of the node named in the header.
+     * @return
+     *         original bytes.
+     * @throws IOException
+     *             if the data is truncated or has been modified.
+     */
+    public static byte[] decrypt(final byte[] paramEncrypted,
+        final byte[] rawSKey) throws IOException {
+        final CipherHeader mHeader = readHeader(paramEncrypted);
+        final long mPlainSize = getPlainSize(paramEncrypted.length);
+        final byte[] mPlain = new byte[arraySize(mPlainSize)];
+        final int mChunks = (int)getChunkCount(mPlainSize);
+        run(new ChunkTask(0, mChunks) {
+            @Override
+            void process(final int paramIndex, final byte[] paramHeaderBytes)
+                throws IOException {
+                final int mOffset = (int)encryptedOffset(paramIndex);
+                final int mLength =
+                    Math.min(StreamEncryption.ENCRYPTED_CHUNK_SIZE,
+                        paramEncrypted.length - mOffset);
+                openChunk(rawSKey, mHeader, paramHeaderBytes, paramIndex,
+                    mChunks, ByteBuffer.wrap(paramEncrypted, mOffset, mLength),
+                    ByteBuffer.wrap(mPlain, paramIndex
+                        * StreamEncryption.CHUNK_SIZE, mPlain.length
+                        - paramIndex * StreamEncryption.CHUNK_SIZE));
+            }
+        }, mHeader);
+        return mPlain;
+    }
+
+    /**
+     * Decrypts a single chunk of a byte array.
+     *
+     * @param paramEncrypted
+     *            header and encrypted chunks.
+     * @param rawSKey
+     *            Secret key of the node named in the header.
+     * @param paramIndex
+     *            index of chunk.
+     * @return
+     *         original bytes of chunk.
+     * @throws IOException
+     *             if the chunk does not exist or has been modified.
+     */
+    public static byte[] readChunk(final byte[] paramEncrypted,
+        final byte[] rawSKey, final int paramIndex) throws IOException {
+        final CipherHeader mHeader = readHeader(paramEncrypted);
+        final int mChunks =
+            (int)getChunkCount(getPlainSize(paramEncrypted.length));
+        checkChunk(paramIndex, mChunks);
+        final int mOffset = (int)encryptedOffset(paramIndex);
+        final ByteBuffer mPlain = ByteBuffer.allocate(StreamEncryption.CHUNK_SIZE);
+        openChunk(rawSKey, mHeader, mHeader.toBytes(), paramIndex, mChunks,
+            ByteBuffer.wrap(paramEncrypted, mOffset, Math.min(
+                StreamEncryption.ENCRYPTED_CHUNK_SIZE, paramEncrypted.length
+                    - mOffset)), mPlain);
+        return toArray(mPlain);
+    }
+
+    /**
+     * Encrypts a file in parallel into another file, using positional reads
+     * and writes.
+     *
+     * @param paramIn
+     *            file to read plain bytes from.
+     * @param paramOut
+     *            file to write header and encrypted chunks to.
+     * @param rawSKey
+     *            Secret key of node.
+     * @param paramHeader
+     *            stream header, see
+     *            {@link StreamEncryption#newHeader(long, int, int)}.
+     * @throws IOException
+     *             if reading, writing or encryption fails.
+     */
+    public static void encrypt(final FileChannel paramIn,
+        final FileChannel paramOut, final byte[] rawSKey,
+        final CipherHeader paramHeader) throws IOException {
+        final long mSize = paramIn.size();
+        // drop the tail of a longer file written before
+        paramOut.truncate(getEncryptedSize(mSize));
+        writeFully(paramOut, ByteBuffer.wrap(paramHeader.toBytes()), 0);
+        final int mChunks = (int)getChunkCount(mSize);
+        run(new ChunkTask(0, mChunks) {
+            @Override
+            void process(final int paramIndex, final byte[] paramHeaderBytes)
+                throws IOException {
+                final long mFrom = (long)paramIndex * StreamEncryption.CHUNK_SIZE;
+                final ByteBuffer mPlain =
+                    ByteBuffer.allocate((int)Math.min(
+                        StreamEncryption.CHUNK_SIZE, mSize - mFrom));
+                readFully(paramIn, mPlain, mFrom);
+                mPlain.flip();
+                final ByteBuffer mEncrypted =
+                    ByteBuffer.allocate(StreamEncryption.ENCRYPTED_CHUNK_SIZE);
+                StreamEncryption.sealChunk(rawSKey, paramHeader,
+                    paramHeaderBytes, paramIndex, paramIndex == mChunks - 1,
+                    mPlain, mEncrypted);
+                mEncrypted.flip();
+                writeFully(paramOut, mEncrypted, encryptedOffset(paramIndex));
+            }
+        }, paramHeader);
+    }
+
+    /**
+     * Decrypts a file in parallel into another file, using positional reads
+     * and writes.
+     *
+     * @param paramIn
+     *            file to read header and encrypted chunks from.
+     * @param paramOut
+     *            file to write plain bytes to.
+     * @param rawSKey
+     *            Secret key of the node named in the header.
+     * @throws IOException
+     *             if reading or writing fails or the data has been modified.
+     */
+    public static void decrypt(final FileChannel paramIn,
+        final FileChannel paramOut, final byte[] rawSKey) throws IOException {
+        final CipherHeader mHeader = readHeader(paramIn);
+        final long mSize = paramIn.size();
+        final long mPlainSize = getPlainSize(mSize);
+        final int mChunks = (int)getChunkCount(mPlainSize);
+        // drop the tail of a longer file written before
+        paramOut.truncate(mPlainSize);
+        run(new ChunkTask(0, mChunks) {
+            @Override
+            void process(final int paramIndex, final byte[] paramHeaderBytes)
+                throws IOException {
+                final ByteBuffer mPlain =
+                    ByteBuffer.allocate(StreamEncryption.CHUNK_SIZE);
+                openChunk(rawSKey, mHeader, paramHeaderBytes, paramIndex,
+                    mChunks, readEncryptedChunk(paramIn, mSize, paramIndex),
+                    mPlain);
+                mPlain.flip();
+                writeFully(paramOut, mPlain, (long)paramIndex
+                    * StreamEncryption.CHUNK_SIZE);
+            }
+        }, mHeader);
+    }
+
+    /**
+     * Decrypts a single chunk of a file.
+     *
+     * @param paramIn
+     *            file to read header and encrypted chunk from.
+     * @param rawSKey
+     *            Secret key of the node named in the header.
+     * @param paramIndex
+     *            index of chunk.
+     * @return
+     *         original bytes of chunk.
+     * @throws IOException
+     *             if the chunk does not exist or has been modified.
+     */
+    public static byte[] readChunk(final FileChannel paramIn,
+        final byte[] rawSKey, final int paramIndex) throws IOException {
+        final CipherHeader mHeader = readHeader(paramIn);
+        final long mSize = paramIn.size();
+        final int mChunks = (int)getChunkCount(getPlainSize(mSize));
+        checkChunk(paramIndex, mChunks);
+        final ByteBuffer mPlain = ByteBuffer.allocate(StreamEncryption.CHUNK_SIZE);
+        openChunk(rawSKey, mHeader, mHeader.toBytes(), paramIndex, mChunks,
+            readEncryptedChunk(paramIn, mSize, paramIndex), mPlain);
+        return toArray(mPlain);
+    }
+
+    /**
+     * Reads the header of a file.
+     *
+     * @param paramIn
+     *            file to read from.
+     * @return
+     *         stream header.
+     * @throws IOException
+     *             if the file has no valid header.
+     */
+    public static CipherHeader readHeader(final FileChannel paramIn)
+        throws IOException {
+        final ByteBuffer mBytes = ByteBuffer.allocate(CipherHeader.SIZE);
+        readFully(paramIn, mBytes, 0);
+        mBytes.flip();
+        return checkHeader(CipherHeader.read(mBytes));
+    }
+
+    /**
+     * Reads the header of a byte array.
+     *
+     * @param paramEncrypted
+     *            header and encrypted chunks.
+     * @return
+     *         stream header.
+     * @throws IOException
+     *             if the array has no valid header.
+     */
+    public static CipherHeader readHeader(final byte[] paramEncrypted)
+        throws IOException {
+        return checkHeader(CipherHeader.read(ByteBuffer.wrap(paramEncrypted)));
+    }
+
+    /**
+     * Decrypts a chunk and checks that only the last chunk is flagged final.
+     *
+     * @param rawSKey
+     *            Secret key of node.
+     * @param paramHeader
+     *            stream header.
+     * @param paramHeaderBytes
+     *            stream header as bytes.
+     * @param paramIndex
+     *            index of chunk.
+     * @param paramChunks
+     *            number of chunks.
+     * @param paramEncrypted
+     *            flag and encrypted bytes.
+     * @param paramTarget
+     *            buffer to write plain bytes to.
+     * @throws IOException
+     *             if the chunk has been modified or is misplaced.
+     */
+    private static void openChunk(final byte[] rawSKey,
+        final CipherHeader paramHeader, final byte[] paramHeaderBytes,
+        final int paramIndex, final int paramChunks,
+        final ByteBuffer paramEncrypted, final ByteBuffer paramTarget)
+        throws IOException {
+        final boolean mFinal =
+            StreamEncryption.openChunk(rawSKey, paramHeader, paramHeaderBytes,
+                paramIndex, paramEncrypted, paramTarget);
+        if (mFinal != (paramIndex == paramChunks - 1)) {
+            throw new IOException("Chunk " + paramIndex + " is misplaced!");
+        }
+    }
+
+    /**
+     * Returns the number of plain bytes for the given number of encrypted
+     * bytes, including header.
+     *
+     * @param paramSize
+     *            number of encrypted bytes.
+     * @return
+     *         number of plain bytes.
+     * @throws IOException
+     *             if the size is no valid encrypted size.
+     */
+    private static long getPlainSize(final long paramSize) throws IOException {
+        final long mBody = paramSize - CipherHeader.SIZE;
+        final long mFull = mBody / StreamEncryption.ENCRYPTED_CHUNK_SIZE;
+        final long mRest = mBody % StreamEncryption.ENCRYPTED_CHUNK_SIZE;
+        final int mOverhead =
+            StreamEncryption.ENCRYPTED_CHUNK_SIZE - StreamEncryption.CHUNK_SIZE;
+        if (mBody < mOverhead || (mRest > 0 && mRest < mOverhead)) {
+            throw new EOFException("Encrypted data is truncated!");
+        }
+        return mFull * StreamEncryption.CHUNK_SIZE
+            + (mRest > 0 ? mRest - mOverhead : 0);
+    }
+
+    /**
+     * Returns the offset of an encrypted chunk.
+     *
+     * @param paramIndex
+     *            index of chunk.
+     * @return
+     *         offset in encrypted data.
+     */
+    private static long encryptedOffset(final int paramIndex) {
+        return CipherHeader.SIZE + (long)paramIndex
+            * StreamEncryption.ENCRYPTED_CHUNK_SIZE;
+    }
+
+    /**
+     * Checks that a number of bytes fits into an array.
+     *
+     * @param paramSize
+     *            number of bytes.
+     * @return
+     *         number of bytes as array size.
+     * @throws IllegalArgumentException
+     *             if the bytes do not fit into an array.
+     */
+    private static int arraySize(final long paramSize) {
+        if (paramSize > MAX_ARRAY_SIZE) {
+            throw new IllegalArgumentException(paramSize
+                + " bytes do not fit into an array!");
+        }
+        return (int)paramSize;
+    }
+
+    /**
+     * Reads an encrypted chunk of a file.
+     *
+     * @param paramIn
+     *            file to read from.
+     * @param paramSize
+     *            size of file.
+     * @param paramIndex
+     *            index of chunk.
+     * @return
+     *         flag and encrypted bytes of chunk.
+     * @throws IOException
+     *             if reading fails.
+     */
+    private static ByteBuffer readEncryptedChunk(final FileChannel paramIn,
+        final long paramSize, final int paramIndex) throws IOException {
+        final long mOffset = encryptedOffset(paramIndex);
+        final ByteBuffer mEncrypted =
+            ByteBuffer.allocate((int)Math.min(
+                StreamEncryption.ENCRYPTED_CHUNK_SIZE, paramSize - mOffset));
+        readFully(paramIn, mEncrypted, mOffset);
+        mEncrypted.flip();
+        return mEncrypted;
+    }
+
+    /**
+     * Checks that a chunk exists.
+     *
+     * @param paramIndex
+     *            index of chunk.
+     * @param paramChunks
+     *            number of chunks.
+     * @throws IOException
+     *             if the chunk does not exist.
+     */
+    private static void checkChunk(final int paramIndex, final int paramChunks)
+        throws IOException {
+        if (paramIndex < 0 || paramIndex >= paramChunks) {
+            throw new IOException("Chunk " + paramIndex + " does not exist!");
+        }
+    }
+
+    /**
+     * Checks that a header belongs to chunked data.
+     *
+     * @param paramHeader
+     *            header read.
+     * @return
+     *         the header.
+     * @throws IOException
+     *             if the header is not a stream header.
+     */
+    private static CipherHeader checkHeader(final CipherHeader paramHeader)
+        throws IOException {
+        if (paramHeader == null
+            || paramHeader.getFormat() != CipherHeader.FORMAT_GCM_STREAM) {
+            throw new IOException("Data has no valid header!");
+        }
+        return paramHeader;
+    }
+
+    /**
+     * Returns the bytes written to a buffer.
+     *
+     * @param paramBuffer
+     *            buffer written to.
+     * @return
+     *         bytes written.
+     */
+    private static byte[] toArray(final ByteBuffer paramBuffer) {
+        final byte[] mBytes = new byte[paramBuffer.position()];
+        paramBuffer.flip();
+        paramBuffer.get(mBytes);
+        return mBytes;
+    }
+
+    /**
+     * Reads into a buffer from a file position until the buffer is full.
+     *
+     * @param paramIn
+     *            file to read from.
+     * @param paramBuffer
+     *            buffer to read into.
+     * @param paramPosition
+     *            file position to start at.
+     * @throws IOException
+     *             if the file ends before.
+     */
+    private static void readFully(final FileChannel paramIn,
+        final ByteBuffer paramBuffer, final long paramPosition)
+        throws IOException {
+        long position = paramPosition;
+        while (paramBuffer.hasRemaining()) {
+            final int mCount = paramIn.read(paramBuffer, position);
+            if (mCount == -1) {
+                throw new EOFException("Encrypted data is truncated!");
+            }
+            position += mCount;
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of a buffer to a file position.
+     *
+     * @param paramOut
+     *            file to write to.
+     * @param paramBuffer
+     *            buffer to write.
+     * @param paramPosition
+     *            file position to start at.
+     * @throws IOException
+     *             if writing fails.
+     */
+    private static void writeFully(final FileChannel paramOut,
+        final ByteBuffer paramBuffer, final long paramPosition)
+        throws IOException {
+        long position = paramPosition;
+        while (paramBuffer.hasRemaining()) {
+            position += paramOut.write(paramBuffer, position);
+        }
+    }
+
+    /**
+     * Runs a chunk task on the pool and rethrows the first failure of any
+     * chunk.
+     *
+     * @param paramTask
+     *            task covering all chunks.
+     * @param paramHeader
+     *            stream header.
+     * @throws IOException
+     *             if processing a chunk failed.
+     */
+    private static void run(final ChunkTask paramTask,
+        final CipherHeader paramHeader) throws IOException {
+        paramTask.mHeaderBytes = paramHeader.toBytes();
+        paramTask.mFailure = new AtomicReference<IOException>();
+        POOL.invoke(paramTask);
+        if (paramTask.mFailure.get() != null) {
+            throw paramTask.mFailure.get();
+        }
+    }
+
+    /**
+     * Task processing a range of chunks, split in halves until a single chunk
+     * is left.
+     */
+    private abstract static class ChunkTask extends RecursiveAction {
+
+        /**
+         * Because of serialization.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * First chunk of range.
+         */
+        private final int mFrom;
+
+        /**
+         * Chunk after range.
+         */
+        private final int mTo;
+
+        /**
+         * Stream header as bytes, shared by all tasks.
+         */
+        private byte[] mHeaderBytes;
+
+        /**
+         * First failure of any chunk, shared by all tasks.
+         */
+        private AtomicReference<IOException> mFailure;
+
+        /**
+         * Constructor.
+         *
+         * @param paramFrom
+         *            first chunk of range.
+         * @param paramTo
+         *            chunk after range.
+         */
+        ChunkTask(final int paramFrom, final int paramTo) {
+            this.mFrom = paramFrom;
+            this.mTo = paramTo;
+        }
+
+        /**
+         * Processes a single chunk.
+         *
+         * @param paramIndex
+         *            index of chunk.
+         * @param paramHeaderBytes
+         *            stream header as bytes.
+         * @throws IOException
+         *             if processing fails.
+         */
+        abstract void process(int paramIndex, byte[] paramHeaderBytes)
+            throws IOException;
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                if (mFailure.get() == null) {
+                    try {
+                        process(mFrom, mHeaderBytes);
+                    } catch (final IOException exc) {
+                        mFailure.compareAndSet(null, exc);
+                    }
+                }
+            } else {
+                final int mMiddle = (mFrom + mTo) >>> 1;
+                invokeAll(split(mFrom, mMiddle), split(mMiddle, mTo));
+            }
+        }
+
+        /**
+         * Creates a task for a sub range sharing header and failure.
+         *
+         * @param paramFrom
+         *            first chunk of sub range.
+         * @param paramTo
+         *            chunk after sub range.
+         * @return
+         *         sub task.
+         */
+        private ChunkTask split(final int paramFrom, final int paramTo) {
+            final ChunkTask mParent = this;
+            final ChunkTask mTask = new ChunkTask(paramFrom, paramTo) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                void process(final int paramIndex,
+                    final byte[] paramHeaderBytes) throws IOException {
+                    mParent.process(paramIndex, paramHeaderBytes);
+                }
+            };
+            mTask.mHeaderBytes = mHeaderBytes;
+            mTask.mFailure = mFailure;
+            return mTask;
+        }
+
+    }
+
+}
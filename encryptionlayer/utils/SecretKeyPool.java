@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of pre-generated secret keys. Background threads keep the pool
+ * filled, so rekeying takes keys without generating them on the latency path
+ * of an operation. If the pool runs empty, a key is generated inline and
+ * counted as a miss.
+ *
+ * @author ptrk01
+ */
+public class SecretKeyPool {
+
+    /**
+     * Default number of keys held by the pool.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Default number of refilling threads.
+     */
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * Milliseconds a refilling thread waits after key generation failed.
+     */
+    private static final long RETRY_DELAY = 100;
+
+    /**
+     * Milliseconds to wait for each refilling thread on shutdown.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    /**
+     * Pre-generated keys.
+     */
+    private final BlockingQueue<byte[]> mKeys;
+
+    /**
+     * Refilling threads.
+     */
+    private final Thread[] mWorkers;
+
+    /**
+     * Number of keys taken from the pool.
+     */
+    private final AtomicLong mHits = new AtomicLong();
+
+    /**
+     * Number of keys generated inline because the pool was empty.
+     */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Constructor creating a pool with default settings.
+     */
+    public SecretKeyPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_THREADS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param paramCapacity
+     *            maximum number of keys held by the pool.
+     * @param paramThreads
+     *            number of refilling threads.
+     */
+    public SecretKeyPool(final int paramCapacity, final int paramThreads) {
+        mKeys = new ArrayBlockingQueue<byte[]>(paramCapacity);
+        mWorkers = new Thread[paramThreads];
+        for (int i = 0; i < paramThreads; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            final byte[] mKey =
+                                NodeEncryption.generateSecretKey();
+                            if (mKey == null) {
+                                // generation failed, take() falls back to
+                                // inline generation meanwhile
+                                Thread.sleep(RETRY_DELAY);
+                                continue;
+                            }
+                            // blocks while the pool is full
+                            mKeys.put(mKey);
+                        }
+                    } catch (final InterruptedException exc) {
+                        // pool has been shut down
+                    }
+                }
+            }, "SecretKeyPool-" + i);
+            mWorkers[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Starts refilling the pool.
+     */
+    public final void start() {
+        for (Thread aWorker : mWorkers) {
+            aWorker.start();
+        }
+    }
+
+    /**
+     * Stops refilling the pool, waits for the refilling threads to finish and
+     * drops all pre-generated keys.
+     *
+     * @return
+     *         true if all refilling threads have stopped within the timeout.
+     */
+    public final boolean shutdown() {
+        for (Thread aWorker : mWorkers) {
+            aWorker.interrupt();
+        }
+        boolean mStopped = true;
+        for (Thread aWorker : mWorkers) {
+            try {
+                aWorker.join(SHUTDOWN_TIMEOUT);
+            } catch (final InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+            mStopped &= !aWorker.isAlive();
+        }
+        mKeys.clear();
+        return mStopped;
+    }
+
+    /**
+     * Returns a fresh secret key without blocking. The key is taken from the
+     * pool or generated inline if the pool is empty.
+     *
+     * @return
+     *         secret key.
+     */
+    public final byte[] take() {
+        final byte[] mKey = mKeys.poll();
+        if (mKey == null) {
+            mMisses.incrementAndGet();
+            return NodeEncryption.generateSecretKey();
+        }
+        mHits.incrementAndGet();
+        return mKey;
+    }
+
+    /**
+     * Returns number of keys currently available in the pool.
+     *
+     * @return
+     *         fill level of pool.
+     */
+    public final int getAvailable() {
+        return mKeys.size();
+    }
+
+    /**
+     * Returns maximum number of keys held by the pool.
+     *
+     * @return
+     *         capacity of pool.
+     */
+    public final int getCapacity() {
+        return mKeys.size() + mKeys.remainingCapacity();
+    }
+
+    /**
+     * Returns number of keys taken from the pool.
+     *
+     * @return
+     *         number of hits.
+     */
+    public final long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * Returns number of keys generated inline because the pool was empty.
+     *
+     * @return
+     *         number of misses.
+     */
+    public final long getMisses() {
+        return mMisses.get();
+    }
+
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright (c) 2011, github.com/ptrk01
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ * * Neither the name of the University of Konstanz nor the
+ * names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THE SOFTWARE IS PROVIDED AS IS AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ */
+package encryptionlayer.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+
+/**
+ * Streaming encryption of data in GCM mode. The data is split into chunks of
+ * {@link #CHUNK_SIZE} bytes, each encrypted and authenticated on its own, so
+ * memory use is constant regardless of the data size.
+ *
+ * <pre>
+ * | header | chunk 0 | chunk 1 | ... | final chunk |
+ * chunk: | flag (1) | encrypted bytes | tag (16) |
+ * </pre>
+ *
+ * All chunks but the final one hold exactly {@link #CHUNK_SIZE} bytes. The
+ * nonce of a chunk is the header nonce combined with the chunk index; header,
+ * chunk index and flag are authenticated, so reordered, dropped or truncated
+ * chunks are detected.
+ *
+ * @author ptrk01
+ */
+public final class StreamEncryption {
+
+    /**
+     * Number of plain bytes of a chunk.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Number of bytes of the authentication tag of a chunk.
+     */
+    static final int TAG_SIZE = NodeEncryption.GCM_TAG_BITS / 8;
+
+    /**
+     * Number of bytes of a full encrypted chunk.
+     */
+    public static final int ENCRYPTED_CHUNK_SIZE = 1 + CHUNK_SIZE + TAG_SIZE;
+
+    /**
+     * Flag of a chunk followed by further chunks.
+     */
+    static final byte FLAG_MORE = 0;
+
+    /**
+     * Flag of the final chunk.
+     */
+    static final byte FLAG_FINAL = 1;
+
+    /**
+     * Source of stream nonces.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Utility class.
+     */
+    private StreamEncryption() {
+        // not used over here
+    }
+
+    /**
+     * Creates the header of a new stream with a random nonce.
+     *
+     * @param paramDAGKey
+     *            dag key of node.
+     * @param paramRevision
+     *            revision of node.
+     * @param paramVersion
+     *            version of node.
+     * @return
+     *         stream header.
+     */
+    public static CipherHeader newHeader(final long paramDAGKey,
+        final int paramRevision, final int paramVersion) {
+        final byte[] mNonce = new byte[CipherHeader.NONCE_SIZE];
+        RANDOM.nextBytes(mNonce);
+        return new CipherHeader(CipherHeader.FORMAT_GCM_STREAM, paramDAGKey,
+            paramRevision, paramVersion, mNonce);
+    }
+
+    /**
+     * Reads the header of an encrypted stream.
+     *
+     * @param paramIn
+     *            stream to read from.
+     * @return
+     *         stream header.
+     * @throws IOException
+     *             if the stream has no valid header.
+     */
+    public static CipherHeader readHeader(final InputStream paramIn)
+        throws IOException {
+        final byte[] mBytes = new byte[CipherHeader.SIZE];
+        if (readFully(paramIn, mBytes, 0, mBytes.length) != mBytes.length) {
+            throw new EOFException("Stream has no valid header!");
+        }
+        return checkHeader(CipherHeader.read(ByteBuffer.wrap(mBytes)));
+    }
+
+    /**
+     * Reads the header of an encrypted channel.
+     *
+     * @param paramIn
+     *            channel to read from.
+     * @return
+     *         stream header.
+     * @throws IOException
+     *             if the channel has no valid header.
+     */
+    public static CipherHeader readHeader(final ReadableByteChannel paramIn)
+        throws IOException {
+        final ByteBuffer mBytes = ByteBuffer.allocate(CipherHeader.SIZE);
+        if (readFully(paramIn, mBytes)) {
+            throw new EOFException("Stream has no valid header!");
+        }
+        mBytes.flip();
+        return checkHeader(CipherHeader.read(mBytes));
+    }
+
+    /**
+     * Encrypts all bytes of a channel into another channel.
+     *
+     * @param paramIn
+     *            channel to read plain bytes from.
+     * @param paramOut
+     *            channel to write header and encrypted chunks to.
+     * @param rawSKey
+     *            Secret key of node.
+     * @param paramHeader
+     *            stream header, see {@link #newHeader(long, int, int)}.
+     * @throws IOException
+     *             if reading, writing or encryption fails.
+     */
+    public static void encrypt(final ReadableByteChannel paramIn,
+        final WritableByteChannel paramOut, final byte[] rawSKey,
+        final CipherHeader paramHeader) throws IOException {
+        final byte[] mHeaderBytes = paramHeader.toBytes();
+        writeFully(paramOut, ByteBuffer.wrap(mHeaderBytes));
+
+        ByteBuffer mCurrent = ByteBuffer.allocate(CHUNK_SIZE);
+        ByteBuffer mNext = ByteBuffer.allocate(CHUNK_SIZE);
+        final ByteBuffer mEncrypted = ByteBuffer.allocate(ENCRYPTED_CHUNK_SIZE);
+
+        // a chunk is final if the channel ends within it or right after it
+        boolean eof = readFully(paramIn, mCurrent);
+        int index = 0;
+        while (true) {
+            boolean last = eof;
+            if (!last) {
+                eof = readFully(paramIn, mNext);
+                last = eof && mNext.position() == 0;
+            }
+
+            mCurrent.flip();
+            mEncrypted.clear();
+            sealChunk(rawSKey, paramHeader, mHeaderBytes, index++, last,
+                mCurrent, mEncrypted);
+            mEncrypted.flip();
+            writeFully(paramOut, mEncrypted);
+
+            if (last) {
+                break;
+            }
+            final ByteBuffer mSwap = mCurrent;
+            mCurrent = mNext;
+            mNext = mSwap;
+            mNext.clear();
+        }
+    }
+
+    /**
+     * Decrypts all chunks of a channel into another channel. The header has
+     * to be read before by {@link #readHeader(ReadableByteChannel)}.
+     *
+     * @param paramIn
+     *            channel to read encrypted chunks from.
+     * @param paramOut
+     *            channel to write plain bytes to.
+     * @param rawSKey
+     *            Secret key of the node named in the header.
+     * @param paramHeader
+     *            stream header.
+     * @throws IOException
+     *             if reading or writing fails or the data has been modified.
+     */
+    public static void decrypt(final ReadableByteChannel paramIn,
+        final WritableByteChannel paramOut, final byte[] rawSKey,
+        final CipherHeader paramHeader) throws IOException {
+        final byte[] mHeaderBytes = paramHeader.toBytes();
+        final ByteBuffer mEncrypted = ByteBuffer.allocate(ENCRYPTED_CHUNK_SIZE);
+        final ByteBuffer mPlain = ByteBuffer.allocate(CHUNK_SIZE);
+
+        int index = 0;
+        boolean last = false;
+        while (!last) {
+            mEncrypted.clear();
+            readFully(paramIn, mEncrypted);
+            mEncrypted.flip();
+            mPlain.clear();
+            last =
+                openChunk(rawSKey, paramHeader, mHeaderBytes, index++,
+                    mEncrypted, mPlain);
+            mPlain.flip();
+            writeFully(paramOut, mPlain);
+        }
+        mEncrypted.clear();
+        if (paramIn.read(mEncrypted) > 0) {
+            throw new IOException("Data after final chunk!");
+        }
+    }
+
+    /**
+     * Encrypts one chunk.
+     *
+     * @param rawSKey
+     *            Secret key of node.
+     * @param paramHeader
+     *            stream header.
+     * @param paramHeaderBytes
+     *            stream header as bytes.
+     * @param paramIndex
+     *            index of chunk.
+     * @param paramFinal
+     *            whether the chunk is the final one.
+     * @param paramPlain
+     *            plain bytes, all remaining are encrypted.
+     * @param paramTarget
+     *            buffer to write flag and encrypted bytes to.
+     * @throws IOException
+     *             if encryption fails.
+     */
+    static void sealChunk(final byte[] rawSKey, final CipherHeader paramHeader,
+        final byte[] paramHeaderBytes, final int paramIndex,
+        final boolean paramFinal, final ByteBuffer paramPlain,
+        final ByteBuffer paramTarget) throws IOException {
+        final byte mFlag = paramFinal ? FLAG_FINAL : FLAG_MORE;
+        paramTarget.put(mFlag);
+        try {
+            final Cipher cipher =
+                NodeEncryption.initGCMCipher(Cipher.ENCRYPT_MODE, rawSKey,
+                    chunkNonce(paramHeader.getNonce(), paramIndex));
+            cipher.updateAAD(paramHeaderBytes);
+            cipher.updateAAD(chunkData(paramIndex, mFlag));
+            cipher.doFinal(paramPlain, paramTarget);
+        } catch (final GeneralSecurityException exc) {
+            throw new IOException("Chunk " + paramIndex
+                + " could not be encrypted!", exc);
+        }
+    }
+
+    /**
+     * Decrypts one chunk and verifies its integrity and position.
+     *
+     * @param rawSKey
+     *            Secret key of node.
+     * @param paramHeader
+     *            stream header.
+     * @param paramHeaderBytes
+     *            stream header as bytes.
+     * @param paramIndex
+     *            expected index of chunk.
+     * @param paramEncrypted
+     *            flag and encrypted bytes, all remaining are decrypted.
+     * @param paramTarget
+     *            buffer to write plain bytes to.
+     * @return
+     *         whether the chunk is the final one.
+     * @throws IOException
+     *             if the chunk is truncated or has been modified.
+     */
+    static boolean openChunk(final byte[] rawSKey,
+        final CipherHeader paramHeader, final byte[] paramHeaderBytes,
+        final int paramIndex, final ByteBuffer paramEncrypted,
+        final ByteBuffer paramTarget) throws IOException {
+        if (paramEncrypted.remaining() < 1 + TAG_SIZE) {
+            throw new EOFException("Chunk " + paramIndex + " is truncated!");
+        }
+        final byte mFlag = paramEncrypted.get();
+        if (mFlag == FLAG_MORE
+            && paramEncrypted.remaining() != ENCRYPTED_CHUNK_SIZE - 1) {
+            throw new EOFException("Chunk " + paramIndex + " is truncated!");
+        }
+        try {
+            final Cipher cipher =
+                NodeEncryption.initGCMCipher(Cipher.DECRYPT_MODE, rawSKey,
+                    chunkNonce(paramHeader.getNonce(), paramIndex));
+            cipher.updateAAD(paramHeaderBytes);
+            cipher.updateAAD(chunkData(paramIndex, mFlag));
+            cipher.doFinal(paramEncrypted, paramTarget);
+        } catch (final GeneralSecurityException exc) {
+            throw new IOException("Integrity check of chunk " + paramIndex
+                + " failed!", exc);
+        }
+        return mFlag == FLAG_FINAL;
+    }
+
+    /**
+     * Reads into a byte array until it is full or the stream ends.
+     *
+     * @param paramIn
+     *            stream to read from.
+     * @param paramBytes
+     *            array to read into.
+     * @param paramOffset
+     *            offset in array.
+     * @param paramLength
+     *            number of bytes to read.
+     * @return
+     *         number of bytes read.
+     * @throws IOException
+     *             if reading fails.
+     */
+    static int readFully(final InputStream paramIn, final byte[] paramBytes,
+        final int paramOffset, final int paramLength) throws IOException {
+        int read = 0;
+        while (read < paramLength) {
+            final int mCount =
+                paramIn.read(paramBytes, paramOffset + read, paramLength - read);
+            if (mCount == -1) {
+                break;
+            }
+            read += mCount;
+        }
+        return read;
+    }
+
+    /**
+     * Checks that a header belongs to an encrypted stream.
+     *
+     * @param paramHeader
+     *            header read.
+     * @return
+     *         the header.
+     * @throws IOException
+     *             if the header is not a stream header.
+     */
+    private static CipherHeader checkHeader(final CipherHeader paramHeader)
+        throws IOException {
+        if (paramHeader == null
+            || paramHeader.getFormat() != CipherHeader.FORMAT_GCM_STREAM) {
+            throw new IOException("Stream has no valid header!");
+        }
+        return paramHeader;
+    }
+
+    /**
+     * Reads into a buffer until it is full or the channel ends.
+     *
+     * @param paramIn
+     *            channel to read from.
+     * @param paramBuffer
+     *            buffer to read into.
+     * @return
+     *         whether the channel has ended.
+     * @throws IOException
+     *             if reading fails.
+     */
+    private static boolean readFully(final ReadableByteChannel paramIn,
+        final ByteBuffer paramBuffer) throws IOException {
+        while (paramBuffer.hasRemaining()) {
+            if (paramIn.read(paramBuffer) == -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes all remaining bytes of a buffer to a channel.
+     *
+     * @param paramOut
+     *            channel to write to.
+     * @param paramBuffer
+     *            buffer to write.
+     * @throws IOException
+     *             if writing fails.
+     */
+    private static void writeFully(final WritableByteChannel paramOut,
+        final ByteBuffer paramBuffer) throws IOException {
+        while (paramBuffer.hasRemaining()) {
+            paramOut.write(paramBuffer);
+        }
+    }
+
+    /**
+     * Returns the nonce of a chunk, the stream nonce with the chunk index
+     * xored into its last four bytes.
+     *
+     * @param paramNonce
+     *            stream nonce.
+     * @param paramIndex
+     *            index of chunk.
+     * @return
+     *         chunk nonce.
+     */
+    private static byte[] chunkNonce(final byte[] paramNonce,
+        final int paramIndex) {
+        final byte[] mNonce = paramNonce.clone();
+        final int mLast = mNonce.length - 4;
+        mNonce[mLast] ^= (byte)(paramIndex >>> 24);
+        mNonce[mLast + 1] ^= (byte)(paramIndex >>> 16);
+        mNonce[mLast + 2] ^= (byte)(paramIndex >>> 8);
+        mNonce[mLast + 3] ^= (byte)paramIndex;
+        return mNonce;
+    }
+
+    /**
+     * Returns the authenticated data of a chunk besides the header.
+     *
+     * @param paramIndex
+     *            index of chunk.
+     * @param paramFlag
+     *            flag of chunk.
+     * @return
+     *         index and flag as bytes.
+     */
+    private static byte[] chunkData(final int paramIndex, final byte paramFlag) {
+        return new byte[] {
+            (byte)(paramIndex >>> 24), (byte)(paramIndex >>> 16),
+            (byte)(paramIndex >>> 8), (byte)paramIndex, paramFlag
+        };
+    }
+
+}